@@ -0,0 +1,116 @@
+package com.fabianoley.dynmaprailways.bulk;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.scan.RailClusterer;
+import com.fabianoley.dynmaprailways.scan.RegionFileScanner;
+import com.fabianoley.dynmaprailways.scan.ScanResult;
+import com.fabianoley.dynmaprailways.storage.BulkScanFile;
+import com.fabianoley.dynmaprailways.storage.RailwayJson;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command-line full-world rail scanner.
+ * Reads a world folder's region files, clusters the rails into lines and writes a bulk scan file
+ * that DynmapRailways imports from its import folder at startup.
+ *
+ * Usage: java -jar dynmap-railways-bulk-scanner.jar <world-folder> [threads] [--world name] [--output file]
+ */
+public class BulkScanner {
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            printUsage();
+            System.exit(1);
+        }
+
+        File worldFolder = new File(args[0]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        String worldName = worldFolder.getAbsoluteFile().getName();
+        File output = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--world") && i + 1 < args.length) {
+                    worldName = args[++i];
+                } else if (args[i].equals("--output") && i + 1 < args.length) {
+                    output = new File(args[++i]);
+                } else {
+                    threads = Integer.parseInt(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            printUsage();
+            System.exit(1);
+        }
+        if (output == null) {
+            output = new File(worldName + BulkScanFile.EXTENSION);
+        }
+
+        File regionFolder = RegionFileScanner.findRegionFolder(worldFolder);
+        if (regionFolder == null) {
+            System.err.println("No region folder found in " + worldFolder);
+            System.exit(1);
+        }
+
+        try {
+            run(regionFolder, worldName, Math.max(1, threads), output);
+        } catch (IOException e) {
+            System.err.println("Bulk scan failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void run(File regionFolder, String worldName, int threads, File output) throws IOException {
+        System.out.println("Scanning " + regionFolder + " as world '" + worldName + "' with " + threads + " threads...");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+
+        RegionFileScanner scanner = new RegionFileScanner(pool);
+        ScanResult scan = scanner.scan(regionFolder, worldName);
+        long scanned = System.nanoTime();
+        System.out.println("Found " + scan.getRails().size() + " rail blocks in " + scanner.getChunkCount() + " chunks" +
+                (scanner.getSkippedChunkCount() > 0 ? " (" + scanner.getSkippedChunkCount() + " chunks skipped)" : ""));
+
+        List<RailLine> lines = RailClusterer.cluster(worldName, scan.getRails(), pool);
+        long clustered = System.nanoTime();
+        System.out.println("Clustered into " + lines.size() + " rail lines");
+
+        BulkScanFile scanFile = new BulkScanFile(worldName, scanner.getChunkCount(), lines);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+            RailwayJson.create().toJson(scanFile, writer);
+        }
+        long written = System.nanoTime();
+        pool.shutdown();
+
+        double scanSeconds = (scanned - start) / 1e9;
+        System.out.println("Wrote " + output.getAbsolutePath());
+        System.out.printf(Locale.ROOT, "Region scan: %.1fs (%.0f chunks/s, %.0f rails/s)%n", scanSeconds,
+                scanner.getChunkCount() / Math.max(scanSeconds, 1e-9), scan.getRails().size() / Math.max(scanSeconds, 1e-9));
+        System.out.printf(Locale.ROOT, "Clustering: %.1fs, writing: %.1fs, total: %.1fs%n",
+                (clustered - scanned) / 1e9, (written - clustered) / 1e9, (written - start) / 1e9);
+        System.out.printf(Locale.ROOT, "Peak heap: %.1f MB%n", peakHeapBytes() / (1024.0 * 1024.0));
+        System.out.println("Copy the file into plugins/DynmapRailways/" + BulkScanFile.IMPORT_FOLDER + "/ to import it on the next start.");
+    }
+
+    /**
+     * Sum of the peak usage of every heap memory pool.
+     */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -jar dynmap-railways-bulk-scanner.jar <world-folder> [threads] [--world name] [--output file]");
+    }
+}
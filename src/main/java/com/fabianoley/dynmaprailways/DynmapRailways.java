@@ -6,6 +6,12 @@ import org.dynmap.DynmapCommonAPI;
 import org.dynmap.DynmapCommonAPIListener;
 import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
 import com.fabianoley.dynmaprailways.commands.RailwayCommand;
+import com.fabianoley.dynmaprailways.listener.ChunkLoadListener;
+import com.fabianoley.dynmaprailways.listener.PlacerCacheListener;
+import com.fabianoley.dynmaprailways.listener.RailChangeListener;
+import com.fabianoley.dynmaprailways.scan.ChunkRailCache;
+import com.fabianoley.dynmaprailways.scan.LiveRailIndex;
+import com.fabianoley.dynmaprailways.scan.OpportunisticScanner;
 
 /**
  * Main plugin class for DynmapRailways addon.
@@ -18,6 +24,9 @@ public class DynmapRailways extends JavaPlugin {
     private RailwayDataStorage dataStorage;
     private RailwayMapRenderer mapRenderer;
     private com.fabianoley.dynmaprailways.integration.CoreProtectIntegration coreProtect;
+    private LiveRailIndex liveRailIndex;
+    private ChunkRailCache chunkRailCache;
+    private OpportunisticScanner opportunisticScanner;
     
     @Override
     public void onEnable() {
@@ -80,9 +89,15 @@ public class DynmapRailways extends JavaPlugin {
                 // Register commands
                 registerCommands();
 
+                // Load the per-chunk rail cache (optional)
+                initializeChunkCache();
+
                 // Register event listeners
                 registerListeners();
 
+                // Import bulk scan files produced by the standalone scanner
+                importBulkScans();
+
                 getLogger().info("DynmapRailways v" + getDescription().getVersion() + " enabled!");
             }
         });
@@ -90,6 +105,22 @@ public class DynmapRailways extends JavaPlugin {
     
     @Override
     public void onDisable() {
+        if (liveRailIndex != null) {
+            liveRailIndex.stop();
+        }
+        
+        if (opportunisticScanner != null) {
+            opportunisticScanner.stop();
+        }
+        
+        if (chunkRailCache != null) {
+            chunkRailCache.save();
+        }
+        
+        if (coreProtect != null && coreProtect.getPlacerCache() != null) {
+            coreProtect.getPlacerCache().save();
+        }
+        
         if (mapRenderer != null) {
             mapRenderer.shutdown();
         }
@@ -98,6 +129,8 @@ public class DynmapRailways extends JavaPlugin {
             dataStorage.shutdown();
         }
         
+        com.fabianoley.dynmaprailways.scan.RailScanner.shutdown();
+        
         getLogger().info("DynmapRailways disabled.");
     }
     
@@ -115,10 +148,64 @@ public class DynmapRailways extends JavaPlugin {
         getCommand("railway").setTabCompleter(railwayCommand);
     }
     
+    /**
+     * Import pending bulk scan files in the background, then refresh the map.
+     */
+    private void importBulkScans() {
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            int imported = com.fabianoley.dynmaprailways.scan.ScanImporter.importPending(this);
+            if (imported > 0) {
+                getLogger().info("Imported " + imported + " bulk scan file(s).");
+                getServer().getScheduler().runTask(this, () -> mapRenderer.updateAllMarkers());
+            }
+        });
+    }
+    
+    /**
+     * Create the chunk rail cache, load the cache files of all worlds in the background and save it periodically.
+     */
+    private void initializeChunkCache() {
+        if (!getConfig().getBoolean("cache.enabled", true)) {
+            return;
+        }
+        chunkRailCache = new ChunkRailCache(getDataFolder());
+        java.util.List<String> worldNames = new java.util.ArrayList<>();
+        for (org.bukkit.World world : getServer().getWorlds()) {
+            worldNames.add(world.getName());
+        }
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            for (String worldName : worldNames) {
+                chunkRailCache.preload(worldName);
+            }
+        });
+        long saveInterval = Math.max(1, getConfig().getInt("cache.save-interval-minutes", 5)) * 60L * 20L;
+        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> chunkRailCache.save(), saveInterval, saveInterval);
+    }
+    
     /**
      * Register event listeners.
      */
     private void registerListeners() {
+        if (getConfig().getBoolean("live-updates.enabled", true)) {
+            liveRailIndex = new LiveRailIndex(this);
+            liveRailIndex.start();
+            getServer().getPluginManager().registerEvents(new RailChangeListener(liveRailIndex), this);
+            getLogger().info("Live rail updates enabled.");
+        }
+        
+        if (coreProtect != null && coreProtect.getPlacerCache() != null) {
+            com.fabianoley.dynmaprailways.integration.PlacerCache placerCache = coreProtect.getPlacerCache();
+            getServer().getPluginManager().registerEvents(new PlacerCacheListener(placerCache), this);
+            long saveInterval = Math.max(1, getConfig().getInt("cache.save-interval-minutes", 5)) * 60L * 20L;
+            getServer().getScheduler().runTaskTimerAsynchronously(this, placerCache::save, saveInterval, saveInterval);
+        }
+        
+        if (chunkRailCache != null && getConfig().getBoolean("cache.scan-on-load", false)) {
+            opportunisticScanner = new OpportunisticScanner(this, chunkRailCache);
+            opportunisticScanner.start();
+            getServer().getPluginManager().registerEvents(new ChunkLoadListener(opportunisticScanner), this);
+            getLogger().info("Scanning chunks for rails as they load.");
+        }
     }
     
     public static DynmapRailways getInstance() {
@@ -137,6 +224,20 @@ public class DynmapRailways extends JavaPlugin {
         return mapRenderer;
     }
 
+    /**
+     * Live rail index, or null when live updates are disabled.
+     */
+    public LiveRailIndex getLiveRailIndex() {
+        return liveRailIndex;
+    }
+
+    /**
+     * Per-chunk rail cache, or null when the cache is disabled.
+     */
+    public ChunkRailCache getChunkRailCache() {
+        return chunkRailCache;
+    }
+
     public com.fabianoley.dynmaprailways.integration.CoreProtectIntegration getCoreProtect() {
         return coreProtect;
     }
@@ -2,21 +2,32 @@ package com.fabianoley.dynmaprailways.commands;
 
 import com.fabianoley.dynmaprailways.DynmapRailways;
 import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailNetwork;
 import com.fabianoley.dynmaprailways.station.Station;
 import com.fabianoley.dynmaprailways.scan.RailScanner;
+import com.fabianoley.dynmaprailways.scan.RegionFileScanner;
+import com.fabianoley.dynmaprailways.scan.ScanResult;
+import com.fabianoley.dynmaprailways.scan.SnapshotScanTask;
+import com.fabianoley.dynmaprailways.storage.BlockLineIndex;
+import com.fabianoley.dynmaprailways.storage.Nearest;
+import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Player;
 import org.bukkit.Bukkit;
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Command handler for railway commands.
  */
 public class RailwayCommand implements CommandExecutor, TabCompleter {
     
+    private static final int MAX_MERGE_ATTEMPTS = 5; // merges of one scan before giving up on a busy server
+    
     private DynmapRailways plugin;
     
     public RailwayCommand(DynmapRailways plugin) {
@@ -81,6 +92,11 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
             return true;
         }
         
+        // Offline scan of the worlds' region files
+        if (args.length >= 2 && args[1].equalsIgnoreCase("regions")) {
+            return handleRegionScan(sender, args);
+        }
+        
         // Optional: radius overload for targeted chunk scanning around the player
         if (args.length >= 2) {
             if (!(sender instanceof Player)) {
@@ -105,73 +121,23 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
             int baseX = playerChunk.getX();
             int baseZ = playerChunk.getZ();
 
-            // Pre-load existing generated chunks within radius on the main thread (non-generating)
+            // Snapshot existing generated chunks within radius on the main thread (non-generating),
+            // a few per tick, and extract rails from the snapshots asynchronously
             sender.sendMessage("§eScanning chunks within radius " + radius + " around you...");
-            final java.util.Set<org.bukkit.Chunk> chunksToScan = new java.util.LinkedHashSet<>();
+            final List<Long> chunksToScan = new ArrayList<>();
             for (int cx = baseX - radius; cx <= baseX + radius; cx++) {
                 for (int cz = baseZ - radius; cz <= baseZ + radius; cz++) {
-                    // If already loaded, include; else try to load without generating new chunks
-                    if (world.isChunkLoaded(cx, cz)) {
-                        chunksToScan.add(world.getChunkAt(cx, cz));
-                    } else {
-                        boolean loaded = world.loadChunk(cx, cz, false); // do not generate
-                        if (loaded) {
-                            chunksToScan.add(world.getChunkAt(cx, cz));
-                        }
-                    }
+                    chunksToScan.add(ScanResult.chunkKey(cx, cz));
                 }
             }
 
-            // Run scan asynchronously for these chunks only
-            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-                try {
-                    // Get existing lines
-                    List<RailLine> existingLines = new ArrayList<>(plugin.getDataStorage().getRailLines().values());
-                    
-                    // Scan for new lines - assign IDs after scanning
-                    List<RailLine> newLines = RailScanner.scanChunks(world, chunksToScan);
-                    
-                    // Assign unique IDs to new lines
-                    for (RailLine line : newLines) {
-                        if (line.getId().startsWith("tmp_")) {
-                            String newId = plugin.getDataStorage().generateLineId();
-                            // Create new line with proper ID
-                            RailLine properLine = new RailLine(newId, line.getColor());
-                            properLine.setName(line.getName());
-                            properLine.setCreatedBy(line.getCreatedBy());
-                            properLine.addBlocks(line.getBlocks());
-                            // Replace in list
-                            newLines.set(newLines.indexOf(line), properLine);
-                        }
-                    }
-                    
-                    // Merge with existing lines to prevent duplicates
-                    List<RailLine> mergedLines = RailScanner.mergeWithExistingLines(world, newLines, existingLines);
-                    
-                    // Filter and replace all lines with merged result
-                    int minLineLength = plugin.getConfig().getInt("general.min-line-length", 15);
-                    plugin.getDataStorage().replaceAllRailLinesFiltered(mergedLines, minLineLength);
-                    
-                    final int lineCount = mergedLines.size();
-                    int humanCount = 0;
-                    for (RailLine line : mergedLines) {
-                        if (line.getCreatedBy() != null && !line.getCreatedBy().isEmpty()) {
-                            humanCount++;
-                        }
-                    }
-                    final int finalHumanCount = humanCount;
-                    Bukkit.getScheduler().runTask(plugin, () -> {
-                        plugin.getMapRenderer().updateAllMarkers();
-                        sender.sendMessage("§aRadius scan complete! Total " + lineCount + " rail lines (§b" + finalHumanCount + " player-placed§a).");
-                        boolean playerOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", false);
-                        if (playerOnly) {
-                            sender.sendMessage("§7Note: Rendering is set to player-placed lines only.");
-                        }
-                    });
-                } catch (Exception e) {
-                    sender.sendMessage("§cError during radius scan: " + e.getMessage());
-                    e.printStackTrace();
+            SnapshotScanTask.scanChunks(plugin, world, chunksToScan).whenComplete((scan, error) -> {
+                if (error != null) {
+                    sender.sendMessage("§cError during radius scan: " + error.getMessage());
+                    error.printStackTrace();
+                    return;
                 }
+                applyScanResults(sender, Collections.singletonMap(world, scan), "Radius scan");
             });
 
             return true;
@@ -180,54 +146,167 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
         // Default: scan all currently loaded chunks in all worlds
         sender.sendMessage("§eScanning all worlds for rail blocks...");
         
-        // Scan all worlds asynchronously
+        // Snapshot the loaded chunks of each world in turn, then process the results asynchronously
+        final List<org.bukkit.World> worlds = new ArrayList<>(Bukkit.getWorlds());
+        final Map<org.bukkit.World, ScanResult> scans = new LinkedHashMap<>();
+        CompletableFuture<Void> snapshotting = CompletableFuture.completedFuture(null);
+        for (org.bukkit.World world : worlds) {
+            snapshotting = snapshotting
+                    .thenCompose(ignored -> SnapshotScanTask.scanLoadedChunks(plugin, world))
+                    .thenAccept(scan -> scans.put(world, scan));
+        }
+        
+        snapshotting.whenComplete((ignored, error) -> {
+            if (error != null) {
+                sender.sendMessage("§cError during scan: " + error.getMessage());
+                error.printStackTrace();
+                return;
+            }
+            applyScanResults(sender, scans, "Scanning");
+        });
+        
+        return true;
+    }
+
+    /**
+     * Scan worlds by reading their region files directly, covering chunks that are not loaded.
+     * Changes in loaded chunks that the server has not saved yet are not seen.
+     */
+    private boolean handleRegionScan(CommandSender sender, String[] args) {
+        final List<org.bukkit.World> worlds = new ArrayList<>();
+        if (args.length >= 3) {
+            org.bukkit.World world = Bukkit.getWorld(args[2]);
+            if (world == null) {
+                sender.sendMessage("§cWorld not found: " + args[2]);
+                return true;
+            }
+            worlds.add(world);
+        } else {
+            worlds.addAll(Bukkit.getWorlds());
+        }
+
+        final Map<org.bukkit.World, java.io.File> regionFolders = new LinkedHashMap<>();
+        final Map<org.bukkit.World, Set<Long>> loadedChunks = new HashMap<>();
+        for (org.bukkit.World world : worlds) {
+            java.io.File regionFolder = RegionFileScanner.findRegionFolder(world.getWorldFolder());
+            if (regionFolder != null) {
+                regionFolders.put(world, regionFolder);
+                // The saved copy of a loaded chunk can be older than the server's, so it is kept out of the cache
+                Set<Long> loaded = new HashSet<>();
+                for (org.bukkit.Chunk chunk : world.getLoadedChunks()) {
+                    loaded.add(ScanResult.chunkKey(chunk.getX(), chunk.getZ()));
+                }
+                loadedChunks.put(world, loaded);
+            }
+        }
+
+        sender.sendMessage("§eScanning region files of " + regionFolders.size() + " world(s) for rail blocks...");
         Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            Map<org.bukkit.World, ScanResult> scans = new LinkedHashMap<>();
             try {
-                // Get all existing lines
-                List<RailLine> existingLines = new ArrayList<>(plugin.getDataStorage().getRailLines().values());
-                List<RailLine> allMergedLines = new ArrayList<>();
-                
-                int humanLines = 0;
-                
-                for (org.bukkit.World world : Bukkit.getWorlds()) {
-                    // Scan this world
-                    List<RailLine> newLines = RailScanner.scanWorld(world);
-                    
-                    // Assign unique IDs to new lines
-                    for (RailLine line : newLines) {
-                        if (line.getId().startsWith("tmp_")) {
-                            String newId = plugin.getDataStorage().generateLineId();
-                            RailLine properLine = new RailLine(newId, line.getColor());
-                            properLine.setName(line.getName());
-                            properLine.setCreatedBy(line.getCreatedBy());
-                            properLine.addBlocks(line.getBlocks());
-                            newLines.set(newLines.indexOf(line), properLine);
-                        }
+                for (Map.Entry<org.bukkit.World, java.io.File> entry : regionFolders.entrySet()) {
+                    RegionFileScanner regionScanner = new RegionFileScanner(RailScanner.getWorkerPool(), plugin.getChunkRailCache());
+                    scans.put(entry.getKey(), regionScanner.scan(entry.getValue(), entry.getKey().getName(), loadedChunks.get(entry.getKey())));
+                    if (regionScanner.getCachedChunkCount() > 0) {
+                        plugin.getLogger().info("Reused " + regionScanner.getCachedChunkCount() + " unchanged chunks from the rail cache for " + entry.getKey().getName());
                     }
+                }
+            } catch (Exception e) {
+                sender.sendMessage("§cError during region scan: " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
+            applyScanResults(sender, scans, "Region scan");
+        });
+        return true;
+    }
+
+    /**
+     * Cluster scanned rails into lines, merge them with the stored lines of each scanned world
+     * and store the result. Runs off the main thread; markers are refreshed on the main thread afterwards.
+     * The merge works on a copy of the stored lines, so if anything else stores lines before the result is
+     * committed, the merge is repeated on the new lines rather than reverting them.
+     */
+    private void applyScanResults(CommandSender sender, Map<org.bukkit.World, ScanResult> scans, String scanLabel) {
+        try {
+            RailwayDataStorage storage = plugin.getDataStorage();
+            BlockLineIndex blockIndex = storage.getBlockIndex();
+            int minLineLength = plugin.getConfig().getInt("general.min-line-length", 15);
+            
+            // Cluster the rails found in each world; only the merge depends on the stored lines
+            Map<org.bukkit.World, List<RailLine>> scannedLines = new LinkedHashMap<>();
+            for (Map.Entry<org.bukkit.World, ScanResult> entry : scans.entrySet()) {
+                scannedLines.put(entry.getKey(), RailScanner.scanWorld(entry.getKey(), entry.getValue()));
+            }
+            
+            List<RailLine> allMergedLines;
+            List<RailNetwork> networks;
+            Map<org.bukkit.World, List<RailLine>> unattributed;
+            int humanLines;
+            for (int attempt = 1; ; attempt++) {
+                // Get all existing lines, and the generation to commit against
+                long generation = storage.getLineGeneration();
+                List<RailLine> existingLines = new ArrayList<>(storage.getRailLines().values());
+                allMergedLines = new ArrayList<>();
+                networks = new ArrayList<>();
+                unattributed = new HashMap<>();
+                humanLines = 0;
+                
+                for (Map.Entry<org.bukkit.World, ScanResult> entry : scans.entrySet()) {
+                    org.bukkit.World world = entry.getKey();
+                    ScanResult scan = entry.getValue();
+                    List<RailLine> newLines = scannedLines.get(world);
                     
                     // Filter existing lines for this world
                     List<RailLine> existingForWorld = new ArrayList<>();
                     for (RailLine line : existingLines) {
-                        boolean isInWorld = false;
-                        for (RailLine.RailBlock block : line.getBlocks()) {
-                            if (block.world.equals(world.getName())) {
-                                isInWorld = true;
-                                break;
-                            }
-                        }
-                        if (isInWorld) {
+                        if (blockIndex.hasLine(world.getName(), line.getId())) {
                             existingForWorld.add(line);
                         }
                     }
                     
                     // Merge new lines with existing for this world
-                    List<RailLine> mergedForWorld = RailScanner.mergeWithExistingLines(world, newLines, existingForWorld);
+                    List<RailLine> mergedForWorld = RailScanner.mergeWithExistingLines(newLines, existingForWorld, scan, blockIndex);
                     
+                    // Assign unique IDs to the new lines that were kept; IDs are reserved until stored, so only kept lines get one
+                    for (int i = 0; i < mergedForWorld.size(); i++) {
+                        RailLine line = mergedForWorld.get(i);
+                        if (line.getId().startsWith("tmp_")) {
+                            String newId = storage.generateLineId();
+                            RailLine properLine = new RailLine(newId, line.getColor());
+                            properLine.setName(line.getName());
+                            properLine.setCreatedBy(line.getCreatedBy());
+                            properLine.addBlocks(line.getBlocks());
+                            mergedForWorld.set(i, properLine);
+                        }
+                    }
+                    
+                    Set<RailLine> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+                    stored.addAll(existingForWorld);
+                    List<RailLine> toAttribute = new ArrayList<>();
                     for (RailLine line : mergedForWorld) {
                         if (line.getCreatedBy() != null && !line.getCreatedBy().isEmpty()) {
                             humanLines++;
+                        } else if (!stored.contains(line) && line.getBlockCount() >= minLineLength) {
+                            toAttribute.add(line);
+                        }
+                    }
+                    unattributed.put(world, toAttribute);
+                    
+                    // Rebuild the world's junction/segment network from the lines that will be kept; lines whose
+                    // segments changed come back as copies, since the merged lines include stored ones
+                    List<RailLine> storedForWorld = new ArrayList<>();
+                    List<Integer> storedIndexes = new ArrayList<>();
+                    for (int i = 0; i < mergedForWorld.size(); i++) {
+                        if (mergedForWorld.get(i).getBlockCount() >= minLineLength) {
+                            storedForWorld.add(mergedForWorld.get(i));
+                            storedIndexes.add(i);
                         }
                     }
+                    networks.add(RailNetwork.buildForLines(world.getName(), storedForWorld, RailScanner.getWorkerPool()));
+                    for (int k = 0; k < storedForWorld.size(); k++) {
+                        mergedForWorld.set(storedIndexes.get(k), storedForWorld.get(k));
+                    }
                     
                     allMergedLines.addAll(mergedForWorld);
                 }
@@ -235,42 +314,57 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                 // Also add lines from worlds that weren't scanned
                 for (RailLine line : existingLines) {
                     boolean isFromScannedWorld = false;
-                    for (RailLine.RailBlock block : line.getBlocks()) {
-                        for (org.bukkit.World world : Bukkit.getWorlds()) {
-                            if (block.world.equals(world.getName())) {
-                                isFromScannedWorld = true;
-                                break;
-                            }
+                    for (org.bukkit.World world : scans.keySet()) {
+                        if (blockIndex.hasLine(world.getName(), line.getId())) {
+                            isFromScannedWorld = true;
+                            break;
                         }
-                        if (isFromScannedWorld) break;
                     }
                     if (!isFromScannedWorld) {
                         allMergedLines.add(line);
                     }
                 }
                 
-                // Filter and replace all lines with merged result
-                int minLineLength = plugin.getConfig().getInt("general.min-line-length", 15);
-                plugin.getDataStorage().replaceAllRailLinesFiltered(allMergedLines, minLineLength);
-                
-                // Update map on main thread
-                final int finalTotalLines = allMergedLines.size();
-                final int finalHumanLines = humanLines;
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    plugin.getMapRenderer().updateAllMarkers();
-                    sender.sendMessage("§aScanning complete! Total " + finalTotalLines + " rail lines (§b" + finalHumanLines + " player-placed§a).");
-                    boolean playerOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", false);
-                    if (playerOnly) {
-                        sender.sendMessage("§7Note: Rendering is set to player-placed lines only.");
-                    }
-                });
-            } catch (Exception e) {
-                sender.sendMessage("§cError during scan: " + e.getMessage());
-                e.printStackTrace();
+                // Filter and replace all lines with merged result, unless lines were stored during the merge
+                if (storage.replaceAllRailLinesFilteredIfUnchanged(generation, allMergedLines, minLineLength) >= 0) {
+                    break;
+                }
+                if (attempt == MAX_MERGE_ATTEMPTS) {
+                    sender.sendMessage("§c" + scanLabel + " could not be stored: rail lines kept changing during the merge. Try again later.");
+                    return;
+                }
+                plugin.getLogger().info("Rail lines changed while merging the " + scanLabel.toLowerCase() + "; merging again.");
             }
-        });
-        
-        return true;
+            for (RailNetwork network : networks) {
+                storage.replaceNetwork(network);
+            }
+            
+            // Look up the placers of the new lines in the background
+            int pending = 0;
+            for (Map.Entry<org.bukkit.World, List<RailLine>> entry : unattributed.entrySet()) {
+                RailScanner.attributeLater(entry.getKey(), entry.getValue());
+                pending += entry.getValue().size();
+            }
+            final int pendingLines = plugin.getCoreProtect() != null && plugin.getCoreProtect().isEnabled() ? pending : 0;
+            
+            // Update map on main thread
+            final int finalTotalLines = allMergedLines.size();
+            final int finalHumanLines = humanLines;
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                plugin.getMapRenderer().updateAllMarkers();
+                sender.sendMessage("§a" + scanLabel + " complete! Total " + finalTotalLines + " rail lines (§b" + finalHumanLines + " player-placed§a).");
+                if (pendingLines > 0) {
+                    sender.sendMessage("§7Looking up the placers of " + pendingLines + " new lines in the background.");
+                }
+                boolean playerOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", false);
+                if (playerOnly) {
+                    sender.sendMessage("§7Note: Rendering is set to player-placed lines only.");
+                }
+            });
+        } catch (Exception e) {
+            sender.sendMessage("§cError during " + scanLabel.toLowerCase() + ": " + e.getMessage());
+            e.printStackTrace();
+        }
     }
     
     private boolean handleList(CommandSender sender) {
@@ -285,7 +379,9 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
             
             for (RailLine line : lines.values()) {
                 if (line.isActive()) {
-                    sender.sendMessage("§e" + line.getId() + ": §f" + line.getName() + " §7(" + line.getBlockCount() + " blocks, " + line.getColor() + ")");
+                    List<Integer> segments = line.getSegmentIds();
+                    sender.sendMessage("§e" + line.getId() + ": §f" + line.getName() + " §7(" + line.getBlockCount() + " blocks, " +
+                            (segments != null ? segments.size() + " segments, " : "") + line.getColor() + ")");
                 }
             }
         } catch (Exception e) {
@@ -337,8 +433,15 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                         return true;
                     }
                     
-                    line.setColor(color.toUpperCase());
-                    plugin.getDataStorage().saveRailLine(line);
+                    // Stored lines are never changed in place; storage swaps in a changed copy
+                    List<RailLine> recolored = plugin.getDataStorage().updateRailLines(Collections.singleton(lineId), copy -> {
+                        copy.setColor(color.toUpperCase());
+                        return true;
+                    });
+                    if (recolored.isEmpty()) {
+                        sender.sendMessage("§cLine not found: " + lineId);
+                        return true;
+                    }
                     plugin.getMapRenderer().updateAllMarkers();
                     sender.sendMessage("§aSet color of " + line.getName() + " to " + color.toUpperCase());
                 } catch (Exception e) {
@@ -371,8 +474,14 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                     }
                     
                     String oldName = lineToRename.getName();
-                    lineToRename.setName(newName);
-                    plugin.getDataStorage().saveRailLine(lineToRename);
+                    List<RailLine> renamed = plugin.getDataStorage().updateRailLines(Collections.singleton(renameLineId), copy -> {
+                        copy.setName(newName);
+                        return true;
+                    });
+                    if (renamed.isEmpty()) {
+                        sender.sendMessage("§cLine not found: " + renameLineId);
+                        return true;
+                    }
                     plugin.getMapRenderer().updateAllMarkers();
                     sender.sendMessage("§aRenamed line from '" + oldName + "' to '" + newName + "'");
                 } catch (Exception e) {
@@ -441,12 +550,19 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                     String world = player.getWorld().getName();
                     
                     RailLine.RailBlock block = new RailLine.RailBlock(x, y, z, world);
-                    targetLine.addBlock(block);
-                    plugin.getDataStorage().saveRailLine(targetLine);
+                    List<RailLine> extended = plugin.getDataStorage().updateRailLines(Collections.singleton(targetLineId), copy -> {
+                        copy.addBlock(block);
+                        return true;
+                    });
+                    if (extended.isEmpty()) {
+                        sender.sendMessage("§cLine not found: " + targetLineId);
+                        return true;
+                    }
                     plugin.getMapRenderer().updateAllMarkers();
                     
-                    sender.sendMessage("§aAdded waypoint to " + targetLine.getName() + " at (" + x + ", " + y + ", " + z + ")");
-                    sender.sendMessage("§7Total waypoints: " + targetLine.getBlockCount());
+                    RailLine extendedLine = extended.get(0);
+                    sender.sendMessage("§aAdded waypoint to " + extendedLine.getName() + " at (" + x + ", " + y + ", " + z + ")");
+                    sender.sendMessage("§7Total waypoints: " + extendedLine.getBlockCount());
                 } catch (Exception e) {
                     sender.sendMessage("§cError adding waypoint: " + e.getMessage());
                 }
@@ -516,15 +632,33 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                 String stationName = String.join(" ", Arrays.copyOfRange(args, 2, args.length));
                 String stationId = stationName.toLowerCase().replace(" ", "_");
                 int x = (int) player.getLocation().getX();
+                int y = player.getLocation().getBlockY();
                 int z = (int) player.getLocation().getZ();
                 
                 try {
                     String world = player.getWorld().getName();
-                    Station station = new Station(stationId, stationName, x, player.getLocation().getBlockY(), z, world);
+                    
+                    // Snap onto the nearest track, if there is one close enough
+                    String snappedTo = null;
+                    int snapRadius = plugin.getConfig().getInt("stations.snap-radius", 16);
+                    if (snapRadius > 0) {
+                        for (Nearest<String> nearest : plugin.getDataStorage().getBlockIndex().findNearestLines(world, x, y, z, 1, snapRadius)) {
+                            x = nearest.getX();
+                            y = nearest.getY();
+                            z = nearest.getZ();
+                            snappedTo = nearest.getValue();
+                        }
+                    }
+                    
+                    Station station = new Station(stationId, stationName, x, y, z, world);
                     station.setCreatedBy(player.getName());
                     plugin.getDataStorage().saveStation(station);
                     plugin.getMapRenderer().updateAllMarkers();
                     sender.sendMessage("§aStation created: " + stationName + " at (" + x + ", " + z + ") in world " + world);
+                    if (snappedTo != null) {
+                        RailLine snappedLine = plugin.getDataStorage().getRailLine(snappedTo);
+                        sender.sendMessage("§7Snapped to " + (snappedLine != null ? snappedLine.getName() : snappedTo));
+                    }
                 } catch (Exception e) {
                     sender.sendMessage("§cError creating station: " + e.getMessage());
                 }
@@ -535,7 +669,13 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                     Map<String, Station> stations = plugin.getDataStorage().getStations();
                     sender.sendMessage("§6Stations (" + stations.size() + "):");
                     for (Station s : stations.values()) {
-                        sender.sendMessage("§e" + s.getName() + " §7at (" + s.getX() + ", " + s.getZ() + ")");
+                        List<String> lineNames = new ArrayList<>();
+                        for (String lineId : plugin.getDataStorage().getStationLines(s.getId())) {
+                            RailLine line = plugin.getDataStorage().getRailLine(lineId);
+                            lineNames.add(line != null ? line.getName() : lineId);
+                        }
+                        sender.sendMessage("§e" + s.getName() + " §7at (" + s.getX() + ", " + s.getZ() + ")" +
+                                (lineNames.isEmpty() ? "" : " §f- " + String.join(", ", lineNames)));
                     }
                 } catch (Exception e) {
                     sender.sendMessage("§cError listing stations: " + e.getMessage());
@@ -588,7 +728,7 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
         }
         
         if (args.length < 2) {
-            sender.sendMessage("§cUsage: /railway debug <reinit|info|block>");
+            sender.sendMessage("§cUsage: /railway debug <reinit|info|block|export>");
             return true;
         }
         
@@ -605,9 +745,25 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                 sender.sendMessage("§6Debug Info:");
                 sender.sendMessage("§eRail Lines: " + plugin.getDataStorage().getRailLines().size());
                 sender.sendMessage("§eStations: " + plugin.getDataStorage().getStations().size());
+                for (RailNetwork network : plugin.getDataStorage().getNetworks().values()) {
+                    sender.sendMessage("§eNetwork " + network.getWorld() + ": " + network.getSegments().size() +
+                            " segments, " + network.getJunctionCount() + " junctions");
+                }
                 sender.sendMessage("§eCheck console for marker set details.");
                 return true;
             
+            case "export":
+                sender.sendMessage("§eExporting rail lines as JSON...");
+                Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                    try {
+                        File file = plugin.getDataStorage().exportRailLinesJson();
+                        Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage("§aExported rail lines to " + file.getName() + "."));
+                    } catch (Exception e) {
+                        Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage("§cError exporting rail lines: " + e.getMessage()));
+                    }
+                });
+                return true;
+            
             // ========== TEMPORARY DEBUG COMMAND - REMOVE AFTER TESTING ==========
             case "block":
                 if (args.length < 5) {
@@ -640,6 +796,20 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
                     sender.sendMessage("§eChunk: §f(" + (x >> 4) + ", " + (z >> 4) + ")");
                     sender.sendMessage("§eChunk Loaded: §f" + world.isChunkLoaded(x >> 4, z >> 4));
                     
+                    BlockLineIndex blockIndex = plugin.getDataStorage().getBlockIndex();
+                    String lineId = blockIndex.getLineAt(world.getName(), x, y, z);
+                    if (lineId != null) {
+                        sender.sendMessage("§eLine: §f" + lineId);
+                    } else {
+                        for (Nearest<String> nearest : blockIndex.findNearestLines(world.getName(), x, y, z, 1, 32)) {
+                            sender.sendMessage("§eNearest Line: §f" + nearest.getValue() + " §7at (" + nearest.getX() + ", " +
+                                    nearest.getY() + ", " + nearest.getZ() + "), " + (int) nearest.getDistance() + " blocks away");
+                        }
+                    }
+                    for (Nearest<Station> nearest : plugin.getDataStorage().getStationIndex().findNearestStations(world.getName(), x, y, z, 1, 256)) {
+                        sender.sendMessage("§eNearest Station: §f" + nearest.getValue().getName() + " §7(" + (int) nearest.getDistance() + " blocks away)");
+                    }
+                    
                 } catch (NumberFormatException e) {
                     sender.sendMessage("§cInvalid coordinates. Use integer values.");
                 }
@@ -655,6 +825,7 @@ public class RailwayCommand implements CommandExecutor, TabCompleter {
     private void sendHelp(CommandSender sender) {
         sender.sendMessage("§6Railway Commands:");
         sender.sendMessage("§e/railway scan [radius] §7- Scan for rail blocks (admin)");
+        sender.sendMessage("§e/railway scan regions [world] §7- Scan saved region files, including unloaded chunks (admin)");
         sender.sendMessage("§e/railway list §7- List all rail lines");
         sender.sendMessage("§e/railway line list §7- List all rail lines with details");
         sender.sendMessage("§e/railway line color <id> <#color> §7- Set line color (admin)");
@@ -0,0 +1,30 @@
+package com.fabianoley.dynmaprailways.integration;
+
+/**
+ * Result of one CoreProtect lookup of a block: who last placed it, when, and the action of the row it came from.
+ */
+public final class BlockPlacement {
+
+    /** CoreProtect action IDs. */
+    public static final int ACTION_UNKNOWN = -1;
+    public static final int ACTION_BREAK = 0;
+    public static final int ACTION_PLACE = 1;
+    /** Not a CoreProtect action: the lookup found no rows, and the time is when it ran. */
+    public static final int ACTION_NONE = -2;
+
+    private final String placer;
+    private final long time;
+    private final int action;
+
+    BlockPlacement(String placer, long time, int action) {
+        this.placer = placer;
+        this.time = time;
+        this.action = action;
+    }
+
+    /** @return The player who placed the block, or null if none did */
+    public String getPlacer() { return placer; }
+    /** @return Seconds since the epoch, or 0 if unknown; for {@link #ACTION_NONE}, when the lookup ran */
+    public long getTime() { return time; }
+    public int getAction() { return action; }
+}
@@ -2,8 +2,13 @@ package com.fabianoley.dynmaprailways.integration;
 
 import org.bukkit.block.Block;
 import org.bukkit.plugin.Plugin;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 
 import com.fabianoley.dynmaprailways.DynmapRailways;
@@ -11,15 +16,32 @@ import com.fabianoley.dynmaprailways.DynmapRailways;
 /**
  * Wrapper for CoreProtect API to query block placement history.
  * Optional: runs only if CoreProtect is present and enabled.
+ * The API is bound once into method handles; each block costs at most one lookup, whose result the filters reuse.
  */
 public class CoreProtectIntegration {
     private final DynmapRailways plugin;
     private Object coreProtectAPI; // use reflection to avoid compile-time dependency
+    private MethodHandle blockLookup; // (Block, int) -> List, bound to the API
     private boolean enabled = false;
+    private PlacerCache placerCache; // null when disabled
+    
+    // Filters, read from config once
+    private final boolean playerPlacedOnly;
+    private final int minAgeDays;
+    private final int maxAgeDays;
+    private final Set<String> ignorePlayers;
 
     public CoreProtectIntegration(DynmapRailways plugin) {
         this.plugin = plugin;
+        this.playerPlacedOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", true);
+        this.minAgeDays = plugin.getConfig().getInt("coreprotect.min-age-days", 0);
+        this.maxAgeDays = plugin.getConfig().getInt("coreprotect.max-age-days", 0);
+        this.ignorePlayers = new HashSet<>(plugin.getConfig().getStringList("coreprotect.ignore-players"));
         initialize();
+        if (enabled && plugin.getConfig().getBoolean("coreprotect.placer-cache.enabled", true)) {
+            placerCache = new PlacerCache(plugin.getDataFolder(), plugin.getConfig().getInt("coreprotect.placer-cache.max-entries", 200000),
+                    plugin.getConfig().getLong("coreprotect.placer-cache.empty-ttl-minutes", 60) * 60);
+        }
     }
 
     private void initialize() {
@@ -48,15 +70,17 @@ public class CoreProtectIntegration {
             }
 
             try {
-                Method isEnabled = coreProtectAPI.getClass().getMethod("isEnabled");
-                Object res = isEnabled.invoke(coreProtectAPI);
-                if (!(res instanceof Boolean) || !((Boolean) res)) {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                MethodHandle isEnabled = lookup.findVirtual(coreProtectAPI.getClass(), "isEnabled", MethodType.methodType(boolean.class));
+                if (!(boolean) isEnabled.invoke(coreProtectAPI)) {
                     plugin.getLogger().warning("CoreProtect API not enabled - player filtering disabled");
                     enabled = false;
                     return;
                 }
-            } catch (Exception e) {
-                plugin.getLogger().warning("Failed to check CoreProtect API enabled state");
+                blockLookup = lookup.findVirtual(coreProtectAPI.getClass(), "blockLookup",
+                        MethodType.methodType(List.class, Block.class, int.class)).bindTo(coreProtectAPI);
+            } catch (Throwable e) {
+                plugin.getLogger().warning("Failed to bind CoreProtect API - player filtering disabled");
                 enabled = false;
                 return;
             }
@@ -70,28 +94,80 @@ public class CoreProtectIntegration {
 
     public boolean isEnabled() { return enabled; }
 
+    /**
+     * Placer cache, or null when it is disabled.
+     */
+    public PlacerCache getPlacerCache() { return placerCache; }
+
     /**
      * Returns the username of the player who placed the block, or null if natural/admin.
      */
     public String getBlockPlacer(Block block) {
-        if (!enabled || coreProtectAPI == null) return null;
-        try {
-            Method blockLookup = coreProtectAPI.getClass().getMethod("blockLookup", org.bukkit.block.Block.class, int.class);
-            Object result = blockLookup.invoke(coreProtectAPI, block, 0);
-            @SuppressWarnings("unchecked")
-            List<String[]> data = (List<String[]>) result;
-            if (data != null && !data.isEmpty()) {
-                String[] entry = data.get(0);
-                String username = extractUsername(entry);
-                if (username != null) {
-                    return username;
-                }
+        BlockPlacement placement = getPlacement(block);
+        return placement != null ? placement.getPlacer() : null;
+    }
+
+    /**
+     * Look up who placed a block, when and by which action, from the placer cache or else one CoreProtect query.
+     * The newest place row decides; without one, the newest row does.
+     * @return The placement, or null if the lookup failed
+     */
+    public BlockPlacement getPlacement(Block block) {
+        if (!enabled || blockLookup == null) return null;
+        String world = block.getWorld().getName();
+        if (placerCache != null) {
+            BlockPlacement cached = placerCache.get(world, block.getX(), block.getY(), block.getZ());
+            if (cached != null) {
+                return cached;
             }
-            return null;
-        } catch (Exception e) {
+        }
+        List<?> rows;
+        try {
+            rows = (List<?>) blockLookup.invokeExact(block, 0);
+        } catch (Throwable e) {
             plugin.getLogger().log(Level.FINE, "CoreProtect lookup failed at " + block.getLocation(), e);
             return null;
         }
+        String[] entry = null;
+        if (rows != null) {
+            for (Object row : rows) {
+                if (!(row instanceof String[])) continue;
+                if (entry == null) entry = (String[]) row;
+                if (extractAction((String[]) row) == BlockPlacement.ACTION_PLACE) {
+                    entry = (String[]) row;
+                    break;
+                }
+            }
+        }
+        String username = entry != null ? extractUsername(entry) : null;
+        long time = entry != null ? extractTime(entry) : System.currentTimeMillis() / 1000;
+        int action = entry != null ? extractAction(entry) : BlockPlacement.ACTION_NONE;
+        if (placerCache != null) {
+            return placerCache.put(world, block.getX(), block.getY(), block.getZ(), username, time, action);
+        }
+        return new BlockPlacement(username, time, action);
+    }
+
+    /**
+     * Time of a lookup entry in seconds, the first field of CoreProtect's result rows.
+     */
+    private static long extractTime(String[] entry) {
+        try {
+            return entry.length > 0 ? Long.parseLong(entry[0]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Action ID of a lookup entry, the eighth field of CoreProtect's result rows.
+     */
+    private static int extractAction(String[] entry) {
+        try {
+            return entry.length > 7 ? Integer.parseInt(entry[7]) : BlockPlacement.ACTION_UNKNOWN;
+        } catch (NumberFormatException e) {
+            return BlockPlacement.ACTION_UNKNOWN;
+        }
     }
 
     private String extractUsername(String[] entry) {
@@ -122,39 +198,21 @@ public class CoreProtectIntegration {
     }
 
     /**
-     * Applies config-based filters for player-placed-only, age bounds, ignore list.
+     * Applies config-based filters for player-placed-only, age bounds, ignore list to a looked-up placement.
      */
-    public boolean matchesFilters(Block block, String placer) {
+    public boolean matchesFilters(BlockPlacement placement) {
         if (!enabled) return true; // No filtering if CP disabled
-        if (placer == null) return false; // Natural/admin rejected if filtering enabled
-
-        boolean playerPlacedOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", true);
+        if (placement == null || placement.getPlacer() == null) return false; // Natural/admin rejected if filtering enabled
         if (!playerPlacedOnly) return true;
 
-        int minAgeDays = plugin.getConfig().getInt("coreprotect.min-age-days", 0);
-        int maxAgeDays = plugin.getConfig().getInt("coreprotect.max-age-days", 0);
-        try {
-            if (minAgeDays > 0 || maxAgeDays > 0) {
-                Method blockLookup = coreProtectAPI.getClass().getMethod("blockLookup", org.bukkit.block.Block.class, int.class);
-                Object result = blockLookup.invoke(coreProtectAPI, block, 0);
-                @SuppressWarnings("unchecked")
-                List<String[]> data = (List<String[]>) result;
-                if (data != null && !data.isEmpty()) {
-                    String[] entry = data.get(0);
-                    long timestamp = Long.parseLong(entry[5]) * 1000L;
-                    long ageDays = (System.currentTimeMillis() - timestamp) / (1000L * 60 * 60 * 24);
-                    if (minAgeDays > 0 && ageDays < minAgeDays) return false;
-                    if (maxAgeDays > 0 && ageDays > maxAgeDays) return false;
-                }
-            }
-        } catch (Exception e) {
-            plugin.getLogger().log(Level.FINE, "CoreProtect age check failed", e);
+        if ((minAgeDays > 0 || maxAgeDays > 0) && placement.getTime() > 0) {
+            long timestamp = placement.getTime() * 1000L;
+            long ageDays = (System.currentTimeMillis() - timestamp) / (1000L * 60 * 60 * 24);
+            if (minAgeDays > 0 && ageDays < minAgeDays) return false;
+            if (maxAgeDays > 0 && ageDays > maxAgeDays) return false;
         }
 
-        List<String> ignorePlayers = plugin.getConfig().getStringList("coreprotect.ignore-players");
-        if (ignorePlayers != null) {
-            if (ignorePlayers.contains(placer) || ignorePlayers.contains("#" + placer.toLowerCase())) return false;
-        }
-        return true;
+        String placer = placement.getPlacer();
+        return !ignorePlayers.contains(placer) && !ignorePlayers.contains("#" + placer.toLowerCase());
     }
 }
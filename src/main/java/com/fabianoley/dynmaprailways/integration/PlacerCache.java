@@ -0,0 +1,209 @@
+package com.fabianoley.dynmaprailways.integration;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Remembers who placed each looked-up rail block, so rescans only ask CoreProtect about new or changed rails.
+ * Blocks without a player placer are remembered too. Blocks CoreProtect has no rows for are only remembered for a
+ * while: CoreProtect logs with a delay, so a rail looked up right after it was placed has no row yet.
+ * Each world keeps its most recently used entries in memory and in a file under placers/. Entries are dropped
+ * when the rail at their block is placed or broken.
+ * Has no server dependency. Thread-safe.
+ */
+public class PlacerCache {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+    public static final String CACHE_FOLDER = "placers";
+    private static final int MAGIC = 0x52504C43; // "RPLC"
+    private static final int VERSION = 3;
+
+    private static class WorldCache extends LinkedHashMap<Long, BlockPlacement> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        boolean dirty;
+
+        WorldCache(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BlockPlacement> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private final File folder;
+    private final int maxEntries;
+    private final long emptyTtlSeconds;
+    private final Map<String, WorldCache> worlds = new HashMap<>();
+    private final Map<String, String> placerNames = new HashMap<>(); // one String per player name
+    private final Object saveLock = new Object(); // one save at a time, without blocking lookups
+
+    /**
+     * @param maxEntries Most entries kept per world
+     * @param emptyTtlSeconds How long a lookup that found no rows is remembered
+     */
+    public PlacerCache(File dataFolder, int maxEntries, long emptyTtlSeconds) {
+        this.folder = new File(dataFolder, CACHE_FOLDER);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.emptyTtlSeconds = Math.max(0, emptyTtlSeconds);
+    }
+
+    /**
+     * @return The remembered placement of a block, or null if it was not looked up yet or the lookup found
+     *         no rows long enough ago that CoreProtect may have logged the block since
+     */
+    public synchronized BlockPlacement get(String worldName, int x, int y, int z) {
+        WorldCache cache = world(worldName);
+        long key = BlockKey.pack(x, y, z);
+        BlockPlacement placement = cache.get(key);
+        if (placement != null && placement.getAction() == BlockPlacement.ACTION_NONE
+                && System.currentTimeMillis() / 1000 - placement.getTime() >= emptyTtlSeconds) {
+            cache.remove(key);
+            cache.dirty = true;
+            return null;
+        }
+        return placement;
+    }
+
+    /**
+     * Remember the placement of a block.
+     * @param placer The player who placed it, or null if none did
+     */
+    public synchronized BlockPlacement put(String worldName, int x, int y, int z, String placer, long time, int action) {
+        BlockPlacement placement = new BlockPlacement(placer != null ? placerNames.computeIfAbsent(placer, p -> p) : null, time, action);
+        WorldCache cache = world(worldName);
+        cache.put(BlockKey.pack(x, y, z), placement);
+        cache.dirty = true;
+        return placement;
+    }
+
+    /**
+     * Forget a block after the rail there was placed or broken.
+     */
+    public synchronized void invalidate(String worldName, int x, int y, int z) {
+        WorldCache cache = world(worldName);
+        if (cache.remove(BlockKey.pack(x, y, z)) != null) {
+            cache.dirty = true;
+        }
+    }
+
+    private WorldCache world(String worldName) {
+        return worlds.computeIfAbsent(worldName, this::load);
+    }
+
+    private File fileFor(String worldName) {
+        return new File(folder, worldName + ".bin");
+    }
+
+    private WorldCache load(String worldName) {
+        WorldCache cache = new WorldCache(maxEntries);
+        File file = fileFor(worldName);
+        if (!file.isFile()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            int version;
+            if (in.readInt() != MAGIC || ((version = in.readInt()) != VERSION && version != 2)) {
+                logger.warning("Ignoring placer cache " + file.getName() + " with unknown format.");
+                return cache;
+            }
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = placerNames.computeIfAbsent(in.readUTF(), p -> p);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                int name = in.readInt();
+                long time = in.readLong();
+                int action = in.readByte();
+                if (version == 2 && name < 0 && action == BlockPlacement.ACTION_UNKNOWN) {
+                    continue; // a lookup that found no rows, which version 2 kept for good
+                }
+                cache.put(key, new BlockPlacement(name < 0 ? null : names[name], time, action));
+            }
+            logger.info("Loaded placer cache for " + worldName + " (" + cache.size() + " blocks).");
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            logger.warning("Failed to load placer cache " + file.getName() + ", starting empty: " + e.getMessage());
+            cache.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Write every world cache that changed since it was last saved.
+     */
+    public void save() {
+        synchronized (saveLock) {
+            saveChanged();
+        }
+    }
+
+    private void saveChanged() {
+        Map<String, List<Map.Entry<Long, BlockPlacement>>> changed = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, WorldCache> entry : worlds.entrySet()) {
+                if (entry.getValue().dirty) {
+                    entry.getValue().dirty = false;
+                    List<Map.Entry<Long, BlockPlacement>> entries = new ArrayList<>(entry.getValue().size());
+                    for (Map.Entry<Long, BlockPlacement> placement : entry.getValue().entrySet()) {
+                        entries.add(new AbstractMap.SimpleImmutableEntry<>(placement));
+                    }
+                    changed.put(entry.getKey(), entries);
+                }
+            }
+        }
+        for (Map.Entry<String, List<Map.Entry<Long, BlockPlacement>>> entry : changed.entrySet()) {
+            try {
+                write(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                synchronized (this) {
+                    world(entry.getKey()).dirty = true;
+                }
+                logger.warning("Failed to save placer cache for " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(String worldName, List<Map.Entry<Long, BlockPlacement>> entries) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        // Entries go from least to most recently used, so loading them in order restores the LRU order
+        Map<String, Integer> nameIndex = new LinkedHashMap<>();
+        for (Map.Entry<Long, BlockPlacement> entry : entries) {
+            if (entry.getValue().getPlacer() != null) {
+                nameIndex.putIfAbsent(entry.getValue().getPlacer(), nameIndex.size());
+            }
+        }
+        File file = fileFor(worldName);
+        File temp = new File(folder, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nameIndex.size());
+            for (String name : nameIndex.keySet()) {
+                out.writeUTF(name);
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, BlockPlacement> entry : entries) {
+                out.writeLong(entry.getKey());
+                BlockPlacement placement = entry.getValue();
+                out.writeInt(placement.getPlacer() != null ? nameIndex.get(placement.getPlacer()) : -1);
+                out.writeLong(placement.getTime());
+                out.writeByte(placement.getAction());
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
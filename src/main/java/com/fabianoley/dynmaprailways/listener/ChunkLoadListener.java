@@ -0,0 +1,25 @@
+package com.fabianoley.dynmaprailways.listener;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+
+import com.fabianoley.dynmaprailways.scan.OpportunisticScanner;
+
+/**
+ * Hands every loaded chunk to the opportunistic scanner, which decides whether it needs scanning.
+ */
+public class ChunkLoadListener implements Listener {
+
+    private final OpportunisticScanner scanner;
+
+    public ChunkLoadListener(OpportunisticScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        scanner.enqueue(event.getChunk());
+    }
+}
@@ -0,0 +1,39 @@
+package com.fabianoley.dynmaprailways.listener;
+
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+
+import com.fabianoley.dynmaprailways.integration.PlacerCache;
+import com.fabianoley.dynmaprailways.scan.RailScanner;
+
+/**
+ * Drops the remembered placer of rail blocks that are placed or broken, so the next lookup asks CoreProtect again.
+ */
+public class PlacerCacheListener implements Listener {
+
+    private final PlacerCache cache;
+
+    public PlacerCacheListener(PlacerCache cache) {
+        this.cache = cache;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidate(event.getBlockPlaced());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    private void invalidate(Block block) {
+        if (RailScanner.isRailMaterial(block.getType())) {
+            cache.invalidate(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.fabianoley.dynmaprailways.listener;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+
+import com.fabianoley.dynmaprailways.scan.LiveRailIndex;
+import com.fabianoley.dynmaprailways.scan.RailScanner;
+import java.util.List;
+
+/**
+ * Reports block changes that add, remove or move rails to the live rail index.
+ * Rails placed or broken by players are passed on as single-block edits; for everything else handlers
+ * only check block types and mark chunks dirty, and the rescan happens later off the event path.
+ */
+public class RailChangeListener implements Listener {
+
+    private final LiveRailIndex index;
+
+    public RailChangeListener(LiveRailIndex index) {
+        this.index = index;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        Block block = event.getBlockPlaced();
+        if (isRail(block)) {
+            index.railPlaced(block.getWorld(), block.getX(), block.getY(), block.getZ(), event.getPlayer().getName());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        Block block = event.getBlock();
+        if (isRail(block)) {
+            index.railRemoved(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        }
+        // Breaking the block under a rail drops the rail too
+        if (isRail(block.getRelative(BlockFace.UP))) {
+            mark(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        // Fires very often; only rails that lost their support are of interest, shape updates are not
+        Block block = event.getBlock();
+        if (isRail(block) && !block.getRelative(BlockFace.DOWN).getType().isSolid()) {
+            mark(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        markMoved(event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        markMoved(event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        markDestroyed(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        markDestroyed(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        // Fires for every step of flowing water and lava; only flows that wash a rail away are of interest
+        Block block = event.getToBlock();
+        if (isRail(block)) {
+            mark(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        // Mobs breaking rails, falling blocks landing on them or sand falling out from under them
+        Block block = event.getBlock();
+        if (isRailOrSupport(block) || RailScanner.isRailMaterial(event.getTo())) {
+            mark(block);
+        }
+    }
+
+    private void markMoved(List<Block> blocks, BlockFace direction) {
+        for (Block block : blocks) {
+            if (isRailOrSupport(block)) {
+                mark(block);
+                // Moved blocks may cross into the next chunk; the direction is the same for pushes and pulls
+                mark(block.getRelative(direction));
+                mark(block.getRelative(direction.getOppositeFace()));
+            }
+        }
+    }
+
+    private void markDestroyed(List<Block> blocks) {
+        for (Block block : blocks) {
+            if (isRailOrSupport(block)) {
+                mark(block);
+            }
+        }
+    }
+
+    private void mark(Block block) {
+        index.markDirty(block.getWorld(), block.getX(), block.getZ());
+    }
+
+    private static boolean isRail(Block block) {
+        return RailScanner.isRailMaterial(block.getType());
+    }
+
+    private static boolean isRailOrSupport(Block block) {
+        return isRail(block) || isRail(block.getRelative(BlockFace.UP));
+    }
+}
@@ -1,7 +1,10 @@
 package com.fabianoley.dynmaprailways.map;
 
 import com.fabianoley.dynmaprailways.DynmapRailways;
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailGraph;
 import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailNetwork;
 import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
 import com.fabianoley.dynmaprailways.station.Station;
 import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
@@ -183,12 +186,11 @@ public class RailwayMapRenderer {
                 logger.info("[DEBUG] Found " + railLines.size() + " rail lines to render");
             }
             
-            boolean playerPlacedOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", true);
             for (RailLine line : railLines.values()) {
                 if (isDebugEnabled()) {
                     logger.info("[DEBUG] Processing line: " + line.getId() + " with " + line.getBlockCount() + " blocks, active=" + line.isActive());
                 }
-                if (line.isActive() && line.getBlockCount() > 1 && (!playerPlacedOnly || line.getCreatedBy() != null)) {
+                if (shouldRender(line)) {
                     renderRailLine(line);
                     if (isDebugEnabled()) {
                         logger.info("[DEBUG] Rendered line: " + line.getId());
@@ -196,7 +198,8 @@ public class RailwayMapRenderer {
                 }
             }
             
-            // Render stations
+            // Render stations; every one is redrawn, so pending line changes are covered
+            dataStorage.drainChangedStations();
             Map<String, Station> stations = dataStorage.getStations();
             if (isDebugEnabled()) {
                 logger.info("[DEBUG] Found " + stations.size() + " stations to render");
@@ -223,6 +226,54 @@ public class RailwayMapRenderer {
         }
     }
     
+    /**
+     * Update the markers of individual lines without redrawing the whole map.
+     * @param removedIds Lines whose markers should be deleted
+     * @param changedLines Lines to redraw from their stored state
+     */
+    public void updateLineMarkers(Collection<String> removedIds, Collection<RailLine> changedLines) {
+        if (railwayMarkerSet == null) {
+            return;
+        }
+        try {
+            for (String id : removedIds) {
+                deleteLineMarker(id);
+            }
+            for (RailLine changed : changedLines) {
+                deleteLineMarker(changed.getId());
+                // Lines below the minimum length are not stored
+                RailLine line = dataStorage.getRailLine(changed.getId());
+                if (line != null && shouldRender(line)) {
+                    renderRailLine(line);
+                }
+            }
+            // Stations list the lines serving them
+            for (String stationId : dataStorage.drainChangedStations()) {
+                Station station = dataStorage.getStation(stationId);
+                if (station != null && station.isActive()) {
+                    renderStation(station);
+                }
+            }
+        } catch (Exception e) {
+            logger.warning("Error updating line markers: " + e.getMessage());
+        }
+    }
+    
+    private void deleteLineMarker(String lineId) {
+        PolyLineMarker marker = railwayMarkerSet.findPolyLineMarker(lineId);
+        if (marker != null) {
+            marker.deleteMarker();
+        }
+    }
+    
+    /**
+     * Check whether a line is drawn on the map.
+     */
+    private boolean shouldRender(RailLine line) {
+        boolean playerPlacedOnly = plugin.getConfig().getBoolean("coreprotect.player-placed-only", true);
+        return line.isActive() && line.getBlockCount() > 1 && (!playerPlacedOnly || line.getCreatedBy() != null);
+    }
+    
     /**
      * Clear all markers from a set.
      */
@@ -253,8 +304,12 @@ public class RailwayMapRenderer {
             return;
         }
 
-        // --- Path-walking logic: order blocks as a path ---
-        List<RailBlock> ordered = walkRailPath(blocks);
+        // --- Order blocks as a path: along the line's segments if a scan recorded them, else by walking the blocks ---
+        String lineWorld = blocks.iterator().next().world;
+        List<RailBlock> ordered = segmentPath(line, lineWorld);
+        if (ordered == null) {
+            ordered = walkRailPath(line.getGraph(), lineWorld);
+        }
         if (ordered.size() < 2) {
             logger.fine("[renderRailLine] Ordered path too short: " + line.getId());
             return;
@@ -352,60 +407,89 @@ public class RailwayMapRenderer {
     
 
     /**
-     * Walk the rail cluster as a path, returning an ordered list of blocks.
-     * This finds an endpoint and does a DFS walk.
+     * Order a line's blocks by joining its network segments into runs, straight through junctions.
+     * @return The ordered blocks, or null if the line has no segments or they are not in the stored network
      */
-    private List<RailBlock> walkRailPath(Set<RailBlock> blocks) {
-        if (blocks.isEmpty()) return Collections.emptyList();
-        // Build adjacency map with vertical fallback (y±1); no diagonals to keep paths axis-aligned
-        Map<RailBlock, List<RailBlock>> adj = new HashMap<>();
-        for (RailBlock b : blocks) {
-            List<RailBlock> neighbors = new ArrayList<>();
-            int[][] dirs = new int[][]{{1,0},{-1,0},{0,1},{0,-1}};
-            for (int[] d : dirs) {
-                int nx = b.x + d[0];
-                int nz = b.z + d[1];
-                // Try same Y first
-                RailBlock nSame = new RailBlock(nx, b.y, nz, b.world);
-                if (blocks.contains(nSame)) {
-                    neighbors.add(nSame);
-                    continue;
-                }
-                // If not found, try one block above (ascending)
-                RailBlock nUp = new RailBlock(nx, b.y + 1, nz, b.world);
-                if (blocks.contains(nUp)) {
-                    neighbors.add(nUp);
-                    continue;
-                }
-                // If still not found, try one block below (descending)
-                RailBlock nDown = new RailBlock(nx, b.y - 1, nz, b.world);
-                if (blocks.contains(nDown)) {
-                    neighbors.add(nDown);
-                }
+    private List<RailBlock> segmentPath(RailLine line, String world) {
+        List<Integer> segmentIds = line.getSegmentIds();
+        RailNetwork network = dataStorage.getNetwork(world);
+        if (segmentIds == null || segmentIds.isEmpty() || network == null) {
+            return null;
+        }
+        List<RailNetwork.Segment> segments = new ArrayList<>(segmentIds.size());
+        for (int id : segmentIds) {
+            RailNetwork.Segment segment = network.getSegment(id);
+            if (segment == null) return null;
+            segments.add(segment);
+        }
+        List<RailBlock> path = new ArrayList<>();
+        for (long[] run : RailNetwork.assembleRuns(segments)) {
+            for (long key : run) {
+                path.add(BlockKey.toBlock(key, world));
             }
-            adj.put(b, neighbors);
         }
+        return path;
+    }
+
+    /**
+     * Walk the rail cluster as a path, returning an ordered list of blocks.
+     * This finds an endpoint and does a DFS walk over the line's cached graph.
+     */
+    private List<RailBlock> walkRailPath(RailGraph graph, String world) {
+        int nodeCount = graph.size();
+        if (nodeCount == 0) return Collections.emptyList();
         // Find endpoint (degree 1), or any block
-        RailBlock start = null;
-        for (RailBlock b : blocks) {
-            if (adj.get(b).size() == 1) { start = b; break; }
+        int start = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (pathDegree(graph, node) == 1) { start = node; break; }
         }
-        if (start == null) start = blocks.iterator().next();
-        // DFS walk
+        // DFS walk with an explicit stack, so long lines cannot overflow the call stack
         List<RailBlock> path = new ArrayList<>();
-        Set<RailBlock> visited = new HashSet<>();
-        dfsWalk(start, null, adj, visited, path);
+        boolean[] visited = new boolean[nodeCount];
+        int[] stack = new int[nodeCount];
+        int[] nextEdge = new int[nodeCount];
+        int depth = 0;
+        stack[depth++] = start;
+        visited[start] = true;
+        path.add(BlockKey.toBlock(graph.key(start), world));
+        nextEdge[start] = graph.edgeStart(start);
+        while (depth > 0) {
+            int curr = stack[depth - 1];
+            int child = -1;
+            while (nextEdge[curr] < graph.edgeEnd(curr)) {
+                int e = nextEdge[curr]++;
+                int n = graph.neighbor(e);
+                if (isPathEdge(graph, curr, e) && !visited[n]) { child = n; break; }
+            }
+            if (child < 0) {
+                depth--;
+                continue;
+            }
+            visited[child] = true;
+            path.add(BlockKey.toBlock(graph.key(child), world));
+            nextEdge[child] = graph.edgeStart(child);
+            stack[depth++] = child;
+        }
         return path;
     }
 
-    private void dfsWalk(RailBlock curr, RailBlock parent, Map<RailBlock, List<RailBlock>> adj, Set<RailBlock> visited, List<RailBlock> path) {
-        visited.add(curr);
-        path.add(curr);
-        for (RailBlock n : adj.get(curr)) {
-            if (!n.equals(parent) && !visited.contains(n)) {
-                dfsWalk(n, curr, adj, visited, path);
-            }
+    /**
+     * Paths keep axis-aligned and follow one neighbor per direction: same Y first, then one block above, then below.
+     * Graph edges are ordered that way within each direction, so only the first edge of a direction counts.
+     */
+    private static boolean isPathEdge(RailGraph graph, int node, int edge) {
+        if (edge == graph.edgeStart(node)) return true;
+        long key = graph.key(graph.neighbor(edge));
+        long previous = graph.key(graph.neighbor(edge - 1));
+        return BlockKey.x(key) != BlockKey.x(previous) || BlockKey.z(key) != BlockKey.z(previous);
+    }
+
+    private static int pathDegree(RailGraph graph, int node) {
+        int degree = 0;
+        for (int e = graph.edgeStart(node); e < graph.edgeEnd(node); e++) {
+            if (isPathEdge(graph, node, e)) degree++;
         }
+        return degree;
     }
     
     /**
@@ -445,10 +529,29 @@ public class RailwayMapRenderer {
         if (marker != null) {
             marker.setFillStyle(fillOpacity, parseColorToInt(fillColorHex));
             marker.setLineStyle(borderWidth, borderOpacity, parseColorToInt(borderColorHex));
+            marker.setDescription(stationDescription(station));
             logger.fine("Rendered station: " + station.getName());
         }
     }
     
+    /**
+     * HTML popup of a station: its name and the lines serving it, each in its colour.
+     */
+    private String stationDescription(Station station) {
+        StringBuilder description = new StringBuilder("<b>").append(escapeHtml(station.getName())).append("</b>");
+        for (String lineId : dataStorage.getStationLines(station.getId())) {
+            RailLine line = dataStorage.getRailLine(lineId);
+            if (line == null) continue;
+            description.append("<br/><span style=\"color:").append(escapeHtml(line.getColor())).append("\">&#9632;</span> ")
+                    .append(escapeHtml(line.getName()));
+        }
+        return description.toString();
+    }
+    
+    private static String escapeHtml(String text) {
+        return text == null ? "" : text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+    
     /**
      * Convert hex color to int.
      */
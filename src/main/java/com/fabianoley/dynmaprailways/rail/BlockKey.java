@@ -0,0 +1,44 @@
+package com.fabianoley.dynmaprailways.rail;
+
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+
+/**
+ * Packs block coordinates of one world into a single long: 26 bits of X, 26 bits of Z and 12 bits of Y.
+ * Covers X and Z within ±33,554,431 (past the world border) and Y within -2048..2047.
+ */
+public final class BlockKey {
+
+    private BlockKey() {
+    }
+
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    public static long of(RailBlock block) {
+        return pack(block.x, block.y, block.z);
+    }
+
+    public static int x(long key) {
+        return (int) (key >> 38);
+    }
+
+    public static int y(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    public static int z(long key) {
+        return (int) (key << 26 >> 38);
+    }
+
+    /**
+     * Key of the block at the given offset from another block.
+     */
+    public static long offset(long key, int dx, int dy, int dz) {
+        return pack(x(key) + dx, y(key) + dy, z(key) + dz);
+    }
+
+    public static RailBlock toBlock(long key, String worldName) {
+        return new RailBlock(x(key), y(key), z(key), worldName);
+    }
+}
@@ -0,0 +1,71 @@
+package com.fabianoley.dynmaprailways.rail;
+
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * MinHash signatures of rail lines, for estimating how much two lines overlap without comparing their blocks.
+ * Lines are reduced to the 4x4 block columns they pass through, so a line shifted by a block or two
+ * still shares most of its columns with the original.
+ */
+public final class MinHash {
+
+    /** Hash functions per signature. */
+    public static final int SIZE = 64;
+    private static final int CELL_SHIFT = 2;
+    private static final long[] SEEDS = new long[SIZE];
+
+    static {
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < SIZE; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            SEEDS[i] = mix(seed);
+        }
+    }
+
+    private MinHash() {
+    }
+
+    /**
+     * Signature of a set of rail blocks: per hash function, the lowest hash of any column.
+     */
+    public static long[] signature(Collection<RailBlock> blocks) {
+        LongHashSet cells = new LongHashSet(blocks.size());
+        for (RailBlock block : blocks) {
+            cells.add(BlockKey.pack(block.x >> CELL_SHIFT, 0, block.z >> CELL_SHIFT));
+        }
+        long[] signature = new long[SIZE];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        cells.forEach(cell -> {
+            for (int i = 0; i < SIZE; i++) {
+                long h = mix(cell ^ SEEDS[i]);
+                if (h < signature[i]) {
+                    signature[i] = h;
+                }
+            }
+        });
+        return signature;
+    }
+
+    /**
+     * Estimated Jaccard similarity of the column sets behind two signatures.
+     */
+    public static double similarity(long[] a, long[] b) {
+        int same = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (a[i] == b[i]) same++;
+        }
+        return (double) same / SIZE;
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
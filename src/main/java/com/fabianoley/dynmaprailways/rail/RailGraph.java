@@ -0,0 +1,156 @@
+package com.fabianoley.dynmaprailways.rail;
+
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongIntHashMap;
+import com.fabianoley.dynmaprailways.util.ParallelRange;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Adjacency of a set of rails in compressed sparse row form.
+ * Nodes are numbered 0..n-1 in ascending {@link BlockKey} order; the neighbors of node i are
+ * {@code neighbor(e)} for e in [{@code edgeStart(i)}, {@code edgeEnd(i)}).
+ * Two rails are adjacent when they are one block apart in X or Z and at most one block apart in Y.
+ * Neighbors are ordered by direction (+X, -X, +Z, -Z) and within a direction by level (same, up, down).
+ * Immutable once built, so it can be shared between threads.
+ */
+public final class RailGraph {
+
+    /** XZ steps to the four cardinal neighbours, each probed at the same level, one up and one down. */
+    private static final int[][] DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    private static final int[] LEVELS = {0, 1, -1};
+    /** Nodes per parallel build task; smaller graphs are built on the calling thread. */
+    private static final int PARALLEL_GRAIN = 16384;
+
+    private final long[] keys;
+    private final int[] edgeOffsets;
+    private final int[] edges;
+
+    private RailGraph(long[] keys, int[] edgeOffsets, int[] edges) {
+        this.keys = keys;
+        this.edgeOffsets = edgeOffsets;
+        this.edges = edges;
+    }
+
+    /**
+     * Build the graph of a set of packed rail keys.
+     */
+    public static RailGraph build(LongHashSet rails) {
+        return build(rails, null);
+    }
+
+    /**
+     * Build the graph of a set of packed rail keys, probing neighbors on a fork/join pool.
+     * @param pool Pool to build on, or null to build on the calling thread
+     */
+    public static RailGraph build(LongHashSet rails, ForkJoinPool pool) {
+        return build(rails.toArray(), pool);
+    }
+
+    /**
+     * Build the graph of a collection of rail blocks. Blocks are assumed to share one world.
+     */
+    public static RailGraph build(Collection<RailBlock> blocks) {
+        long[] keys = new long[blocks.size()];
+        int n = 0;
+        for (RailBlock block : blocks) {
+            keys[n++] = BlockKey.of(block);
+        }
+        return build(keys, null);
+    }
+
+    private static RailGraph build(long[] keys, ForkJoinPool pool) {
+        int n = keys.length;
+        int grain = pool == null ? Integer.MAX_VALUE : PARALLEL_GRAIN;
+        if (pool == null || n <= PARALLEL_GRAIN) {
+            Arrays.sort(keys);
+        } else {
+            Arrays.parallelSort(keys);
+        }
+        LongIntHashMap index = new LongIntHashMap(n);
+        for (int i = 0; i < n; i++) {
+            index.put(keys[i], i);
+        }
+
+        // Count each node's edges, turn the counts into offsets, then fill the edges in place
+        int[] edgeOffsets = new int[n + 1];
+        ParallelRange.forRange(pool, 0, n, grain, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                edgeOffsets[i + 1] = probe(keys[i], index, null, 0);
+            }
+        });
+        for (int i = 0; i < n; i++) {
+            edgeOffsets[i + 1] += edgeOffsets[i];
+        }
+        int[] edges = new int[edgeOffsets[n]];
+        ParallelRange.forRange(pool, 0, n, grain, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                probe(keys[i], index, edges, edgeOffsets[i]);
+            }
+        });
+        return new RailGraph(keys, edgeOffsets, edges);
+    }
+
+    /**
+     * Look up the neighbors of a rail, writing their nodes from the given position when out is non-null.
+     * @return Number of neighbors (at most 12)
+     */
+    private static int probe(long key, LongIntHashMap index, int[] out, int position) {
+        int x = BlockKey.x(key);
+        int y = BlockKey.y(key);
+        int z = BlockKey.z(key);
+        int count = 0;
+        for (int[] d : DIRECTIONS) {
+            for (int dy : LEVELS) {
+                int neighbor = index.get(BlockKey.pack(x + d[0], y + dy, z + d[1]));
+                if (neighbor >= 0) {
+                    if (out != null) {
+                        out[position + count] = neighbor;
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Packed block key of a node.
+     */
+    public long key(int node) {
+        return keys[node];
+    }
+
+    /**
+     * Node of a packed block key.
+     * @return The node index, or -1 if the block is not part of the graph
+     */
+    public int indexOf(long key) {
+        int node = Arrays.binarySearch(keys, key);
+        return node >= 0 ? node : -1;
+    }
+
+    public int degree(int node) {
+        return edgeOffsets[node + 1] - edgeOffsets[node];
+    }
+
+    public int edgeStart(int node) {
+        return edgeOffsets[node];
+    }
+
+    public int edgeEnd(int node) {
+        return edgeOffsets[node + 1];
+    }
+
+    /**
+     * Target node of an edge.
+     */
+    public int neighbor(int edge) {
+        return edges[edge];
+    }
+}
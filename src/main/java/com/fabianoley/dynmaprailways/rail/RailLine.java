@@ -13,6 +13,10 @@ public class RailLine {
     private String createdBy;
     private long createdAt;
     private boolean isActive;
+    private List<Integer> segmentIds; // Segments of the world's RailNetwork, dropped when blocks change
+    private transient volatile RailGraph graph; // Built on first use, dropped when blocks change
+    private transient volatile long[] signature; // MinHash of the blocks, likewise
+    private transient int version; // Bumped by every change, so storage can tell lines changed in place
     
     public RailLine(String id, String color) {
         this.id = id;
@@ -31,18 +35,78 @@ public class RailLine {
     public String getCreatedBy() { return createdBy; }
     public long getCreatedAt() { return createdAt; }
     public boolean isActive() { return isActive; }
+    public List<Integer> getSegmentIds() { return segmentIds != null ? new ArrayList<>(segmentIds) : null; }
     
-    public void setName(String name) { this.name = name; }
-    public void setColor(String color) { this.color = color; }
-    public void setCreatedBy(String createdBy) { this.createdBy = createdBy; }
-    public void setActive(boolean active) { this.isActive = active; }
+    public int getVersion() { return version; }
+    
+    /**
+     * Copy this line with its blocks, so it can be changed without touching a line other threads may be reading.
+     */
+    public RailLine copy() {
+        RailLine copy = new RailLine(id, color);
+        copy.name = name;
+        copy.blocks.addAll(blocks);
+        copy.createdBy = createdBy;
+        copy.createdAt = createdAt;
+        copy.isActive = isActive;
+        copy.segmentIds = segmentIds != null ? new ArrayList<>(segmentIds) : null;
+        // The caches are never changed once built, only dropped
+        copy.graph = graph;
+        copy.signature = signature;
+        return copy;
+    }
+    
+    public void setName(String name) { this.name = name; version++; }
+    public void setColor(String color) { this.color = color; version++; }
+    public void setCreatedBy(String createdBy) { this.createdBy = createdBy; version++; }
+    public void setCreatedAt(long createdAt) { this.createdAt = createdAt; version++; }
+    public void setActive(boolean active) { this.isActive = active; version++; }
+    
+    public void setSegmentIds(List<Integer> segmentIds) {
+        if (!Objects.equals(this.segmentIds, segmentIds)) {
+            this.segmentIds = segmentIds != null ? new ArrayList<>(segmentIds) : null;
+            version++;
+        }
+    }
     
     public void addBlock(RailBlock block) {
         blocks.add(block);
+        graph = null;
+        signature = null;
+        segmentIds = null;
+        version++;
     }
     
     public void addBlocks(Collection<RailBlock> newBlocks) {
         blocks.addAll(newBlocks);
+        graph = null;
+        signature = null;
+        segmentIds = null;
+        version++;
+    }
+    
+    /**
+     * Get the MinHash signature of this line's blocks, computed once until the blocks change.
+     */
+    public long[] getSignature() {
+        long[] current = signature;
+        if (current == null) {
+            current = MinHash.signature(blocks);
+            signature = current;
+        }
+        return current;
+    }
+    
+    /**
+     * Get the adjacency graph of this line's blocks, building it once until the blocks change.
+     */
+    public RailGraph getGraph() {
+        RailGraph current = graph;
+        if (current == null) {
+            current = RailGraph.build(blocks);
+            graph = current;
+        }
+        return current;
     }
     
     public int getBlockCount() {
@@ -87,7 +151,12 @@ public class RailLine {
      * Remove a block from this line.
      */
     public void removeBlock(RailBlock block) {
-        blocks.remove(block);
+        if (blocks.remove(block)) {
+            graph = null;
+            signature = null;
+            segmentIds = null;
+            version++;
+        }
     }
     
     /**
@@ -142,7 +211,9 @@ public class RailLine {
         
         @Override
         public int hashCode() {
-            return (x * 31 + y) * 31 + z;
+            // Spread nearby coordinates apart and include the world, which equals() compares too
+            int h = x * 0x9E3779B1 ^ z * 0x85EBCA6B ^ y * 0xC2B2AE35;
+            return 31 * (h ^ (h >>> 16)) + Objects.hashCode(world);
         }
     }
 }
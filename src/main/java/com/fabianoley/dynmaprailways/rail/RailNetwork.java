@@ -0,0 +1,277 @@
+package com.fabianoley.dynmaprailways.rail;
+
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongIntHashMap;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Topology of the rails of one world: junctions, and segments between them.
+ * A segment is the ordered run of rails from one junction or track end to the next, both included,
+ * so a junction rail is shared by every segment meeting there. Loops without a junction are closed segments.
+ * Junctions are rails with three or more neighbors, as in line tracing.
+ * Lines refer to their segments by ID, so consumers can work on a few segments instead of every block.
+ * Segment IDs number the segments of one build only and every rebuild renumbers them, so they point lines at
+ * the current network but do not identify track from one scan to the next.
+ */
+public class RailNetwork {
+
+    private final String world;
+    private final long[] junctions; // packed block keys
+    private final List<Segment> segments;
+    private transient Map<Integer, Segment> segmentsById;
+
+    public RailNetwork(String world, long[] junctions, List<Segment> segments) {
+        this.world = world;
+        this.junctions = junctions;
+        this.segments = segments;
+    }
+
+    /**
+     * An ordered run of rails between two junctions or track ends.
+     */
+    public static class Segment {
+        private final int id;
+        private final long[] blocks; // packed block keys in track order
+        private final boolean closed;
+
+        public Segment(int id, long[] blocks, boolean closed) {
+            this.id = id;
+            this.blocks = blocks;
+            this.closed = closed;
+        }
+
+        public int getId() { return id; }
+        public boolean isClosed() { return closed; }
+        public int getLength() { return blocks.length; }
+        public long getBlock(int index) { return blocks[index]; }
+        public long getStart() { return blocks[0]; }
+        public long getEnd() { return blocks[blocks.length - 1]; }
+    }
+
+    public String getWorld() { return world; }
+    public int getJunctionCount() { return junctions.length; }
+    public List<Segment> getSegments() { return Collections.unmodifiableList(segments); }
+
+    public Segment getSegment(int id) {
+        Map<Integer, Segment> byId = segmentsById;
+        if (byId == null) {
+            byId = new HashMap<>();
+            for (Segment segment : segments) {
+                byId.put(segment.id, segment);
+            }
+            segmentsById = byId;
+        }
+        return byId.get(id);
+    }
+
+    /**
+     * Build the network of a world's lines and point each line at the segments it runs along.
+     * A segment goes to the line holding most of its inner rails. The given lines may be stored ones and are
+     * never changed: a line whose segments change is replaced in the list by a copy carrying the new segment IDs.
+     * @param lines Lines of the world, replaced in place where their segments change
+     * @param pool Pool to build the graph on, or null to build on the calling thread
+     */
+    public static RailNetwork buildForLines(String world, List<RailLine> lines, ForkJoinPool pool) {
+        int total = 0;
+        for (RailLine line : lines) {
+            total += line.getBlockCount();
+        }
+        LongHashSet rails = new LongHashSet(total);
+        LongIntHashMap owner = new LongIntHashMap(total);
+        for (int i = 0; i < lines.size(); i++) {
+            for (RailBlock block : lines.get(i).getBlocks()) {
+                if (!block.world.equals(world)) continue;
+                long key = BlockKey.of(block);
+                rails.add(key);
+                owner.put(key, i);
+            }
+        }
+        RailNetwork network = build(world, RailGraph.build(rails, pool));
+
+        List<List<Integer>> segmentIds = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            segmentIds.add(new ArrayList<>());
+        }
+        Map<Integer, Integer> votes = new HashMap<>();
+        for (Segment segment : network.segments) {
+            votes.clear();
+            int from = segment.blocks.length > 2 ? 1 : 0;
+            int to = segment.blocks.length > 2 ? segment.blocks.length - 1 : segment.blocks.length;
+            for (int b = from; b < to; b++) {
+                votes.merge(owner.get(segment.blocks[b]), 1, Integer::sum);
+            }
+            int best = -1;
+            int bestVotes = 0;
+            for (Map.Entry<Integer, Integer> vote : votes.entrySet()) {
+                if (vote.getValue() > bestVotes) {
+                    best = vote.getKey();
+                    bestVotes = vote.getValue();
+                }
+            }
+            if (best >= 0) {
+                segmentIds.get(best).add(segment.id);
+            }
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            RailLine line = lines.get(i);
+            if (!segmentIds.get(i).equals(line.getSegmentIds())) {
+                RailLine copy = line.copy();
+                copy.setSegmentIds(segmentIds.get(i));
+                lines.set(i, copy);
+            }
+        }
+        return network;
+    }
+
+    /**
+     * Split a rail graph into junctions and segments.
+     */
+    public static RailNetwork build(String world, RailGraph graph) {
+        int nodeCount = graph.size();
+        boolean[] visited = new boolean[nodeCount];
+        List<Segment> segments = new ArrayList<>();
+        List<Long> junctions = new ArrayList<>();
+        long[] run = new long[16];
+
+        // Walk every edge leaving a junction or track end until the next one
+        for (int node = 0; node < nodeCount; node++) {
+            int degree = graph.degree(node);
+            if (degree == 2) continue;
+            if (degree >= 3) {
+                junctions.add(graph.key(node));
+            }
+            if (degree == 0) {
+                segments.add(new Segment(segments.size(), new long[]{graph.key(node)}, false));
+                continue;
+            }
+            for (int e = graph.edgeStart(node); e < graph.edgeEnd(node); e++) {
+                int next = graph.neighbor(e);
+                if (graph.degree(next) == 2 ? visited[next] : next < node) {
+                    continue; // already walked from the other end
+                }
+                int length = 0;
+                run[length++] = graph.key(node);
+                int prev = node;
+                int current = next;
+                while (true) {
+                    if (length == run.length) {
+                        run = Arrays.copyOf(run, run.length * 2);
+                    }
+                    run[length++] = graph.key(current);
+                    if (graph.degree(current) != 2) break;
+                    visited[current] = true;
+                    int following = otherNeighbor(graph, current, prev);
+                    prev = current;
+                    current = following;
+                }
+                segments.add(new Segment(segments.size(), Arrays.copyOf(run, length), false));
+            }
+        }
+
+        // What is left are loops without any junction
+        for (int node = 0; node < nodeCount; node++) {
+            if (visited[node] || graph.degree(node) != 2) continue;
+            int length = 0;
+            int prev = -1;
+            int current = node;
+            while (!visited[current]) {
+                visited[current] = true;
+                if (length == run.length) {
+                    run = Arrays.copyOf(run, run.length * 2);
+                }
+                run[length++] = graph.key(current);
+                int following = prev < 0 ? graph.neighbor(graph.edgeStart(current)) : otherNeighbor(graph, current, prev);
+                prev = current;
+                current = following;
+            }
+            segments.add(new Segment(segments.size(), Arrays.copyOf(run, length), true));
+        }
+
+        long[] junctionKeys = new long[junctions.size()];
+        for (int i = 0; i < junctionKeys.length; i++) {
+            junctionKeys[i] = junctions.get(i);
+        }
+        // Graph nodes come in key order, so junctions are already sorted
+        return new RailNetwork(world, junctionKeys, segments);
+    }
+
+    private static int otherNeighbor(RailGraph graph, int node, int prev) {
+        int first = graph.neighbor(graph.edgeStart(node));
+        return first != prev ? first : graph.neighbor(graph.edgeStart(node) + 1);
+    }
+
+    /**
+     * Order segments into runs of track, continuing through each junction along the straightest segment.
+     * @return Block keys of each run in track order
+     */
+    public static List<long[]> assembleRuns(List<Segment> segments) {
+        Map<Long, List<Segment>> byEnd = new HashMap<>();
+        for (Segment segment : segments) {
+            if (segment.closed) continue;
+            byEnd.computeIfAbsent(segment.getStart(), k -> new ArrayList<>()).add(segment);
+            if (segment.blocks.length > 1) {
+                byEnd.computeIfAbsent(segment.getEnd(), k -> new ArrayList<>()).add(segment);
+            }
+        }
+
+        // Start runs at ends shared by an odd number of segments, then pick up whatever is left
+        List<Segment> starts = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.closed || byEnd.get(segment.getStart()).size() % 2 == 1
+                    || byEnd.get(segment.getEnd()).size() % 2 == 1) {
+                starts.add(segment);
+            }
+        }
+        starts.addAll(segments);
+
+        Set<Segment> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<long[]> runs = new ArrayList<>();
+        for (Segment first : starts) {
+            if (!used.add(first)) continue;
+            if (first.closed) {
+                // Back to the first rail, so the loop is drawn closed
+                long[] loop = Arrays.copyOf(first.blocks, first.blocks.length + 1);
+                loop[first.blocks.length] = first.blocks[0];
+                runs.add(loop);
+                continue;
+            }
+            boolean reversed = first.blocks.length > 1 && byEnd.get(first.getStart()).size() % 2 == 0
+                    && byEnd.get(first.getEnd()).size() % 2 == 1;
+            List<Long> run = new ArrayList<>();
+            appendOriented(run, first.blocks, reversed, false);
+            while (run.size() > 1) {
+                long end = run.get(run.size() - 1);
+                long before = run.get(run.size() - 2);
+                Segment best = null;
+                int bestDot = Integer.MIN_VALUE;
+                for (Segment candidate : byEnd.getOrDefault(end, Collections.emptyList())) {
+                    if (used.contains(candidate) || candidate.blocks.length < 2) continue;
+                    long after = candidate.getStart() == end ? candidate.blocks[1] : candidate.blocks[candidate.blocks.length - 2];
+                    int dot = (BlockKey.x(end) - BlockKey.x(before)) * (BlockKey.x(after) - BlockKey.x(end))
+                            + (BlockKey.z(end) - BlockKey.z(before)) * (BlockKey.z(after) - BlockKey.z(end));
+                    if (dot > bestDot) {
+                        best = candidate;
+                        bestDot = dot;
+                    }
+                }
+                if (best == null) break;
+                used.add(best);
+                appendOriented(run, best.blocks, best.getStart() != end, true);
+            }
+            long[] keys = new long[run.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = run.get(i);
+            }
+            runs.add(keys);
+        }
+        return runs;
+    }
+
+    private static void appendOriented(List<Long> run, long[] blocks, boolean reversed, boolean skipFirst) {
+        for (int i = skipFirst ? 1 : 0; i < blocks.length; i++) {
+            run.add(reversed ? blocks[blocks.length - 1 - i] : blocks[i]);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongList;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent cache of the rails found in each scanned chunk, one file per world under cache/.
+ * Every entry carries a fingerprint: the chunk's last-saved timestamp from its region file header,
+ * or {@link #FINGERPRINT_NONE} when the chunk was scanned from a live snapshot.
+ * Entries are dropped when rails in their chunk change, leaving a tombstone with the time of the change:
+ * until the chunk is saved again, its region file still holds the old rails, which must not be cached.
+ * Has no server dependency.
+ */
+public class ChunkRailCache {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+    public static final String CACHE_FOLDER = "cache";
+    /** Fingerprint of entries taken from live snapshots, which never match a region file timestamp. */
+    public static final long FINGERPRINT_NONE = 0;
+    private static final int MAGIC = 0x52435243; // "RCRC"
+    private static final int VERSION = 1;
+    private static final int[] NO_RAILS = new int[0];
+
+    private final File folder;
+    private final Map<String, WorldCache> worlds = new ConcurrentHashMap<>();
+
+    public ChunkRailCache(File dataFolder) {
+        this.folder = new File(dataFolder, CACHE_FOLDER);
+    }
+
+    /**
+     * Rails of one chunk, packed as (y << 8) | (z << 4) | x with chunk-relative x and z.
+     */
+    public static final class CachedChunk {
+        private final long fingerprint;
+        private final int[] rails;
+
+        CachedChunk(long fingerprint, int[] rails) {
+            this.fingerprint = fingerprint;
+            this.rails = rails;
+        }
+
+        public long getFingerprint() { return fingerprint; }
+        public int getRailCount() { return rails.length; }
+
+        /**
+         * Add this chunk's rails to a set of packed block keys.
+         */
+        public void addRailsTo(LongHashSet out, long chunkKey) {
+            int baseX = ScanResult.chunkX(chunkKey) << 4;
+            int baseZ = ScanResult.chunkZ(chunkKey) << 4;
+            for (int packed : rails) {
+                out.add(BlockKey.pack(baseX + (packed & 15), packed >> 8, baseZ + ((packed >> 4) & 15)));
+            }
+        }
+
+        /**
+         * Append this chunk's rails to a list of packed block keys.
+         */
+        public void addRailsTo(LongList out, long chunkKey) {
+            int baseX = ScanResult.chunkX(chunkKey) << 4;
+            int baseZ = ScanResult.chunkZ(chunkKey) << 4;
+            for (int packed : rails) {
+                out.add(BlockKey.pack(baseX + (packed & 15), packed >> 8, baseZ + ((packed >> 4) & 15)));
+            }
+        }
+    }
+
+    private static class WorldCache {
+        final Map<Long, CachedChunk> chunks = new ConcurrentHashMap<>();
+        final Map<Long, Long> invalidatedAt = new ConcurrentHashMap<>(); // chunk -> second its rails changed
+        volatile boolean dirty;
+    }
+
+    /**
+     * Get the cached rails of a chunk.
+     * @return The entry, or null if the chunk is not cached
+     */
+    public CachedChunk get(String worldName, long chunkKey) {
+        return world(worldName).chunks.get(chunkKey);
+    }
+
+    /**
+     * Get the cached rails of a chunk if they were taken from the given version of the chunk.
+     */
+    public CachedChunk getIfCurrent(String worldName, long chunkKey, long fingerprint) {
+        CachedChunk cached = get(worldName, chunkKey);
+        return cached != null && fingerprint != FINGERPRINT_NONE && cached.fingerprint == fingerprint ? cached : null;
+    }
+
+    /**
+     * Store the rails found in a chunk, replacing any previous entry.
+     * Rails read from a region file saved no later than the chunk's last invalidation are outdated and not stored.
+     * @param rails Packed block keys holding this chunk's rails in the range [from, to)
+     */
+    public void put(String worldName, long chunkKey, long fingerprint, LongList rails, int from, int to) {
+        WorldCache cache = world(worldName);
+        if (fingerprint != FINGERPRINT_NONE) {
+            Long invalidated = cache.invalidatedAt.get(chunkKey);
+            if (invalidated != null) {
+                if (fingerprint <= invalidated) {
+                    return;
+                }
+                cache.invalidatedAt.remove(chunkKey, invalidated);
+            }
+        }
+        int[] packed = from == to ? NO_RAILS : new int[to - from];
+        for (int i = 0; i < packed.length; i++) {
+            long key = rails.get(from + i);
+            packed[i] = (BlockKey.y(key) << 8) | ((BlockKey.z(key) & 15) << 4) | (BlockKey.x(key) & 15);
+        }
+        cache.chunks.put(chunkKey, new CachedChunk(fingerprint, packed));
+        cache.dirty = true;
+    }
+
+    /**
+     * Drop a chunk's entry after its rails changed.
+     */
+    public void invalidate(String worldName, long chunkKey) {
+        WorldCache cache = world(worldName);
+        cache.invalidatedAt.put(chunkKey, System.currentTimeMillis() / 1000);
+        if (cache.chunks.remove(chunkKey) != null) {
+            cache.dirty = true;
+        }
+    }
+
+    /**
+     * Load a world's cache file ahead of its first use.
+     */
+    public void preload(String worldName) {
+        world(worldName);
+    }
+
+    private WorldCache world(String worldName) {
+        return worlds.computeIfAbsent(worldName, this::load);
+    }
+
+    private File fileFor(String worldName) {
+        return new File(folder, worldName + ".bin");
+    }
+
+    private WorldCache load(String worldName) {
+        WorldCache cache = new WorldCache();
+        File file = fileFor(worldName);
+        if (!file.isFile()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warning("Ignoring rail cache " + file.getName() + " with unknown format.");
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long fingerprint = in.readLong();
+                int railCount = in.readInt();
+                int[] rails = railCount == 0 ? NO_RAILS : new int[railCount];
+                for (int r = 0; r < railCount; r++) {
+                    rails[r] = in.readInt();
+                }
+                cache.chunks.put(key, new CachedChunk(fingerprint, rails));
+            }
+            logger.info("Loaded rail cache for " + worldName + " (" + count + " chunks).");
+        } catch (IOException e) {
+            logger.warning("Failed to load rail cache " + file.getName() + ", starting empty: " + e.getMessage());
+            cache.chunks.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Write every world cache that changed since it was last saved.
+     */
+    public synchronized void save() {
+        for (Map.Entry<String, WorldCache> entry : worlds.entrySet()) {
+            WorldCache cache = entry.getValue();
+            if (!cache.dirty) {
+                continue;
+            }
+            cache.dirty = false;
+            try {
+                write(entry.getKey(), cache);
+            } catch (IOException e) {
+                cache.dirty = true;
+                logger.warning("Failed to save rail cache for " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(String worldName, WorldCache cache) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        File file = fileFor(worldName);
+        File temp = new File(folder, file.getName() + ".tmp");
+        List<Map.Entry<Long, CachedChunk>> entries = new ArrayList<>(cache.chunks.entrySet());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, CachedChunk> chunk : entries) {
+                out.writeLong(chunk.getKey());
+                out.writeLong(chunk.getValue().fingerprint);
+                out.writeInt(chunk.getValue().rails.length);
+                for (int packed : chunk.getValue().rails) {
+                    out.writeInt(packed);
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,335 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Incremental connectivity of rail lines for single-block edits.
+ * Adding a rail extends the line it touches, or joins the lines it touches into the largest of them when it
+ * continues them end to end; removing a rail splits its line when the rest falls apart. Each edit only walks the
+ * lines involved.
+ * <p>
+ * Like {@link RailClusterer}, lines are never joined across a junction (a rail with three or more neighbours):
+ * a rail that makes one joins only the largest line it touches, and the others keep their ID and name. Unlike the
+ * clusterer, a spur branching off a line is added to that line rather than splitting it at the junction; a later
+ * rescan splits it there and keeps the line's ID for the part holding most of its blocks.
+ * Lines below the minimum length are kept here even though storage drops them, so they can grow back.
+ * Lines that storage may hold are never changed in place: an edit changes a copy, which the caller stores in
+ * their place, and the copy is only changed in place again until {@link #stored} is called.
+ * Not thread-safe; owned by the live rail index on the main thread.
+ */
+public class LineConnectivity {
+
+    /** XZ steps to the four cardinal neighbours, each probed at the same level, one up and one down. */
+    private static final int[][] DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    private static final int[] LEVELS = {0, 1, -1};
+
+    private final Supplier<String> ids;
+    private final Map<String, RailLine> lines = new HashMap<>();
+    private final Map<RailBlock, String> owners = new HashMap<>(); // block -> ID of its line
+    private final Set<String> ownIds = new HashSet<>(); // lines copied or created here and not stored since
+
+    public LineConnectivity(RailwayDataStorage storage, Collection<RailLine> storedLines) {
+        this(storage::generateLineId, storedLines);
+    }
+
+    /**
+     * @param ids Source of IDs for new lines
+     */
+    LineConnectivity(Supplier<String> ids, Collection<RailLine> storedLines) {
+        this.ids = ids;
+        for (RailLine line : storedLines) {
+            track(line);
+        }
+        ownIds.clear();
+    }
+
+    /**
+     * Lines changed by an edit.
+     */
+    public static final class Edit {
+        private final List<String> removedIds = new ArrayList<>();
+        private final List<RailLine> changedLines = new ArrayList<>();
+
+        public List<String> getRemovedIds() { return removedIds; }
+        public List<RailLine> getChangedLines() { return changedLines; }
+        public boolean isEmpty() { return removedIds.isEmpty() && changedLines.isEmpty(); }
+    }
+
+    /**
+     * Add a placed rail: extend the line next to it, join the lines next to it, or start a new line.
+     * @param placer Name of the player who placed it, recorded as the creator of a new line
+     */
+    public Edit addRail(RailBlock block, String placer) {
+        Edit edit = new Edit();
+        if (owners.containsKey(block)) {
+            return edit;
+        }
+        Set<String> touching = new LinkedHashSet<>();
+        List<RailBlock> railNeighbors = new ArrayList<>();
+        for (RailBlock neighbor : neighbors(block)) {
+            String owner = owners.get(neighbor);
+            if (owner != null) {
+                touching.add(owner);
+                railNeighbors.add(neighbor);
+            }
+        }
+
+        if (touching.isEmpty()) {
+            RailLine line = new RailLine(newLineId(), nextColor());
+            line.setCreatedBy(placer);
+            line.addBlock(block);
+            track(line);
+            edit.changedLines.add(line);
+            return edit;
+        }
+
+        // The largest line keeps its identity and absorbs the others
+        String survivorId = null;
+        for (String id : touching) {
+            if (survivorId == null || lines.get(id).getBlockCount() > lines.get(survivorId).getBlockCount()) {
+                survivorId = id;
+            }
+        }
+        RailLine survivor = writable(survivorId);
+        survivor.addBlock(block);
+        owners.put(block, survivorId);
+        if (makesJunction(block, railNeighbors)) {
+            // The clusterer ends lines at junctions, so the lines meeting here stay apart
+            edit.changedLines.add(survivor);
+            return edit;
+        }
+        for (String id : touching) {
+            if (id.equals(survivorId)) continue;
+            Set<RailBlock> absorbed = lines.remove(id).getBlocks();
+            ownIds.remove(id);
+            survivor.addBlocks(absorbed);
+            for (RailBlock absorbedBlock : absorbed) {
+                owners.put(absorbedBlock, survivorId);
+            }
+            edit.removedIds.add(id);
+        }
+        edit.changedLines.add(survivor);
+        return edit;
+    }
+
+    /**
+     * Check whether a placed rail is or makes a junction: it has three or more rail neighbours, or gives one of them
+     * a third. The placed rail must already be tracked.
+     */
+    private boolean makesJunction(RailBlock block, List<RailBlock> railNeighbors) {
+        if (railNeighbors.size() >= 3) {
+            return true;
+        }
+        for (RailBlock neighbor : railNeighbors) {
+            int degree = 0;
+            for (RailBlock next : neighbors(neighbor)) {
+                if (owners.containsKey(next)) {
+                    degree++;
+                }
+            }
+            if (degree >= 3) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove a broken rail from every line holding it, splitting lines whose remaining blocks fall apart.
+     */
+    public Edit removeRail(RailBlock block) {
+        Edit edit = new Edit();
+        String owner = owners.remove(block);
+        if (owner == null) {
+            return edit;
+        }
+        // Junction blocks can be shared with the lines that meet there
+        Set<String> holding = new LinkedHashSet<>();
+        holding.add(owner);
+        for (RailBlock neighbor : neighbors(block)) {
+            String id = owners.get(neighbor);
+            if (id != null && lines.get(id).containsBlock(block)) {
+                holding.add(id);
+            }
+        }
+        for (String id : holding) {
+            RailLine line = writable(id);
+            line.removeBlock(block);
+            if (line.getBlockCount() == 0) {
+                lines.remove(id);
+                ownIds.remove(id);
+                edit.removedIds.add(id);
+            } else {
+                split(line, block, edit);
+            }
+        }
+        return edit;
+    }
+
+    /**
+     * Keep the largest connected part of a line that lost a block and move every other part to a new line.
+     * The line must be one of this index's own copies.
+     */
+    private void split(RailLine line, RailBlock removed, Edit edit) {
+        List<RailBlock> ends = new ArrayList<>();
+        for (RailBlock neighbor : neighbors(removed)) {
+            if (line.containsBlock(neighbor)) {
+                ends.add(neighbor);
+            }
+        }
+        edit.changedLines.add(line);
+        if (ends.size() <= 1) {
+            return;
+        }
+
+        // Walk from each end that no earlier walk reached; a single walk reaching every end means no split
+        List<Set<RailBlock>> parts = new ArrayList<>();
+        Set<RailBlock> reached = new HashSet<>();
+        for (RailBlock end : ends) {
+            if (reached.contains(end)) continue;
+            Set<RailBlock> part = walk(line, end);
+            reached.addAll(part);
+            parts.add(part);
+        }
+        if (parts.size() == 1) {
+            return;
+        }
+
+        Set<RailBlock> largest = parts.get(0);
+        for (Set<RailBlock> part : parts) {
+            if (part.size() > largest.size()) {
+                largest = part;
+            }
+        }
+        for (Set<RailBlock> part : parts) {
+            if (part == largest) continue;
+            RailLine split = new RailLine(newLineId(), nextColor());
+            split.setCreatedBy(line.getCreatedBy());
+            split.setActive(line.isActive());
+            for (RailBlock partBlock : part) {
+                line.removeBlock(partBlock);
+            }
+            split.addBlocks(part);
+            track(split);
+            edit.changedLines.add(split);
+        }
+    }
+
+    /**
+     * Collect the blocks of a line connected to a start block.
+     */
+    private Set<RailBlock> walk(RailLine line, RailBlock start) {
+        Set<RailBlock> part = new HashSet<>();
+        Deque<RailBlock> queue = new ArrayDeque<>();
+        part.add(start);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            for (RailBlock neighbor : neighbors(queue.poll())) {
+                if (line.containsBlock(neighbor) && part.add(neighbor)) {
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Take over lines replaced by a rescan, so later edits start from them.
+     */
+    public void replace(Collection<String> removedIds, Collection<RailLine> changedLines) {
+        for (String id : removedIds) {
+            RailLine line = lines.remove(id);
+            ownIds.remove(id);
+            if (line != null) {
+                untrack(line);
+            }
+        }
+        for (RailLine line : changedLines) {
+            RailLine previous = lines.remove(line.getId());
+            ownIds.remove(line.getId());
+            if (previous != null) {
+                untrack(previous);
+            }
+        }
+        for (RailLine line : changedLines) {
+            for (RailBlock block : line.getBlocks()) {
+                // Short lines only tracked here may still hold blocks the rescan gave to another line
+                String staleId = owners.get(block);
+                if (staleId != null && !staleId.equals(line.getId())) {
+                    RailLine stale = writable(staleId);
+                    stale.removeBlock(block);
+                    if (stale.getBlockCount() == 0) {
+                        lines.remove(staleId);
+                        ownIds.remove(staleId);
+                    }
+                }
+            }
+            track(line);
+            ownIds.remove(line.getId()); // stored by the rescan
+        }
+    }
+
+    /**
+     * Note that every line returned by edits so far has been stored, so the next edit of one changes a copy.
+     */
+    public void stored() {
+        ownIds.clear();
+    }
+
+    /**
+     * Get a line to change in place: the line itself if it is this index's own copy, otherwise a new copy
+     * that takes its place here.
+     */
+    private RailLine writable(String id) {
+        RailLine line = lines.get(id);
+        if (ownIds.add(id)) {
+            line = line.copy();
+            lines.put(id, line);
+        }
+        return line;
+    }
+
+    private void track(RailLine line) {
+        lines.put(line.getId(), line);
+        ownIds.add(line.getId());
+        for (RailBlock block : line.getBlocks()) {
+            owners.put(block, line.getId());
+        }
+    }
+
+    private void untrack(RailLine line) {
+        for (RailBlock block : line.getBlocks()) {
+            owners.remove(block, line.getId());
+        }
+    }
+
+    private String newLineId() {
+        String id;
+        do {
+            id = ids.get();
+        } while (lines.containsKey(id));
+        return id;
+    }
+
+    private String nextColor() {
+        String[] colors = RailClusterer.getTflColors();
+        return colors[lines.size() % colors.length];
+    }
+
+    /**
+     * Positions a connected rail could occupy: one block away in X or Z, at the same level, one up or one down.
+     */
+    private static List<RailBlock> neighbors(RailBlock block) {
+        List<RailBlock> neighbors = new ArrayList<>(12);
+        for (int[] d : DIRECTIONS) {
+            for (int dy : LEVELS) {
+                neighbors.add(new RailBlock(block.x + d[0], block.y + dy, block.z + d[1], block.world));
+            }
+        }
+        return neighbors;
+    }
+}
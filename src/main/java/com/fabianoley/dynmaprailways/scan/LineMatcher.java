@@ -0,0 +1,81 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.MinHash;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.util.IntList;
+import java.util.*;
+
+/**
+ * Matches freshly clustered lines to stored lines by MinHash similarity.
+ * Signatures are split into bands and hashed into buckets (locality-sensitive hashing), so a new line is only
+ * compared with stored lines that share at least one band; matching stays near-linear in the number of lines.
+ */
+public class LineMatcher {
+
+    private static final int BANDS = 16;
+    private static final int ROWS = MinHash.SIZE / BANDS;
+
+    /**
+     * Pair new lines with existing lines, most similar pairs first, each line used at most once.
+     * @param minSimilarity Lowest estimated similarity accepted as a match
+     * @return For each new line, the index of its existing line, or -1
+     */
+    public static int[] match(List<RailLine> newLines, List<RailLine> existingLines, double minSimilarity) {
+        int[] matches = new int[newLines.size()];
+        Arrays.fill(matches, -1);
+        if (newLines.isEmpty() || existingLines.isEmpty()) {
+            return matches;
+        }
+
+        long[][] existingSignatures = new long[existingLines.size()][];
+        Map<Long, IntList> buckets = new HashMap<>();
+        for (int e = 0; e < existingLines.size(); e++) {
+            existingSignatures[e] = existingLines.get(e).getSignature();
+            for (int band = 0; band < BANDS; band++) {
+                buckets.computeIfAbsent(bandKey(existingSignatures[e], band), k -> new IntList()).add(e);
+            }
+        }
+
+        // {similarity, new index, existing index}
+        List<double[]> candidates = new ArrayList<>();
+        int[] lastCompared = new int[existingLines.size()];
+        Arrays.fill(lastCompared, -1);
+        for (int n = 0; n < newLines.size(); n++) {
+            long[] signature = newLines.get(n).getSignature();
+            for (int band = 0; band < BANDS; band++) {
+                IntList bucket = buckets.get(bandKey(signature, band));
+                if (bucket == null) continue;
+                for (int i = 0; i < bucket.size(); i++) {
+                    int e = bucket.get(i);
+                    if (lastCompared[e] == n) continue;
+                    lastCompared[e] = n;
+                    double similarity = MinHash.similarity(signature, existingSignatures[e]);
+                    if (similarity >= minSimilarity) {
+                        candidates.add(new double[]{similarity, n, e});
+                    }
+                }
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(b[0], a[0]));
+
+        boolean[] taken = new boolean[existingLines.size()];
+        for (double[] candidate : candidates) {
+            int n = (int) candidate[1];
+            int e = (int) candidate[2];
+            if (matches[n] < 0 && !taken[e]) {
+                matches[n] = e;
+                taken[e] = true;
+            }
+        }
+        return matches;
+    }
+
+    private static long bandKey(long[] signature, int band) {
+        long h = band * 0x9E3779B97F4A7C15L;
+        for (int r = band * ROWS; r < (band + 1) * ROWS; r++) {
+            h = (h ^ signature[r]) * 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,396 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.fabianoley.dynmaprailways.DynmapRailways;
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Keeps stored rail lines current as blocks change.
+ * Rails placed or broken by players are applied right away through {@link LineConnectivity}, and the changed
+ * lines are saved and redrawn on the next tick. The connectivity is rebuilt from storage whenever anything else
+ * changed the stored lines, and edits made from an outdated one are rescanned instead of saved. Other changes mark their chunks dirty; once changes have
+ * settled the dirty chunks are re-snapshotted and only the lines touching them are reclustered and replaced.
+ * Only changes that fire block events are seen; edits that bypass them, such as WorldEdit's, need /railway scan.
+ * Dirty state is only touched on the main thread.
+ */
+public class LiveRailIndex {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+
+    private final DynmapRailways plugin;
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+    private final boolean incremental;
+
+    private final Map<String, Set<Long>> dirtyChunks = new HashMap<>();
+    private long firstDirtyAt;
+    private long lastDirtyAt;
+    private boolean updating;
+    private BukkitTask task;
+
+    private LineConnectivity connectivity; // built on the first edit
+    private long connectivityGeneration; // storage line generation the connectivity matches
+    private final Set<String> pendingRemovedIds = new LinkedHashSet<>();
+    private final Map<String, RailLine> pendingChangedLines = new LinkedHashMap<>();
+    private final Map<String, Set<Long>> pendingEditChunks = new HashMap<>(); // chunks of the pending edits
+
+    public LiveRailIndex(DynmapRailways plugin) {
+        this.plugin = plugin;
+        this.debounceMillis = Math.max(0, plugin.getConfig().getInt("live-updates.debounce-seconds", 3)) * 1000L;
+        this.maxDelayMillis = Math.max(1, plugin.getConfig().getInt("live-updates.max-delay-seconds", 15)) * 1000L;
+        this.incremental = plugin.getConfig().getBoolean("live-updates.incremental", true);
+    }
+
+    /**
+     * Start checking for settled changes once per second.
+     */
+    public void start() {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 20L, 20L);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        dirtyChunks.clear();
+        flushEdits();
+        connectivity = null;
+    }
+
+    /**
+     * Add a rail placed by a player to the line it connects to.
+     * Falls back to a chunk rescan while a rescan is running, since that works from the lines as they were.
+     */
+    public void railPlaced(World world, int x, int y, int z, String placer) {
+        if (!incremental || updating) {
+            markDirty(world, x, z);
+            return;
+        }
+        invalidateCache(world, x, z);
+        record(world, x, z, connectivity().addRail(new RailBlock(x, y, z, world.getName()), placer));
+    }
+
+    /**
+     * Remove a rail broken by a player from its line, splitting the line if needed.
+     */
+    public void railRemoved(World world, int x, int y, int z) {
+        if (!incremental || updating) {
+            markDirty(world, x, z);
+            return;
+        }
+        invalidateCache(world, x, z);
+        record(world, x, z, connectivity().removeRail(new RailBlock(x, y, z, world.getName())));
+    }
+
+    /**
+     * Get the connectivity, rebuilding it if a scan, import, command or placer lookup changed the stored lines
+     * since it was built. Edits still pending from the outdated one are rescanned instead.
+     */
+    private LineConnectivity connectivity() {
+        RailwayDataStorage storage = plugin.getDataStorage();
+        long generation = storage.getLineGeneration();
+        if (connectivity == null || generation != connectivityGeneration) {
+            discardEdits();
+            // The generation is read first, so lines changed while building only cause another rebuild
+            connectivity = new LineConnectivity(storage, storage.getRailLines().values());
+            connectivityGeneration = generation;
+        }
+        return connectivity;
+    }
+
+    private void record(World world, int x, int z, LineConnectivity.Edit edit) {
+        pendingEditChunks.computeIfAbsent(world.getName(), k -> new HashSet<>()).add(ScanResult.chunkKey(x >> 4, z >> 4));
+        for (String id : edit.getRemovedIds()) {
+            pendingChangedLines.remove(id);
+            pendingRemovedIds.add(id);
+        }
+        for (RailLine line : edit.getChangedLines()) {
+            pendingChangedLines.put(line.getId(), line);
+        }
+    }
+
+    /**
+     * Save and redraw the lines changed by incremental edits since the last tick.
+     */
+    private void flushEdits() {
+        if (pendingRemovedIds.isEmpty() && pendingChangedLines.isEmpty()) {
+            return;
+        }
+        List<String> removed = new ArrayList<>(pendingRemovedIds);
+        List<RailLine> changed = new ArrayList<>(pendingChangedLines.values());
+        int minLineLength = plugin.getConfig().getInt("general.min-line-length", 15);
+        // Only saved if nothing else changed the lines the edits started from
+        long generation = plugin.getDataStorage().replaceRailLinesIfUnchanged(connectivityGeneration, removed, changed, minLineLength);
+        if (generation < 0) {
+            discardEdits();
+            connectivity = null;
+            return;
+        }
+        connectivityGeneration = generation;
+        if (connectivity != null) {
+            connectivity.stored();
+        }
+        pendingRemovedIds.clear();
+        pendingChangedLines.clear();
+        pendingEditChunks.clear();
+        plugin.getMapRenderer().updateLineMarkers(removed, changed);
+    }
+
+    /**
+     * Drop the pending edits and mark their chunks dirty, so a rescan applies them to the current lines.
+     */
+    private void discardEdits() {
+        pendingRemovedIds.clear();
+        pendingChangedLines.clear();
+        if (pendingEditChunks.isEmpty()) {
+            return;
+        }
+        pendingEditChunks.forEach(this::markChunksDirty);
+        pendingEditChunks.clear();
+    }
+
+    private void markChunksDirty(String world, Set<Long> chunks) {
+        dirtyChunks.computeIfAbsent(world, k -> new HashSet<>()).addAll(chunks);
+        long now = System.currentTimeMillis();
+        if (firstDirtyAt == 0) {
+            firstDirtyAt = now;
+        }
+        lastDirtyAt = now;
+    }
+
+    private void invalidateCache(World world, int blockX, int blockZ) {
+        ChunkRailCache cache = plugin.getChunkRailCache();
+        if (cache != null) {
+            cache.invalidate(world.getName(), ScanResult.chunkKey(blockX >> 4, blockZ >> 4));
+        }
+    }
+
+    /**
+     * Mark the chunk holding a changed rail block dirty.
+     */
+    public void markDirty(World world, int blockX, int blockZ) {
+        long key = ScanResult.chunkKey(blockX >> 4, blockZ >> 4);
+        dirtyChunks.computeIfAbsent(world.getName(), k -> new HashSet<>()).add(key);
+        invalidateCache(world, blockX, blockZ);
+        long now = System.currentTimeMillis();
+        if (firstDirtyAt == 0) {
+            firstDirtyAt = now;
+        }
+        lastDirtyAt = now;
+    }
+
+    private void tick() {
+        flushEdits();
+        if (updating || dirtyChunks.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // Wait for a quiet period, but do not let a steady stream of edits postpone the update forever
+        if (now - lastDirtyAt < debounceMillis && now - firstDirtyAt < maxDelayMillis) {
+            return;
+        }
+        flush();
+    }
+
+    private void flush() {
+        Map<String, Set<Long>> batch = new HashMap<>(dirtyChunks);
+        dirtyChunks.clear();
+        firstDirtyAt = 0;
+        updating = true;
+
+        List<String> removedIds = new ArrayList<>();
+        List<RailLine> changedLines = new ArrayList<>();
+        AtomicInteger writes = new AtomicInteger();
+        Map<String, Set<Long>> conflicted = new HashMap<>();
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (Map.Entry<String, Set<Long>> entry : batch.entrySet()) {
+            World world = Bukkit.getWorld(entry.getKey());
+            if (world == null) {
+                continue;
+            }
+            Set<Long> chunks = entry.getValue();
+            chain = chain
+                .thenCompose(ignored -> runOnMainThread(() -> SnapshotScanTask.rescanChunks(plugin, world, chunks)))
+                .thenAccept(scan -> applyScan(world, scan, removedIds, changedLines, writes, conflicted));
+        }
+
+        chain.whenComplete((ignored, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+            updating = false;
+            // Rescans that lost to another change are tried again on the lines as they are now
+            conflicted.forEach(this::markChunksDirty);
+            if (error != null) {
+                logger.warning("Live rail update failed: " + error.getMessage());
+                return;
+            }
+            if (!removedIds.isEmpty() || !changedLines.isEmpty()) {
+                // Carry the rescan over into the connectivity, unless something else changed the lines as well
+                long generation = plugin.getDataStorage().getLineGeneration();
+                if (connectivity != null && generation == connectivityGeneration + writes.get()) {
+                    connectivity.replace(removedIds, changedLines);
+                    connectivityGeneration = generation;
+                }
+                plugin.getMapRenderer().updateLineMarkers(removedIds, changedLines);
+            }
+        }));
+    }
+
+    /**
+     * Snapshot scans must be started from the main thread.
+     */
+    private <T> CompletableFuture<T> runOnMainThread(java.util.function.Supplier<CompletableFuture<T>> action) {
+        if (Bukkit.isPrimaryThread()) {
+            return action.get();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Bukkit.getScheduler().runTask(plugin, () -> action.get().whenComplete((value, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(value);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Recluster the lines around the rescanned chunks and replace them in storage.
+     * Runs on a worker thread.
+     * @param writes Counts the storage writes made
+     * @param conflicted Receives the chunks of a rescan not stored because the lines changed while it ran
+     */
+    private void applyScan(World world, ScanResult scan, List<String> removedIds, List<RailLine> changedLines, AtomicInteger writes,
+                           Map<String, Set<Long>> conflicted) {
+        String worldName = world.getName();
+        RailwayDataStorage storage = plugin.getDataStorage();
+        // Read before the lines, so a change made while reclustering fails the commit below
+        long generation = storage.getLineGeneration();
+
+        // Lines with blocks in or next to the rescanned chunks may have been split, joined or cut
+        Set<Long> touchedChunks = new HashSet<>();
+        for (long key : scan.getScannedChunks()) {
+            int cx = ScanResult.chunkX(key);
+            int cz = ScanResult.chunkZ(key);
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    touchedChunks.add(ScanResult.chunkKey(cx + dx, cz + dz));
+                }
+            }
+        }
+
+        List<RailLine> affected = new ArrayList<>();
+        Map<RailBlock, RailLine> previousOwner = new HashMap<>();
+        LongHashSet regionRails = new LongHashSet(scan.getRails().size());
+        regionRails.addAll(scan.getRails());
+        for (String lineId : storage.getBlockIndex().getLinesInChunks(worldName, touchedChunks)) {
+            RailLine line = storage.getRailLine(lineId);
+            if (line == null) {
+                continue;
+            }
+            Set<RailBlock> blocks = line.getBlocks();
+            affected.add(line);
+            for (RailBlock block : blocks) {
+                previousOwner.put(block, line);
+                // Blocks outside the rescanned chunks are taken as they were stored
+                if (block.world.equals(worldName) && !scan.isScanned(block.x, block.z)) {
+                    regionRails.add(BlockKey.of(block));
+                }
+            }
+        }
+        if (affected.isEmpty() && regionRails.isEmpty()) {
+            return;
+        }
+
+        List<RailLine> clustered = RailClusterer.cluster(worldName, regionRails, RailScanner.getWorkerPool());
+
+        // Hand each previous line's identity to the new line that kept most of its blocks
+        List<long[]> candidates = new ArrayList<>(); // {overlap, new index, affected index}
+        Map<RailLine, Integer> affectedIndex = new IdentityHashMap<>();
+        for (int i = 0; i < affected.size(); i++) {
+            affectedIndex.put(affected.get(i), i);
+        }
+        for (int n = 0; n < clustered.size(); n++) {
+            Map<RailLine, Integer> overlaps = new IdentityHashMap<>();
+            for (RailBlock block : clustered.get(n).getBlocks()) {
+                RailLine owner = previousOwner.get(block);
+                if (owner != null) {
+                    overlaps.merge(owner, 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<RailLine, Integer> overlap : overlaps.entrySet()) {
+                candidates.add(new long[]{overlap.getValue(), n, affectedIndex.get(overlap.getKey())});
+            }
+        }
+        candidates.sort((a, b) -> Long.compare(b[0], a[0]));
+
+        RailLine[] matchedOld = new RailLine[clustered.size()];
+        boolean[] oldTaken = new boolean[affected.size()];
+        for (long[] candidate : candidates) {
+            int n = (int) candidate[1];
+            int o = (int) candidate[2];
+            if (matchedOld[n] == null && !oldTaken[o]) {
+                matchedOld[n] = affected.get(o);
+                oldTaken[o] = true;
+            }
+        }
+
+        List<RailLine> updated = new ArrayList<>();
+        List<RailLine> added = new ArrayList<>();
+        for (int n = 0; n < clustered.size(); n++) {
+            RailLine line = clustered.get(n);
+            RailLine old = matchedOld[n];
+            if (old != null) {
+                Set<RailBlock> blocks = line.getBlocks();
+                if (blocks.equals(old.getBlocks())) {
+                    continue; // unchanged, e.g. a rail shape update
+                }
+                RailLine replacement = new RailLine(old.getId(), old.getColor());
+                replacement.setName(old.getName());
+                replacement.setCreatedBy(old.getCreatedBy());
+                replacement.setCreatedAt(old.getCreatedAt());
+                replacement.setActive(old.isActive());
+                replacement.addBlocks(blocks);
+                updated.add(replacement);
+            } else {
+                RailLine properLine = new RailLine(storage.generateLineId(), line.getColor());
+                properLine.addBlocks(line.getBlocks());
+                added.add(properLine);
+            }
+        }
+
+        List<String> removed = new ArrayList<>();
+        for (int o = 0; o < affected.size(); o++) {
+            if (!oldTaken[o]) {
+                removed.add(affected.get(o).getId());
+            }
+        }
+        if (updated.isEmpty() && added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        List<RailLine> changed = new ArrayList<>(updated);
+        changed.addAll(added);
+        int minLineLength = plugin.getConfig().getInt("general.min-line-length", 15);
+        if (storage.replaceRailLinesIfUnchanged(generation, removed, changed, minLineLength) < 0) {
+            conflicted.computeIfAbsent(worldName, k -> new HashSet<>()).addAll(scan.getScannedChunks());
+            return;
+        }
+        writes.incrementAndGet();
+        RailScanner.attributeLater(world, added);
+        removedIds.addAll(removed);
+        changedLines.addAll(changed);
+        logger.info("Live update in " + worldName + ": " + scan.getScannedChunks().size() + " chunks rescanned, " +
+                updated.size() + " lines updated, " + added.size() + " added, " + removed.size() + " removed.");
+    }
+}
@@ -0,0 +1,179 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.fabianoley.dynmaprailways.DynmapRailways;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills the chunk rail cache in the background from chunks that players load anyway.
+ * Loaded chunks are queued; once a second their region file timestamps are checked off the main thread,
+ * and chunks that are not cached or were saved since they were cached are snapshotted a few per tick.
+ */
+public class OpportunisticScanner {
+
+    private final DynmapRailways plugin;
+    private final ChunkRailCache cache;
+    private final int snapshotsPerTick;
+    private final int maxPendingBatches;
+    private final int maxQueued;
+
+    // Main thread only
+    private final Map<String, Set<Long>> queued = new HashMap<>();
+    private final Deque<PendingChunk> toSnapshot = new ArrayDeque<>();
+    private int queuedCount;
+    private boolean checking;
+    private int ticks;
+
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private BukkitTask task;
+
+    public OpportunisticScanner(DynmapRailways plugin, ChunkRailCache cache) {
+        this.plugin = plugin;
+        this.cache = cache;
+        this.snapshotsPerTick = Math.max(1, plugin.getConfig().getInt("cache.snapshots-per-tick", 4));
+        this.maxPendingBatches = Math.max(1, plugin.getConfig().getInt("scanner.max-pending-batches", 8));
+        this.maxQueued = Math.max(1, plugin.getConfig().getInt("cache.max-queued-chunks", 4096));
+    }
+
+    /**
+     * A chunk waiting to be snapshotted, with the fingerprint to cache it under.
+     */
+    private static class PendingChunk {
+        final String worldName;
+        final long chunkKey;
+        final long fingerprint;
+
+        PendingChunk(String worldName, long chunkKey, long fingerprint) {
+            this.worldName = worldName;
+            this.chunkKey = chunkKey;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    public void start() {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        queued.clear();
+        toSnapshot.clear();
+        queuedCount = 0;
+    }
+
+    /**
+     * Queue a freshly loaded chunk. Chunks beyond the queue limit are dropped and picked up on a later load.
+     */
+    public void enqueue(Chunk chunk) {
+        if (queuedCount + toSnapshot.size() >= maxQueued) {
+            return;
+        }
+        if (queued.computeIfAbsent(chunk.getWorld().getName(), k -> new HashSet<>())
+                .add(ScanResult.chunkKey(chunk.getX(), chunk.getZ()))) {
+            queuedCount++;
+        }
+    }
+
+    private void tick() {
+        snapshotPending();
+        if (++ticks % 20 == 0 && !checking && queuedCount > 0) {
+            checkQueued();
+        }
+    }
+
+    /**
+     * Snapshot a few pending chunks that are still loaded and extract their rails into the cache.
+     */
+    private void snapshotPending() {
+        if (toSnapshot.isEmpty() || pendingBatches.get() >= maxPendingBatches) {
+            return;
+        }
+        Map<String, List<ChunkSnapshot>> snapshots = new HashMap<>();
+        Map<String, List<Long>> fingerprints = new HashMap<>();
+        int taken = 0;
+        while (taken < snapshotsPerTick && !toSnapshot.isEmpty()) {
+            PendingChunk pending = toSnapshot.poll();
+            World world = Bukkit.getWorld(pending.worldName);
+            int cx = ScanResult.chunkX(pending.chunkKey);
+            int cz = ScanResult.chunkZ(pending.chunkKey);
+            if (world == null || !world.isChunkLoaded(cx, cz)) {
+                continue; // unloaded again before its turn
+            }
+            snapshots.computeIfAbsent(pending.worldName, k -> new ArrayList<>())
+                    .add(world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false));
+            fingerprints.computeIfAbsent(pending.worldName, k -> new ArrayList<>()).add(pending.fingerprint);
+            taken++;
+        }
+
+        for (Map.Entry<String, List<ChunkSnapshot>> entry : snapshots.entrySet()) {
+            World world = Bukkit.getWorld(entry.getKey());
+            List<Long> worldFingerprints = fingerprints.get(entry.getKey());
+            long[] batchFingerprints = new long[worldFingerprints.size()];
+            for (int i = 0; i < batchFingerprints.length; i++) {
+                batchFingerprints[i] = worldFingerprints.get(i);
+            }
+            // Rails only go to the cache, nothing is collected
+            RailExtraction extraction = new RailExtraction(entry.getKey(), world.getMinHeight(), world.getMaxHeight(), cache, false);
+            pendingBatches.incrementAndGet();
+            extraction.submit(entry.getValue(), batchFingerprints).whenComplete((ignored, error) -> pendingBatches.decrementAndGet());
+        }
+    }
+
+    /**
+     * Compare queued chunks with their region file timestamps off the main thread and
+     * queue the ones whose cache entry is missing or outdated for snapshotting.
+     */
+    private void checkQueued() {
+        Map<String, Set<Long>> batch = new HashMap<>(queued);
+        queued.clear();
+        queuedCount = 0;
+        Map<String, File> worldFolders = new HashMap<>();
+        for (String worldName : batch.keySet()) {
+            World world = Bukkit.getWorld(worldName);
+            if (world != null) {
+                worldFolders.put(worldName, world.getWorldFolder());
+            }
+        }
+        checking = true;
+
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<PendingChunk> outdated = new ArrayList<>();
+            for (Map.Entry<String, File> world : worldFolders.entrySet()) {
+                String worldName = world.getKey();
+                File regionFolder = RegionFileScanner.findRegionFolder(world.getValue());
+                Map<File, int[]> timestamps = new HashMap<>();
+                for (long key : batch.get(worldName)) {
+                    int cx = ScanResult.chunkX(key);
+                    int cz = ScanResult.chunkZ(key);
+                    long fingerprint = ChunkRailCache.FINGERPRINT_NONE;
+                    if (regionFolder != null) {
+                        int[] regionTimestamps = timestamps.computeIfAbsent(
+                                RegionFileScanner.regionFileFor(regionFolder, cx, cz), RegionFileScanner::readChunkTimestamps);
+                        if (regionTimestamps != null) {
+                            fingerprint = regionTimestamps[((cz & 31) << 5) | (cx & 31)] & 0xFFFFFFFFL;
+                        }
+                    }
+                    // New chunks have no timestamp yet; scan them once and keep the entry until they are saved
+                    ChunkRailCache.CachedChunk cached = cache.get(worldName, key);
+                    if (cached == null || (fingerprint != ChunkRailCache.FINGERPRINT_NONE && cached.getFingerprint() != fingerprint)) {
+                        outdated.add(new PendingChunk(worldName, key, fingerprint));
+                    }
+                }
+            }
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                toSnapshot.addAll(outdated);
+                checking = false;
+            });
+        });
+    }
+}
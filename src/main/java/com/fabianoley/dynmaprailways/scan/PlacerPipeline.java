@@ -0,0 +1,123 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import org.bukkit.World;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the CoreProtect placers of lines off the scan path.
+ * A fixed number of virtual worker threads take lines from a bounded queue, so at most that many
+ * CoreProtect queries run at once (a line's lookups run one after another). Batches are fed into the
+ * queue from their own virtual thread, which waits while the queue is full; a slow database therefore
+ * slows attribution only, never scans or the main thread.
+ */
+class PlacerPipeline {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+
+    private final BlockingQueue<Runnable> queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private final Set<Thread> feeders = ConcurrentHashMap.newKeySet();
+    private final Set<CompletableFuture<String[]>> pending = ConcurrentHashMap.newKeySet();
+    private boolean stopped; // guarded by this, so no feeder or result is registered after shutdown
+
+    /**
+     * @param concurrency Lines resolved at once
+     * @param queueSize Lines waiting for a worker before feeders block
+     */
+    PlacerPipeline(int concurrency, int queueSize) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        for (int i = 0; i < Math.max(1, concurrency); i++) {
+            workers.add(Thread.ofVirtual().name("DynmapRailways-Placer-" + i).start(this::work));
+        }
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                queue.take().run();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Resolve the placer of each line.
+     * @return Placers in line order, null for lines without one; completes on a worker thread,
+     *         or fails if the pipeline is or gets shut down first
+     */
+    CompletableFuture<String[]> resolve(World world, List<RailLine> lines) {
+        CompletableFuture<String[]> result = new CompletableFuture<>();
+        String[] placers = new String[lines.size()];
+        AtomicInteger remaining = new AtomicInteger(lines.size());
+        Thread feeder = Thread.ofVirtual().name("DynmapRailways-Placer-Feed").unstarted(() -> {
+            try {
+                for (int i = 0; i < lines.size(); i++) {
+                    int index = i;
+                    RailLine line = lines.get(i);
+                    queue.put(() -> {
+                        try {
+                            placers[index] = RailScanner.resolveLinePlacer(world, line.getBlocks());
+                        } catch (RuntimeException e) {
+                            logger.log(Level.FINE, "Placer lookup failed for line " + line.getId(), e);
+                        } finally {
+                            if (remaining.decrementAndGet() == 0) {
+                                result.complete(placers);
+                            }
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+            } finally {
+                feeders.remove(Thread.currentThread());
+            }
+        });
+        synchronized (this) {
+            if (stopped) {
+                return CompletableFuture.failedFuture(new IllegalStateException("placer lookups are shut down"));
+            }
+            if (lines.isEmpty()) {
+                result.complete(placers);
+                return result;
+            }
+            pending.add(result);
+            feeders.add(feeder);
+            // Started while holding the lock, so a shutdown after this always interrupts a live thread
+            feeder.start();
+        }
+        result.whenComplete((ignored, error) -> pending.remove(result));
+        return result;
+    }
+
+    /**
+     * Stop the feeders and workers. Lines still queued are dropped and every unfinished result fails.
+     */
+    void shutdown() {
+        synchronized (this) {
+            stopped = true;
+        }
+        // Failed before the interrupts, so results carry this reason rather than the interruption
+        IllegalStateException failure = new IllegalStateException("placer lookups were shut down");
+        for (CompletableFuture<String[]> result : pending) {
+            result.completeExceptionally(failure);
+        }
+        for (Thread feeder : feeders) {
+            feeder.interrupt();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        queue.clear();
+    }
+}
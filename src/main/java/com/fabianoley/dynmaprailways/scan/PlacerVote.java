@@ -0,0 +1,66 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running tally of the placers of sampled line blocks.
+ * The vote is decided once the leader is ahead of the runner-up by more than chance would explain:
+ * treating each vote between the two as a coin flip, the lead must exceed three standard deviations.
+ */
+class PlacerVote {
+
+    private static final double DECISIVE_DEVIATIONS = 3.0;
+
+    private final Map<String, Integer> counts = new HashMap<>();
+    private String leader;
+    private int leaderCount;
+    private int samples;
+
+    /**
+     * Record one sampled block.
+     * @param placer Its placer, or null if it has none that passes the filters
+     */
+    void add(String placer) {
+        samples++;
+        if (placer == null) {
+            return;
+        }
+        int count = counts.merge(placer, 1, Integer::sum);
+        if (count > leaderCount) {
+            leader = placer;
+            leaderCount = count;
+        }
+    }
+
+    int getSamples() {
+        return samples;
+    }
+
+    boolean hasVotes() {
+        return leader != null;
+    }
+
+    /**
+     * Whether the leader's lead is statistically clear.
+     */
+    boolean isDecided() {
+        if (leader == null) {
+            return false;
+        }
+        int runnerUp = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (!entry.getKey().equals(leader)) {
+                runnerUp = Math.max(runnerUp, entry.getValue());
+            }
+        }
+        return leaderCount - runnerUp >= DECISIVE_DEVIATIONS * Math.sqrt(leaderCount + runnerUp);
+    }
+
+    /**
+     * @return The placer with the most votes, or null if no sample had one
+     */
+    String getLeader() {
+        return leader;
+    }
+}
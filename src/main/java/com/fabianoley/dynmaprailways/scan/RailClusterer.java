@@ -0,0 +1,402 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailGraph;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.IntList;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.ParallelRange;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Groups rail blocks into connected rail lines.
+ * Has no server dependency, so it can also run outside the plugin.
+ * <p>
+ * With a pool, connected components are labelled per tile in parallel and stitched across tile borders
+ * with a lock-free union-find; tiles are chunk-wide strips along X, which are contiguous node ranges of the graph.
+ * Lines are then traced per component in parallel. The result is the same as a serial run.
+ */
+public class RailClusterer {
+
+    /** Tiles per labelling task. */
+    private static final int TILE_GRAIN = 8;
+    /** Nodes per task when resolving component roots. */
+    private static final int NODE_GRAIN = 16384;
+    /** Components per tracing task. */
+    private static final int COMPONENT_GRAIN = 32;
+    /** Lines per task when creating the line objects. */
+    private static final int LINE_GRAIN = 64;
+
+    /**
+     * Cluster adjacent rail blocks of one world into connected lines on the calling thread.
+     */
+    public static List<RailLine> cluster(String worldName, LongHashSet allRails) {
+        return cluster(worldName, allRails, null);
+    }
+
+    /**
+     * Cluster adjacent rail blocks of one world into connected lines using neighbor adjacency (XZ plane only).
+     * Each rail is tagged with how many neighbors it has (ignoring Y and shape connectivity).
+     * Lines are traced from endpoints (1 neighbor) following the path until reaching another endpoint.
+     * Lines get temporary "tmp_" IDs and colors assigned by index.
+     * The adjacency is built once as a {@link RailGraph}; tracing and the cycle DFS only touch int node indices.
+     * @param pool Pool to cluster on, or null to cluster on the calling thread
+     */
+    public static List<RailLine> cluster(String worldName, LongHashSet allRails, ForkJoinPool pool) {
+        return cluster(worldName, RailGraph.build(allRails, pool), pool);
+    }
+
+    /**
+     * Cluster the rails of a prebuilt graph into connected lines.
+     * @param pool Pool to cluster on, or null to cluster on the calling thread
+     */
+    public static List<RailLine> cluster(String worldName, RailGraph graph, ForkJoinPool pool) {
+        int nodeCount = graph.size();
+        int componentGrain = pool == null ? Integer.MAX_VALUE : COMPONENT_GRAIN;
+        int lineGrain = pool == null ? Integer.MAX_VALUE : LINE_GRAIN;
+
+        // Group nodes by component; roots are the lowest node of their component, so groups come out in node order
+        int[] root = labelComponents(graph, pool);
+        int[] componentOfRoot = new int[nodeCount];
+        int componentCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (root[node] == node) {
+                componentOfRoot[node] = componentCount++;
+            }
+        }
+        int[] componentStarts = new int[componentCount + 1];
+        for (int node = 0; node < nodeCount; node++) {
+            componentStarts[componentOfRoot[root[node]] + 1]++;
+        }
+        for (int c = 0; c < componentCount; c++) {
+            componentStarts[c + 1] += componentStarts[c];
+        }
+        int[] members = new int[nodeCount];
+        int[] fill = Arrays.copyOf(componentStarts, componentCount);
+        for (int node = 0; node < nodeCount; node++) {
+            members[fill[componentOfRoot[root[node]]]++] = node;
+        }
+
+        // Trace each component's lines in parallel
+        boolean[] visited = new boolean[nodeCount];
+        boolean[] reached = new boolean[nodeCount];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<TracedLine>[] traced = new List[componentCount];
+        ParallelRange.forRange(pool, 0, componentCount, componentGrain, (from, to) -> {
+            IntList line = new IntList();
+            IntList stack = new IntList();
+            for (int c = from; c < to; c++) {
+                traced[c] = traceComponent(graph, members, componentStarts[c], componentStarts[c + 1], visited, reached, line, stack);
+            }
+        });
+
+        // Order lines as a serial pass over all nodes would: endpoint traces first, then cycles, each by start node
+        List<TracedLine> ordered = new ArrayList<>();
+        for (List<TracedLine> componentLines : traced) {
+            ordered.addAll(componentLines);
+        }
+        ordered.sort(Comparator.comparing((TracedLine l) -> l.cycle).thenComparingInt(l -> l.start));
+
+        String[] colors = getTflColors();
+        RailLine[] lines = new RailLine[ordered.size()];
+        ParallelRange.forRange(pool, 0, lines.length, lineGrain, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                lines[i] = toLine("tmp_" + i, colors[i % colors.length], graph, ordered.get(i).nodes, worldName);
+            }
+        });
+        return new ArrayList<>(Arrays.asList(lines));
+    }
+
+    /**
+     * Label connected components inside each tile, then join labels across tile borders.
+     * @return Lowest node of each node's component, by node
+     */
+    static int[] labelComponents(RailGraph graph, ForkJoinPool pool) {
+        int nodeCount = graph.size();
+        int tileGrain = pool == null ? Integer.MAX_VALUE : TILE_GRAIN;
+        int[] tiles = tileStarts(graph);
+        int tileCount = tiles.length - 1;
+        AtomicIntegerArray parent = new AtomicIntegerArray(nodeCount);
+        ParallelRange.forRange(pool, 0, tileCount, tileGrain, (from, to) -> {
+            IntList queue = new IntList();
+            for (int tile = from; tile < to; tile++) {
+                labelTile(graph, tiles[tile], tiles[tile + 1], parent, queue);
+            }
+        });
+        ParallelRange.forRange(pool, 0, tileCount, tileGrain, (from, to) -> {
+            for (int tile = from; tile < to; tile++) {
+                int tileEnd = tiles[tile + 1];
+                for (int node = tiles[tile]; node < tileEnd; node++) {
+                    for (int e = graph.edgeStart(node); e < graph.edgeEnd(node); e++) {
+                        // Each border edge is joined once, from the tile with lower X
+                        if (graph.neighbor(e) >= tileEnd) {
+                            union(parent, node, graph.neighbor(e));
+                        }
+                    }
+                }
+            }
+        });
+        int[] root = new int[nodeCount];
+        ParallelRange.forRange(pool, 0, nodeCount, pool == null ? Integer.MAX_VALUE : NODE_GRAIN, (from, to) -> {
+            for (int node = from; node < to; node++) {
+                root[node] = find(parent, node);
+            }
+        });
+        return root;
+    }
+
+    /**
+     * Nodes of one traced line, with the node its trace started from.
+     */
+    private static final class TracedLine {
+        final int start;
+        final boolean cycle;
+        final int[] nodes;
+
+        TracedLine(int start, boolean cycle, IntList nodes) {
+            this.start = start;
+            this.cycle = cycle;
+            this.nodes = nodes.toArray();
+        }
+    }
+
+    /**
+     * Start index of every tile in node order, plus the node count. A tile holds the rails of one chunk-wide strip of X.
+     */
+    private static int[] tileStarts(RailGraph graph) {
+        IntList starts = new IntList();
+        int lastStrip = 0;
+        for (int node = 0; node < graph.size(); node++) {
+            int strip = BlockKey.x(graph.key(node)) >> 4;
+            if (node == 0 || strip != lastStrip) {
+                starts.add(node);
+                lastStrip = strip;
+            }
+        }
+        starts.add(graph.size());
+        return starts.toArray();
+    }
+
+    /**
+     * Point every node of a tile at the lowest node of its component within the tile.
+     */
+    private static void labelTile(RailGraph graph, int from, int to, AtomicIntegerArray parent, IntList queue) {
+        for (int node = from; node < to; node++) {
+            parent.setPlain(node, -1);
+        }
+        for (int node = from; node < to; node++) {
+            if (parent.getPlain(node) >= 0) continue;
+            parent.setPlain(node, node);
+            queue.add(node);
+            while (!queue.isEmpty()) {
+                int current = queue.removeLast();
+                for (int e = graph.edgeStart(current); e < graph.edgeEnd(current); e++) {
+                    int n = graph.neighbor(e);
+                    if (n >= from && n < to && parent.getPlain(n) < 0) {
+                        parent.setPlain(n, node);
+                        queue.add(n);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int find(AtomicIntegerArray parent, int node) {
+        int p;
+        while ((p = parent.get(node)) != node) {
+            // Path halving; losing the race only skips the shortcut
+            int grandparent = parent.get(p);
+            if (grandparent != p) {
+                parent.compareAndSet(node, p, grandparent);
+            }
+            node = grandparent;
+        }
+        return node;
+    }
+
+    /**
+     * Join two components, linking the higher root under the lower so every root stays its component's lowest node.
+     */
+    private static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            a = find(parent, a);
+            b = find(parent, b);
+            if (a == b) return;
+            if (a < b) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            if (parent.compareAndSet(a, a, b)) return;
+        }
+    }
+
+    /**
+     * Trace the lines of one connected component.
+     * @param members Component nodes in ascending order, in [from, to)
+     * @param visited Shared marks; components never touch each other's nodes
+     */
+    private static List<TracedLine> traceComponent(RailGraph graph, int[] members, int from, int to,
+                                                   boolean[] visited, boolean[] reached, IntList line, IntList stack) {
+        List<TracedLine> lines = new ArrayList<>(2);
+        
+        // Find endpoints (blocks with exactly 1 neighbor) and trace lines
+        for (int m = from; m < to; m++) {
+            int startRail = members[m];
+            if (visited[startRail]) continue;
+            if (graph.degree(startRail) != 1) continue; // Start from endpoint
+            
+            // Trace line from this endpoint with directional preference
+            line.clear();
+            int current = startRail;
+            int prev = -1;
+            
+            while (true) {
+                line.add(current);
+                visited[current] = true;
+                
+                // If this is a junction (3+ neighbors), stop tracing here - don't overtrace
+                if (graph.degree(current) >= 3) {
+                    break;
+                }
+                
+                int next = -1;
+                
+                if (prev < 0) {
+                    // At start (endpoint), just pick the one neighbor
+                    if (graph.degree(current) > 0) {
+                        next = graph.neighbor(graph.edgeStart(current));
+                    }
+                } else {
+                    // Calculate direction we came from
+                    int curX = BlockKey.x(graph.key(current));
+                    int curZ = BlockKey.z(graph.key(current));
+                    int fromDx = curX - BlockKey.x(graph.key(prev));
+                    int fromDz = curZ - BlockKey.z(graph.key(prev));
+                    
+                    // Prefer: straight > turn > never backtrack
+                    int bestTurn = -1;
+                    int bestScore = 0;
+                    
+                    for (int e = graph.edgeStart(current); e < graph.edgeEnd(current); e++) {
+                        int n = graph.neighbor(e);
+                        if (n == prev) continue;
+                        
+                        int toDx = BlockKey.x(graph.key(n)) - curX;
+                        int toDz = BlockKey.z(graph.key(n)) - curZ;
+                        
+                        // Check if this neighbor continues the line (dot product)
+                        int dotProduct = (toDx * fromDx) + (toDz * fromDz);
+                        
+                        if (dotProduct > 0) {
+                            // Straight continuation (best option), take it immediately
+                            next = n;
+                            break;
+                        } else if (dotProduct == 0) {
+                            // Perpendicular (90-degree turn). Tiebreak: prefer turn that goes toward
+                            // positive X or Z (or less negative), prioritizing X over Z
+                            int score = (toDx > 0 ? 2 : toDx < 0 ? -2 : 0) + (toDz > 0 ? 1 : toDz < 0 ? -1 : 0);
+                            if (bestTurn < 0 || score > bestScore) {
+                                bestTurn = n;
+                                bestScore = score;
+                            }
+                        }
+                        // If dotProduct < 0, it's backtracking - skip it
+                    }
+                    
+                    if (next < 0) {
+                        next = bestTurn;
+                    }
+                }
+                
+                if (next < 0) break; // Reached endpoint
+                
+                prev = current;
+                current = next;
+            }
+            
+            // Create line if it has more than one block
+            if (line.size() > 1) {
+                lines.add(new TracedLine(startRail, false, line));
+            }
+        }
+        
+        // Handle isolated blocks and cycles (blocks with multiple connections)
+        for (int m = from; m < to; m++) {
+            int rail = members[m];
+            if (!visited[rail]) {
+                IntList cluster = dfsCluster(rail, graph, reached, stack);
+                if (!cluster.isEmpty()) {
+                    lines.add(new TracedLine(rail, true, cluster));
+                    for (int i = 0; i < cluster.size(); i++) {
+                        visited[cluster.get(i)] = true;
+                    }
+                }
+            }
+        }
+        
+        return lines;
+    }
+
+    private static RailLine toLine(String lineId, String color, RailGraph graph, int[] nodes, String worldName) {
+        RailLine railLine = new RailLine(lineId, color);
+        List<RailBlock> railBlocks = new ArrayList<>(nodes.length);
+        for (int node : nodes) {
+            railBlocks.add(BlockKey.toBlock(graph.key(node), worldName));
+        }
+        railLine.addBlocks(railBlocks);
+        return railLine;
+    }
+
+    /**
+     * DFS to find all connected rail blocks by walking the graph.
+     * Used for handling isolated clusters and cycles.
+     * @param reached Scratch marks, all false on entry and reset before returning
+     * @param stack Scratch stack, empty on entry and on return
+     */
+    private static IntList dfsCluster(int start, RailGraph graph, boolean[] reached, IntList stack) {
+        IntList cluster = new IntList();
+        stack.add(start);
+        
+        while (!stack.isEmpty()) {
+            int current = stack.removeLast();
+            if (reached[current]) continue;
+            reached[current] = true;
+            cluster.add(current);
+            
+            for (int e = graph.edgeStart(current); e < graph.edgeEnd(current); e++) {
+                int n = graph.neighbor(e);
+                if (!reached[n]) {
+                    stack.add(n);
+                }
+            }
+        }
+        
+        for (int i = 0; i < cluster.size(); i++) {
+            reached[cluster.get(i)] = false;
+        }
+        return cluster;
+    }
+    
+    /**
+     * Get TfL tube map colors.
+     */
+    static String[] getTflColors() {
+        return new String[]{
+                "#E21836", // Bakerloo
+                "#000000", // Central
+                "#FFD300", // Circle
+                "#00B0F0", // District
+                "#EE7C0E", // Hammersmith & City
+                "#A0A5A9", // Jubilee
+                "#F391A0", // Metropolitan
+                "#9B0056", // Northern
+                "#E7A81E", // Piccadilly
+                "#00A4EF", // Victoria
+                "#0019A8"  // Waterloo & City
+        };
+    }
+}
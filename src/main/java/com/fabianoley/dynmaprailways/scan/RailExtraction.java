@@ -0,0 +1,127 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import org.bukkit.ChunkSnapshot;
+
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongList;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel rail extraction over chunk snapshots on the scanner's fork/join pool.
+ * Every pool worker appends to its own buffer; buffers are only combined once, when the scan finishes.
+ */
+public class RailExtraction {
+
+    private final String worldName;
+    private final int minHeight;
+    private final int[] sections;
+    private final ChunkRailCache cache;
+    private final boolean collect;
+    private final List<LongList> buffers = new ArrayList<>();
+    private final ThreadLocal<LongList> workerBuffer = ThreadLocal.withInitial(this::newBuffer);
+
+    public RailExtraction(String worldName, int minHeight, int maxHeight) {
+        this(worldName, minHeight, maxHeight, null, true);
+    }
+
+    /**
+     * @param cache Cache to record each chunk's rails in, or null
+     * @param collect Whether rails are kept for {@link #merge()}; without it they only go to the cache
+     */
+    public RailExtraction(String worldName, int minHeight, int maxHeight, ChunkRailCache cache, boolean collect) {
+        this.worldName = worldName;
+        this.minHeight = minHeight;
+        this.sections = RailScanner.getScanSections(worldName, minHeight, maxHeight);
+        // A scan limited to the rail height band can miss rails, so it must not be cached
+        boolean fullHeight = sections[0] == 0 && sections[1] == ((maxHeight - minHeight) >> 4) - 1;
+        this.cache = fullHeight ? cache : null;
+        this.collect = collect;
+    }
+
+    private LongList newBuffer() {
+        LongList buffer = new LongList(1024);
+        synchronized (buffers) {
+            buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Extract rails from a batch of snapshots, splitting the batch across the pool's workers.
+     */
+    public CompletableFuture<Void> submit(List<ChunkSnapshot> snapshots) {
+        return submit(snapshots, null);
+    }
+
+    /**
+     * Extract rails from a batch of snapshots, recording them in the cache under the given fingerprints.
+     * @param fingerprints Fingerprint per snapshot, or null for {@link ChunkRailCache#FINGERPRINT_NONE}
+     */
+    public CompletableFuture<Void> submit(List<ChunkSnapshot> snapshots, long[] fingerprints) {
+        return CompletableFuture.runAsync(() -> new ChunkRange(snapshots, fingerprints, 0, snapshots.size()).invoke(),
+                RailScanner.getWorkerPool());
+    }
+
+    /**
+     * Combine the worker buffers into one set. Call once all submitted batches have completed.
+     */
+    public LongHashSet merge() {
+        synchronized (buffers) {
+            int total = 0;
+            for (LongList buffer : buffers) {
+                total += buffer.size();
+            }
+            LongHashSet rails = new LongHashSet(total);
+            for (LongList buffer : buffers) {
+                buffer.addTo(rails);
+                // Buffers stay reachable from the workers' thread locals until they are reused, so release them now
+                buffer.clear();
+                buffer.trimToSize();
+            }
+            buffers.clear();
+            return rails;
+        }
+    }
+
+    /**
+     * Range of snapshots in a batch, split in half until a single chunk is left.
+     */
+    private class ChunkRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ChunkSnapshot> snapshots;
+        private final long[] fingerprints;
+        private final int from;
+        private final int to;
+
+        ChunkRange(List<ChunkSnapshot> snapshots, long[] fingerprints, int from, int to) {
+            this.snapshots = snapshots;
+            this.fingerprints = fingerprints;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) {
+                    extract(snapshots.get(from), fingerprints != null ? fingerprints[from] : ChunkRailCache.FINGERPRINT_NONE);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkRange(snapshots, fingerprints, from, mid), new ChunkRange(snapshots, fingerprints, mid, to));
+        }
+
+        private void extract(ChunkSnapshot snapshot, long fingerprint) {
+            LongList out = collect ? workerBuffer.get() : new LongList();
+            int firstRail = out.size();
+            RailScanner.findRailsInSnapshot(snapshot, worldName, minHeight, sections, out);
+            if (cache != null) {
+                cache.put(worldName, ScanResult.chunkKey(snapshot.getX(), snapshot.getZ()), fingerprint, out, firstRail, out.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.fabianoley.dynmaprailways.scan;
+
+/**
+ * Learned range of Y levels at which rails have been found in a world.
+ * Scans can use it to restrict which chunk sections they read.
+ */
+public class RailHeightBand {
+    private int minY = Integer.MAX_VALUE;
+    private int maxY = Integer.MIN_VALUE;
+
+    /**
+     * Widen the band to include a Y level where a rail was found.
+     */
+    public synchronized void record(int y) {
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+    }
+
+    /**
+     * Widen the band to include another band.
+     */
+    public synchronized void record(int otherMinY, int otherMaxY) {
+        if (otherMinY > otherMaxY) return;
+        record(otherMinY);
+        record(otherMaxY);
+    }
+
+    public synchronized boolean isEmpty() {
+        return minY > maxY;
+    }
+
+    public synchronized int getMinY() { return minY; }
+    public synchronized int getMaxY() { return maxY; }
+}
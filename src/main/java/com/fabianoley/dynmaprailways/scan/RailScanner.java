@@ -1,14 +1,26 @@
 package com.fabianoley.dynmaprailways.scan;
 
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Powerable;
+import org.bukkit.block.data.Rail;
 
 import com.fabianoley.dynmaprailways.DynmapRailways;
+import com.fabianoley.dynmaprailways.integration.BlockPlacement;
 import com.fabianoley.dynmaprailways.integration.CoreProtectIntegration;
+import com.fabianoley.dynmaprailways.rail.BlockKey;
 import com.fabianoley.dynmaprailways.rail.RailLine;
 import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.storage.BlockLineIndex;
+import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongList;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.logging.Logger;
 
 /**
@@ -17,28 +29,77 @@ import java.util.logging.Logger;
 public class RailScanner {
     
     private static final Logger logger = Logger.getLogger("DynmapRailways");
+    private static final int MIN_PLACER_SAMPLES = 8; // before a placer vote may stop early
     private static CoreProtectIntegration coreProtect;
     private static DynmapRailways plugin;
+    private static ForkJoinPool workerPool;
+    private static PlacerPipeline placerPipeline;
+    private static final Map<String, RailHeightBand> heightBands = new java.util.concurrent.ConcurrentHashMap<>();
 
     public static void setCoreProtectIntegration(CoreProtectIntegration integration, DynmapRailways pluginInstance) {
         coreProtect = integration;
         plugin = pluginInstance;
     }
 
+    /**
+     * Get the shared worker pool used for parallel rail extraction.
+     * Sized by scanner.threads, defaulting to one worker per core.
+     */
+    public static synchronized ForkJoinPool getWorkerPool() {
+        if (workerPool == null) {
+            int threads = plugin != null ? plugin.getConfig().getInt("scanner.threads", 0) : 0;
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            workerPool = new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("DynmapRailways-Scan-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return workerPool;
+    }
+
+    /**
+     * Stop the worker pool. Called when the plugin is disabled.
+     */
+    public static synchronized void shutdown() {
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+            workerPool = null;
+        }
+        if (placerPipeline != null) {
+            placerPipeline.shutdown();
+            placerPipeline = null;
+        }
+    }
+    
+    /**
+     * Get the shared placer lookup pipeline, sized by coreprotect.lookup.max-concurrent and queue-size.
+     */
+    private static synchronized PlacerPipeline getPlacerPipeline() {
+        if (placerPipeline == null) {
+            int concurrency = plugin != null ? plugin.getConfig().getInt("coreprotect.lookup.max-concurrent", 2) : 2;
+            int queueSize = plugin != null ? plugin.getConfig().getInt("coreprotect.lookup.queue-size", 256) : 256;
+            placerPipeline = new PlacerPipeline(concurrency, queueSize);
+        }
+        return placerPipeline;
+    }
+
     private static boolean isDebugEnabled() {
         return plugin != null && plugin.getConfig().getBoolean("general.debug", false);
     }
     
     /**
-     * Scan a world for rail blocks and cluster them into rail lines.
+     * Cluster the rails found by a snapshot scan of a world into rail lines.
+     * Placers are not looked up here; pass the lines to {@link #attributeLater} once they are stored.
      */
-    public static List<RailLine> scanWorld(World world) {
-        logger.info("Scanning " + world.getName() + " for rail blocks...");
+    public static List<RailLine> scanWorld(World world, ScanResult scan) {
+        logger.info("Scanned " + scan.getScannedChunks().size() + " chunks in " + world.getName() + " for rail blocks");
+        logger.info("Found " + scan.getRails().size() + " rail blocks");
         
-        Set<RailBlock> allRails = findAllRails(world);
-        logger.info("Found " + allRails.size() + " rail blocks");
-        
-        List<RailLine> lines = clusterRails(world, allRails);
+        List<RailLine> lines = RailClusterer.cluster(scan.getWorldName(), scan.getRails(), getWorkerPool());
         logger.info("Clustered into " + lines.size() + " rail lines");
         
         return lines;
@@ -47,49 +108,85 @@ public class RailScanner {
     /**
      * Merge newly scanned lines with existing lines to prevent duplicates.
      * This method:
-     * 1. Validates existing lines (checks if rails still exist)
-     * 2. Checks if new lines overlap with existing lines
-     * 3. Updates existing lines or creates new ones as needed
+     * 1. Matches new lines to similar existing lines, which keep their ID, name and colour
+     * 2. Validates the other existing lines (checks if rails still exist in the scanned chunks)
+     * 3. Checks if the other new lines overlap with existing lines
+     * 4. Updates existing lines or creates new ones as needed
+     * Existing lines are checked through the storage's block index, so the work grows with the
+     * scanned rails and new lines rather than with every stored block.
+     * Lines are compared by blocks, not segment IDs: new lines get segments only when the world's network
+     * is rebuilt after the merge, and the stored lines' segment IDs refer to the previous build.
      * 
-     * @param world The world being scanned
      * @param newLines Newly detected lines from scanning
      * @param existingLines Lines currently stored in the database
+     * @param scan The scan of the world the new lines were clustered from
+     * @param index Block index of the stored lines
      * @return Merged list of lines (updated existing + genuinely new lines)
      */
-    public static List<RailLine> mergeWithExistingLines(World world, List<RailLine> newLines, List<RailLine> existingLines) {
+    public static List<RailLine> mergeWithExistingLines(List<RailLine> newLines, List<RailLine> existingLines, ScanResult scan, BlockLineIndex index) {
+        String worldName = scan.getWorldName();
         logger.info("Merging " + newLines.size() + " newly scanned lines with " + existingLines.size() + " existing lines...");
         
-        // Step 1: Validate existing lines - check if their rails still exist
-        Set<RailBlock> currentRails = findAllRails(world);
+        // Step 1: Match new lines to existing lines of this world by MinHash similarity, so lines that
+        // shifted slightly keep their ID, name and colour. The new lines only hold rails from the scanned
+        // chunks, so a region scan only needs the lines with blocks in those chunks as candidates.
+        Map<String, Integer> inScannedChunks = scan.isWholeWorld() ? null : index.countInChunks(worldName, scan.getScannedChunks());
+        List<RailLine> worldLines = new ArrayList<>();
+        for (RailLine existingLine : existingLines) {
+            if (inScannedChunks == null ? index.hasLine(worldName, existingLine.getId()) : inScannedChunks.containsKey(existingLine.getId())) {
+                worldLines.add(existingLine);
+            }
+        }
+        double minSimilarity = plugin != null ? plugin.getConfig().getDouble("scanner.match-similarity", 0.5) : 0.5;
+        int[] matches = new int[newLines.size()];
+        Arrays.fill(matches, -1);
+        if (minSimilarity > 0) {
+            matches = LineMatcher.match(newLines, worldLines, minSimilarity);
+        }
+        List<RailLine> matchedLines = new ArrayList<>();
+        Set<String> matchedIds = new HashSet<>();
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] >= 0) {
+                RailLine existingLine = worldLines.get(matches[i]);
+                matchedLines.add(carryOver(existingLine, newLines.get(i), scan));
+                matchedIds.add(existingLine.getId());
+            }
+        }
+        
+        // Step 2: Validate the remaining existing lines against the rails found in the scanned chunks
+        Map<String, Integer> stillPresent = index.countOwned(worldName, scan.getRails());
         List<RailLine> validExistingLines = new ArrayList<>();
+        Set<String> validIds = new HashSet<>(matchedIds);
         
         for (RailLine existingLine : existingLines) {
-            // Only keep existing lines from this world
-            boolean isInThisWorld = false;
-            for (RailBlock block : existingLine.getBlocks()) {
-                if (block.world.equals(world.getName())) {
-                    isInThisWorld = true;
-                    break;
-                }
-            }
-            
-            if (!isInThisWorld) {
+            if (!index.hasLine(worldName, existingLine.getId())) {
                 // Line is from a different world, keep it as-is
                 validExistingLines.add(existingLine);
                 continue;
             }
+            if (matchedIds.contains(existingLine.getId())) {
+                continue;
+            }
             
-            // Check if at least 50% of this line's blocks still exist
-            int existingBlockCount = 0;
-            for (RailBlock block : existingLine.getBlocks()) {
-                if (currentRails.contains(block)) {
-                    existingBlockCount++;
-                }
+            // Check if at least 50% of this line's blocks still exist. Blocks in chunks that
+            // were not part of this scan cannot be checked and are assumed to still exist.
+            int scannedBlockCount = inScannedChunks == null
+                    ? index.getBlockCount(worldName, existingLine.getId())
+                    : inScannedChunks.getOrDefault(existingLine.getId(), 0);
+            
+            if (scannedBlockCount == 0) {
+                // Line lies entirely outside the scanned chunks, keep it as-is
+                validExistingLines.add(existingLine);
+                validIds.add(existingLine.getId());
+                continue;
             }
             
+            int existingBlockCount = existingLine.getBlockCount() - scannedBlockCount
+                    + stillPresent.getOrDefault(existingLine.getId(), 0);
             float existenceRatio = (float) existingBlockCount / existingLine.getBlockCount();
             if (existenceRatio >= 0.5) {
                 validExistingLines.add(existingLine);
+                validIds.add(existingLine.getId());
                 logger.info("Existing line " + existingLine.getId() + " validated (" + 
                            (int)(existenceRatio * 100) + "% blocks still exist)");
             } else {
@@ -98,26 +195,32 @@ public class RailScanner {
             }
         }
         
-        // Step 2: Build a set of all blocks covered by valid existing lines in this world
-        Set<RailBlock> blocksInExistingLines = new HashSet<>();
-        for (RailLine existingLine : validExistingLines) {
-            for (RailBlock block : existingLine.getBlocks()) {
-                if (block.world.equals(world.getName())) {
-                    blocksInExistingLines.add(block);
-                }
+        // Step 3: Blocks of valid existing lines are looked up in the index; blocks of matched and added lines are tracked here
+        LongHashSet blocksInAddedLines = new LongHashSet();
+        List<RailLine> mergedLines = new ArrayList<>(validExistingLines);
+        for (RailLine matchedLine : matchedLines) {
+            mergedLines.add(matchedLine);
+            for (RailBlock block : matchedLine.getBlocks()) {
+                blocksInAddedLines.add(BlockKey.of(block));
             }
         }
         
-        // Step 3: Process new lines - only keep those that don't significantly overlap
-        List<RailLine> mergedLines = new ArrayList<>(validExistingLines);
+        // Step 4: Process unmatched new lines - only keep those that don't significantly overlap
         int skippedDuplicates = 0;
         int addedNewLines = 0;
         
-        for (RailLine newLine : newLines) {
+        for (int i = 0; i < newLines.size(); i++) {
+            if (matches[i] >= 0) {
+                continue;
+            }
+            RailLine newLine = newLines.get(i);
             // Calculate how many blocks in this new line are already covered
+            Set<RailBlock> newBlocks = newLine.getBlocks();
             int overlappingBlocks = 0;
-            for (RailBlock block : newLine.getBlocks()) {
-                if (blocksInExistingLines.contains(block)) {
+            for (RailBlock block : newBlocks) {
+                long key = BlockKey.of(block);
+                String owner = index.getOwner(worldName, key);
+                if ((owner != null && validIds.contains(owner)) || blocksInAddedLines.contains(key)) {
                     overlappingBlocks++;
                 }
             }
@@ -134,8 +237,8 @@ public class RailScanner {
                 addedNewLines++;
                 
                 // Add its blocks to the covered set to prevent other duplicates
-                for (RailBlock block : newLine.getBlocks()) {
-                    blocksInExistingLines.add(block);
+                for (RailBlock block : newBlocks) {
+                    blocksInAddedLines.add(BlockKey.of(block));
                 }
                 
                 if (isDebugEnabled()) {
@@ -145,347 +248,224 @@ public class RailScanner {
             }
         }
         
-        logger.info("Merge complete: " + validExistingLines.size() + " existing lines kept, " + 
+        logger.info("Merge complete: " + matchedLines.size() + " lines matched, " + validExistingLines.size() + " existing lines kept, " + 
                    addedNewLines + " new lines added, " + skippedDuplicates + " duplicates skipped");
         
         return mergedLines;
     }
-
-    /**
-     * Scan only the provided chunk set for rail blocks and cluster them into rail lines.
-     * This does not attempt to load or generate chunks; callers should ensure chunks are loaded.
-     */
-    public static List<RailLine> scanChunks(World world, Set<org.bukkit.Chunk> chunks) {
-        logger.info("Scanning " + chunks.size() + " chunks in " + world.getName() + " for rail blocks...");
-
-        Set<RailBlock> rails = findRailsInChunks(world, chunks);
-        logger.info("Found " + rails.size() + " rail blocks in targeted chunks");
-
-        List<RailLine> lines = clusterRails(world, rails);
-        logger.info("Clustered into " + lines.size() + " rail lines from targeted chunks");
-
-        return lines;
-    }
     
     /**
-     * Find all rail blocks in a world (only loaded chunks).
+     * Build the replacement for an existing line that a new line was matched to.
+     * It keeps the existing line's identity and takes the new line's blocks, plus the existing blocks
+     * outside the scanned chunks, which the scan could not see.
      */
-    private static Set<RailBlock> findAllRails(World world) {
-        Set<RailBlock> rails = new HashSet<>();
-        
-        // Only scan loaded chunks for performance
-        for (org.bukkit.Chunk chunk : world.getLoadedChunks()) {
-            for (int x = 0; x < 16; x++) {
-                for (int z = 0; z < 16; z++) {
-                    for (int y = world.getMinHeight(); y < world.getMaxHeight(); y++) {
-                        Block block = chunk.getBlock(x, y, z);
-                        
-                        if (isRailBlock(block)) {
-                            rails.add(new RailBlock(
-                                    block.getX(),
-                                    block.getY(),
-                                    block.getZ(),
-                                    world.getName()
-                            ));
-                        }
-                    }
+    private static RailLine carryOver(RailLine existingLine, RailLine newLine, ScanResult scan) {
+        RailLine line = new RailLine(existingLine.getId(), existingLine.getColor());
+        line.setName(existingLine.getName());
+        line.setCreatedBy(existingLine.getCreatedBy() != null ? existingLine.getCreatedBy() : newLine.getCreatedBy());
+        line.setCreatedAt(existingLine.getCreatedAt());
+        line.setActive(existingLine.isActive());
+        line.addBlocks(newLine.getBlocks());
+        if (!scan.isWholeWorld()) {
+            for (RailBlock block : existingLine.getBlocks()) {
+                if (!scan.isScanned(block.x, block.z)) {
+                    line.addBlock(block);
                 }
             }
         }
-        
-        return rails;
+        if (isDebugEnabled()) {
+            logger.info("Matched new line " + newLine.getId() + " to existing line " + existingLine.getId() +
+                       " (" + line.getBlockCount() + " blocks)");
+        }
+        return line;
     }
 
     /**
-     * Find rail blocks only within the provided chunk set.
+     * Get the range of section indices a snapshot scan of a world should read.
+     * This is every section unless the scan is restricted to the learned rail height band.
      */
-    private static Set<RailBlock> findRailsInChunks(World world, Set<org.bukkit.Chunk> chunks) {
-        Set<RailBlock> rails = new HashSet<>();
+    public static int[] getScanSections(String worldName, int minHeight, int maxHeight) {
+        int firstSection = 0;
+        int lastSection = ((maxHeight - minHeight) >> 4) - 1;
+        RailHeightBand band = getHeightBand(worldName);
+        if (isHeightBandRestricted() && !band.isEmpty()) {
+            int margin = plugin.getConfig().getInt("scanner.y-band.margin", 16);
+            firstSection = Math.max(firstSection, (band.getMinY() - margin - minHeight) >> 4);
+            lastSection = Math.min(lastSection, (band.getMaxY() + margin - minHeight) >> 4);
+        }
+        return new int[]{firstSection, lastSection};
+    }
 
-        for (org.bukkit.Chunk chunk : chunks) {
-            for (int x = 0; x < 16; x++) {
-                for (int z = 0; z < 16; z++) {
-                    for (int y = world.getMinHeight(); y < world.getMaxHeight(); y++) {
-                        Block block = chunk.getBlock(x, y, z);
-                        if (isRailBlock(block)) {
-                            rails.add(new RailBlock(
-                                    block.getX(),
-                                    block.getY(),
-                                    block.getZ(),
-                                    world.getName()
-                            ));
+    /**
+     * Find rail blocks in a chunk snapshot and append their packed block keys to the given buffer.
+     * Safe to call off the main thread since it only reads the snapshot.
+     * Chunks whose palettes hold no rail state are skipped outright, and empty sections are never read.
+     */
+    public static void findRailsInSnapshot(ChunkSnapshot snapshot, String worldName, int minHeight, int[] sections, LongList out) {
+        if (!mayContainRails(snapshot)) {
+            return;
+        }
+        int baseX = snapshot.getX() << 4;
+        int baseZ = snapshot.getZ() << 4;
+        int foundMinY = Integer.MAX_VALUE;
+        int foundMaxY = Integer.MIN_VALUE;
+        for (int section = sections[0]; section <= sections[1]; section++) {
+            if (snapshot.isSectionEmpty(section)) {
+                continue;
+            }
+            int sectionMinY = minHeight + (section << 4);
+            for (int y = sectionMinY; y < sectionMinY + 16; y++) {
+                for (int x = 0; x < 16; x++) {
+                    for (int z = 0; z < 16; z++) {
+                        if (isRailMaterial(snapshot.getBlockType(x, y, z))) {
+                            out.add(BlockKey.pack(baseX + x, y, baseZ + z));
+                            if (y < foundMinY) foundMinY = y;
+                            if (y > foundMaxY) foundMaxY = y;
                         }
                     }
                 }
             }
         }
+        getHeightBand(worldName).record(foundMinY, foundMaxY);
+    }
 
-        return rails;
+    /**
+     * Check the snapshot's block palettes for any rail state without reading individual blocks.
+     */
+    private static boolean mayContainRails(ChunkSnapshot snapshot) {
+        for (BlockData state : RailStates.ALL) {
+            if (snapshot.contains(state)) {
+                return true;
+            }
+        }
+        return false;
     }
-    
+
     /**
-     * Check if a block is a rail.
+     * Get the learned rail height band for a world.
      */
+    public static RailHeightBand getHeightBand(String worldName) {
+        return heightBands.computeIfAbsent(worldName, name -> new RailHeightBand());
+    }
 
-    private static boolean isRailBlock(Block block) {
-        Material material = block.getType();
-        return material == Material.RAIL || material == Material.POWERED_RAIL || material == Material.DETECTOR_RAIL;
+    private static boolean isHeightBandRestricted() {
+        return plugin != null && plugin.getConfig().getBoolean("scanner.y-band.restrict", false);
     }
     
     /**
-     * Cluster adjacent rail blocks into connected lines using neighbor adjacency (XZ plane only).
-     * Each rail is tagged with how many neighbors it has (ignoring Y and shape connectivity).
-     * Lines are traced from endpoints (1 neighbor) following the path until reaching another endpoint.
+     * Check if a material is a rail.
      */
-    private static List<RailLine> clusterRails(World world, Set<RailBlock> allRails) {
-        return clusterRailsWithIdGenerator(world, allRails, null);
+    public static boolean isRailMaterial(Material material) {
+        return material == Material.RAIL || material == Material.POWERED_RAIL || material == Material.DETECTOR_RAIL;
     }
     
     /**
-     * Cluster rails with optional ID generator for creating unique IDs.
+     * Set the creator and name of stored lines from their CoreProtect placers (majority vote among blocks),
+     * in the background. Lines are stored and drawn first; each batch is applied on the main thread once all
+     * its lookups are done, to the lines that still have no creator. Lines are numbered per placer in list order,
+     * and lines renamed in the meantime keep their name.
      */
-    private static List<RailLine> clusterRailsWithIdGenerator(World world, Set<RailBlock> allRails, java.util.function.Supplier<String> idGenerator) {
-        List<RailLine> lines = new ArrayList<>();
-        Set<RailBlock> visited = new HashSet<>();
-        String[] colors = getTflColors();
-        int colorIndex = 0;
-        Map<String, Integer> placerCounts = new HashMap<>();
-        
-        // Build neighbor map: each rail -> count of adjacent rails in XZ plane
-        Map<RailBlock, Integer> neighborCount = new HashMap<>();
-        Map<RailBlock, Set<RailBlock>> neighborMap = new HashMap<>();
-        
-        for (RailBlock rail : allRails) {
-            Set<RailBlock> neighbors = new HashSet<>();
-            // Check 4 cardinal directions (XZ plane only, ignore Y)
-            for (int[] d : new int[][]{{1,0},{-1,0},{0,1},{0,-1}}) {
-                RailBlock neighbor = new RailBlock(rail.x + d[0], rail.y, rail.z + d[1], rail.world);
-                if (allRails.contains(neighbor)) {
-                    neighbors.add(neighbor);
-                }
-                // Also check ±1 in Y for that neighbor (ascending/descending)
-                RailBlock neighborUp = new RailBlock(rail.x + d[0], rail.y + 1, rail.z + d[1], rail.world);
-                if (allRails.contains(neighborUp)) {
-                    neighbors.add(neighborUp);
-                }
-                RailBlock neighborDown = new RailBlock(rail.x + d[0], rail.y - 1, rail.z + d[1], rail.world);
-                if (allRails.contains(neighborDown)) {
-                    neighbors.add(neighborDown);
-                }
-            }
-            neighborCount.put(rail, neighbors.size());
-            neighborMap.put(rail, neighbors);
-        }
-        
-        // Find endpoints (blocks with exactly 1 neighbor) and trace lines
-        for (RailBlock startRail : allRails) {
-            if (visited.contains(startRail)) continue;
-            if (neighborCount.get(startRail) != 1) continue; // Start from endpoint
-            
-            // Trace line from this endpoint with directional preference
-            Set<RailBlock> line = new HashSet<>();
-            RailBlock current = startRail;
-            RailBlock prev = null;
-            
-            while (true) {
-                line.add(current);
-                visited.add(current);
-                
-                // Find next rail: prefer continuing in the same direction we came from
-                Set<RailBlock> neighbors = neighborMap.get(current);
-                
-                // If this is a junction (3+ neighbors), stop tracing here - don't overtrace
-                if (neighbors.size() >= 3) {
-                    break;
-                }
-                
-                RailBlock next = null;
-                
-                if (prev == null) {
-                    // At start (endpoint), just pick the one neighbor
-                    for (RailBlock n : neighbors) {
-                        if (!n.equals(prev)) {
-                            next = n;
-                            break;
-                        }
-                    }
-                } else {
-                    // Calculate direction we came from
-                    int fromDx = current.x - prev.x;
-                    int fromDz = current.z - prev.z;
-                    
-                    // Prefer: straight > turn > never backtrack
-                    RailBlock straightContinue = null;
-                    List<RailBlock> turnOptions = new ArrayList<>();
-                    
-                    for (RailBlock n : neighbors) {
-                        if (n.equals(prev)) continue;
-                        
-                        int toDx = n.x - current.x;
-                        int toDz = n.z - current.z;
-                        
-                        // Check if this neighbor continues the line (dot product)
-                        int dotProduct = (toDx * fromDx) + (toDz * fromDz);
-                        
-                        if (dotProduct > 0) {
-                            // Straight continuation (best option)
-                            straightContinue = n;
-                            break; // Take it immediately
-                        } else if (dotProduct == 0) {
-                            // Perpendicular (90-degree turn, collect as fallback)
-                            turnOptions.add(n);
-                        }
-                        // If dotProduct < 0, it's backtracking - skip it
-                    }
-                    
-                    if (straightContinue != null) {
-                        next = straightContinue;
-                    } else if (!turnOptions.isEmpty()) {
-                        // Tiebreak: prefer turn that goes toward positive X or Z (or less negative)
-                        RailBlock bestTurn = turnOptions.get(0);
-                        for (RailBlock n : turnOptions) {
-                            int bestDx = bestTurn.x - current.x;
-                            int bestDz = bestTurn.z - current.z;
-                            int nDx = n.x - current.x;
-                            int nDz = n.z - current.z;
-                            
-                            // Score: prefer positive direction, then prioritize X over Z
-                            int bestScore = (bestDx > 0 ? 2 : bestDx < 0 ? -2 : 0) + (bestDz > 0 ? 1 : bestDz < 0 ? -1 : 0);
-                            int nScore = (nDx > 0 ? 2 : nDx < 0 ? -2 : 0) + (nDz > 0 ? 1 : nDz < 0 ? -1 : 0);
-                            
-                            if (nScore > bestScore) {
-                                bestTurn = n;
-                            }
-                        }
-                        next = bestTurn;
-                    }
-                }
-                
-                if (next == null) break; // Reached endpoint
-                
-                prev = current;
-                current = next;
+    public static void attributeLater(World world, List<RailLine> lines) {
+        if (coreProtect == null || !coreProtect.isEnabled() || lines.isEmpty()) return;
+        List<RailLine> batch = new ArrayList<>(lines);
+        getPlacerPipeline().resolve(world, batch).whenComplete((placers, error) -> {
+            if (error != null) {
+                logger.warning("Placer lookup stopped: " + error.getMessage());
+                return;
             }
-            
-            // Create line if it has more than one block
-            if (line.size() > 1) {
-                String lineId = idGenerator != null ? idGenerator.get() : "tmp_" + lines.size();
-                RailLine railLine = new RailLine(
-                        lineId,
-                        colors[colorIndex % colors.length]
-                );
-                railLine.addBlocks(line);
-
-                // Determine placer for the line via CoreProtect (majority vote among blocks)
-                String placer = resolveLinePlacer(world, line);
-                if (placer != null) {
-                    railLine.setCreatedBy(placer);
-                    int num = placerCounts.getOrDefault(placer, 0) + 1;
-                    placerCounts.put(placer, num);
-                    railLine.setName(placer + "'s Line: No. " + num);
-                }
+            Bukkit.getScheduler().runTask(plugin, () -> applyPlacers(batch, placers));
+        });
+    }
 
-                lines.add(railLine);
-                colorIndex++;
+    /**
+     * Apply looked-up placers through storage, which changes copies of the lines as stored at that moment,
+     * so a scan that replaced them during the lookup is not undone.
+     */
+    private static void applyPlacers(List<RailLine> batch, String[] placers) {
+        RailwayDataStorage storage = plugin.getDataStorage();
+        Map<String, String> placerById = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (placers[i] != null) {
+                placerById.put(batch.get(i).getId(), placers[i]);
             }
         }
-        
-        // Handle isolated blocks and cycles (blocks with multiple connections)
-        for (RailBlock rail : allRails) {
-            if (!visited.contains(rail)) {
-                Set<RailBlock> cluster = dfsCluster(rail, neighborMap, new HashSet<>());
-                if (!cluster.isEmpty()) {
-                    String lineId = idGenerator != null ? idGenerator.get() : "tmp_" + lines.size();
-                    RailLine railLine = new RailLine(
-                            lineId,
-                            colors[colorIndex % colors.length]
-                    );
-                    railLine.addBlocks(cluster);
-
-                    String placer = resolveLinePlacer(world, cluster);
-                    if (placer != null) {
-                        railLine.setCreatedBy(placer);
-                        int num = placerCounts.getOrDefault(placer, 0) + 1;
-                        placerCounts.put(placer, num);
-                        railLine.setName(placer + "'s Line: No. " + num);
-                    }
-
-                    lines.add(railLine);
-                    colorIndex++;
-                    visited.addAll(cluster);
-                }
+        Map<String, Integer> placerCounts = new HashMap<>();
+        List<RailLine> attributed = storage.updateRailLines(placerById.keySet(), line -> {
+            if (line.getCreatedBy() != null) return false;
+            String placer = placerById.get(line.getId());
+            line.setCreatedBy(placer);
+            int num = placerCounts.merge(placer, 1, Integer::sum);
+            if (line.getName().equals("Line " + line.getId())) {
+                line.setName(placer + "'s Line: No. " + num);
             }
-        }
-        
-        return lines;
+            return true;
+        });
+        if (attributed.isEmpty()) return;
+        plugin.getMapRenderer().updateLineMarkers(Collections.emptyList(), attributed);
+        logger.info("Attributed " + attributed.size() + " of " + batch.size() + " lines to their placers.");
     }
 
-    private static String resolveLinePlacer(World world, Set<RailBlock> lineBlocks) {
+    /**
+     * Find the placer of most of a line's blocks, asking CoreProtect about a sample of them.
+     * Blocks are visited in a random order fixed per line so early samples are spread along it; sampling
+     * stops once one placer has a clear majority, or after coreprotect.placer-samples blocks. A line that
+     * is still contested then, but has votes, is decided by a vote over all its blocks if
+     * coreprotect.full-vote-contested is set.
+     */
+    static String resolveLinePlacer(World world, Set<RailBlock> lineBlocks) {
         if (coreProtect == null || !coreProtect.isEnabled()) return null;
-        Map<String, Integer> freq = new HashMap<>();
-        for (RailBlock rb : lineBlocks) {
+        int maxSamples = plugin != null ? plugin.getConfig().getInt("coreprotect.placer-samples", 64) : 64;
+        boolean fullVoteContested = plugin == null || plugin.getConfig().getBoolean("coreprotect.full-vote-contested", true);
+        if (maxSamples <= 0) {
+            maxSamples = Integer.MAX_VALUE;
+        }
+        
+        List<RailBlock> order = new ArrayList<>(lineBlocks);
+        order.sort(Comparator.comparingLong(BlockKey::of));
+        Collections.shuffle(order, new Random(order.isEmpty() ? 0 : BlockKey.of(order.get(0))));
+        
+        PlacerVote vote = new PlacerVote();
+        for (RailBlock rb : order) {
+            boolean sampling = vote.getSamples() < maxSamples;
+            if (!sampling && (!fullVoteContested || !vote.hasVotes())) break;
+            if (vote.getSamples() >= MIN_PLACER_SAMPLES && vote.isDecided()) break;
             org.bukkit.block.Block b = world.getBlockAt(rb.x, rb.y, rb.z);
-            String p = coreProtect.getBlockPlacer(b);
-            if (p != null && coreProtect.matchesFilters(b, p)) {
-                freq.put(p, freq.getOrDefault(p, 0) + 1);
-            }
+            BlockPlacement placement = coreProtect.getPlacement(b);
+            vote.add(placement != null && coreProtect.matchesFilters(placement) ? placement.getPlacer() : null);
         }
-        String best = null;
-        int bestCount = 0;
-        for (Map.Entry<String, Integer> e : freq.entrySet()) {
-            if (e.getValue() > bestCount) {
-                best = e.getKey();
-                bestCount = e.getValue();
-            }
+        if (isDebugEnabled()) {
+            logger.info("Resolved placer " + vote.getLeader() + " from " + vote.getSamples() + " of " + order.size() + " blocks");
         }
-        return best;
+        return vote.getLeader();
     }
     
     /**
-     * DFS to find all connected rail blocks using neighbor adjacency map.
-     * Used for handling isolated clusters and cycles.
+     * Every block state a rail material can take, used for palette lookups.
+     * Built lazily on first use so the class can load without a server.
      */
-    private static Set<RailBlock> dfsCluster(RailBlock start, Map<RailBlock, Set<RailBlock>> neighborMap, Set<RailBlock> visited) {
-        Set<RailBlock> cluster = new HashSet<>();
-        Stack<RailBlock> stack = new Stack<>();
-        stack.push(start);
-        
-        while (!stack.isEmpty()) {
-            RailBlock current = stack.pop();
-            if (visited.contains(current)) continue;
-            
-            visited.add(current);
-            cluster.add(current);
-            
-            Set<RailBlock> neighbors = neighborMap.getOrDefault(current, new HashSet<>());
-            for (RailBlock neighbor : neighbors) {
-                if (!visited.contains(neighbor)) {
-                    stack.push(neighbor);
+    private static class RailStates {
+        static final List<BlockData> ALL = build();
+
+        private static List<BlockData> build() {
+            List<BlockData> states = new ArrayList<>();
+            for (Material material : new Material[]{Material.RAIL, Material.POWERED_RAIL, Material.DETECTOR_RAIL}) {
+                Rail base = (Rail) material.createBlockData();
+                boolean powerable = base instanceof Powerable;
+                for (Rail.Shape shape : base.getShapes()) {
+                    for (boolean waterlogged : new boolean[]{false, true}) {
+                        for (boolean powered : powerable ? new boolean[]{false, true} : new boolean[]{false}) {
+                            Rail state = (Rail) base.clone();
+                            state.setShape(shape);
+                            state.setWaterlogged(waterlogged);
+                            if (powerable) {
+                                ((Powerable) state).setPowered(powered);
+                            }
+                            states.add(state);
+                        }
+                    }
                 }
             }
+            return states;
         }
-        
-        return cluster;
-    }
-
-    // Removed shape-based direction helpers; clustering now uses spatial adjacency only.
-    
-    /**
-     * Get TfL tube map colors.
-     */
-    private static String[] getTflColors() {
-        return new String[]{
-                "#E21836", // Bakerloo
-                "#000000", // Central
-                "#FFD300", // Circle
-                "#00B0F0", // District
-                "#EE7C0E", // Hammersmith & City
-                "#A0A5A9", // Jubilee
-                "#F391A0", // Metropolitan
-                "#9B0056", // Northern
-                "#E7A81E", // Piccadilly
-                "#00A4EF", // Victoria
-                "#0019A8"  // Waterloo & City
-        };
     }
 }
@@ -0,0 +1,593 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongList;
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Scans a world's Anvil region files (region/*.mca) for rails without loading any chunks.
+ * Region files are memory-mapped and scanned in parallel, one task per file. Each chunk's NBT is
+ * decompressed as a stream and only the block state palettes and data arrays of its sections are decoded.
+ * Works on any copy of a world folder and has no server dependency.
+ */
+public class RegionFileScanner {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+    private static final Pattern REGION_NAME = Pattern.compile("^r\\.(-?\\d+)\\.(-?\\d+)\\.mca$");
+    private static final int SECTOR_BYTES = 4096;
+    private static final MethodHandle UNMAP = findUnmap();
+
+    private final ForkJoinPool pool;
+    private final ChunkRailCache cache;
+    private final AtomicLong chunkCount = new AtomicLong();
+    private final AtomicLong cachedChunkCount = new AtomicLong();
+    private final AtomicLong skippedChunkCount = new AtomicLong();
+    private final AtomicLong sectionCount = new AtomicLong();
+    private final AtomicLong skippedSectionCount = new AtomicLong();
+
+    public RegionFileScanner(ForkJoinPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param cache Chunk rail cache to reuse unchanged chunks from and record decoded chunks in, or null
+     */
+    public RegionFileScanner(ForkJoinPool pool, ChunkRailCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * Locate the region folder of a world folder, covering the Nether and End layouts.
+     * @return The region folder, or null if the world has none
+     */
+    public static File findRegionFolder(File worldFolder) {
+        for (String path : new String[]{"region", "DIM-1/region", "DIM1/region"}) {
+            File folder = new File(worldFolder, path);
+            if (folder.isDirectory()) {
+                return folder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scan every region file in a region folder.
+     * @param regionFolder The folder holding r.X.Z.mca files
+     * @param worldName World name recorded on the rails found
+     */
+    public ScanResult scan(File regionFolder, String worldName) throws IOException {
+        return scan(regionFolder, worldName, Collections.emptySet());
+    }
+
+    /**
+     * Scan every region file in a region folder, keeping some chunks out of the cache.
+     * @param uncachedChunks Keys of chunks that are neither taken from nor stored in the cache, such as
+     *                       chunks loaded on a server, whose saved copy may be older than what the server holds
+     */
+    public ScanResult scan(File regionFolder, String worldName, Set<Long> uncachedChunks) throws IOException {
+        File[] files = regionFolder.listFiles((dir, name) -> REGION_NAME.matcher(name).matches());
+        if (files == null) {
+            throw new IOException("Cannot list region folder " + regionFolder);
+        }
+
+        List<Callable<RegionResult>> tasks = new ArrayList<>();
+        for (File file : files) {
+            tasks.add(() -> scanRegion(file, worldName, uncachedChunks));
+        }
+
+        LongHashSet rails;
+        Set<Long> scannedChunks = new HashSet<>();
+        try {
+            // Each region file fills its own buffers; merge them once every file is done
+            List<RegionResult> regions = new ArrayList<>();
+            int total = 0;
+            for (Future<RegionResult> future : pool.invokeAll(tasks)) {
+                RegionResult region = future.get();
+                regions.add(region);
+                total += region.rails.size();
+            }
+            rails = new LongHashSet(total);
+            for (RegionResult region : regions) {
+                region.rails.addTo(rails);
+                scannedChunks.addAll(region.chunks);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Region scan interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Region scan failed: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        if (skippedChunkCount.get() > 0) {
+            logger.warning("Skipped " + skippedChunkCount.get() + " chunks with unsupported compression or format in " + regionFolder);
+        }
+        return new ScanResult(worldName, rails, scannedChunks);
+    }
+
+    /**
+     * Read the last-saved timestamps of all 1024 chunks from a region file's header.
+     * @return Timestamps in seconds indexed by (z & 31) * 32 + (x & 31), 0 where a chunk is absent;
+     *         null if the region file does not exist or is truncated
+     */
+    public static int[] readChunkTimestamps(File regionFile) {
+        if (regionFile.length() < 2 * SECTOR_BYTES) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(regionFile, "r")) {
+            byte[] header = new byte[SECTOR_BYTES];
+            in.seek(SECTOR_BYTES);
+            in.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            int[] timestamps = new int[1024];
+            for (int i = 0; i < 1024; i++) {
+                timestamps[i] = buffer.getInt(i * 4);
+            }
+            return timestamps;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Region file holding a chunk, named r.X.Z.mca after the region coordinates.
+     */
+    public static File regionFileFor(File regionFolder, int chunkX, int chunkZ) {
+        return new File(regionFolder, "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
+    }
+
+    public long getChunkCount() { return chunkCount.get(); }
+    public long getCachedChunkCount() { return cachedChunkCount.get(); }
+    public long getSkippedChunkCount() { return skippedChunkCount.get(); }
+    public long getSectionCount() { return sectionCount.get(); }
+    public long getSkippedSectionCount() { return skippedSectionCount.get(); }
+
+    /**
+     * Rails and chunk keys found in a single region file.
+     */
+    private static class RegionResult {
+        final LongList rails = new LongList();
+        final List<Long> chunks = new ArrayList<>();
+    }
+
+    /**
+     * Scan one memory-mapped region file.
+     */
+    private RegionResult scanRegion(File file, String worldName, Set<Long> uncachedChunks) throws IOException {
+        RegionResult result = new RegionResult();
+        Matcher matcher = REGION_NAME.matcher(file.getName());
+        if (!matcher.matches() || file.length() < 2 * SECTOR_BYTES) {
+            return result;
+        }
+        int regionX = Integer.parseInt(matcher.group(1));
+        int regionZ = Integer.parseInt(matcher.group(2));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                for (int index = 0; index < 1024; index++) {
+                    int location = map.getInt(index * 4);
+                    int sectorOffset = location >>> 8;
+                    int sectorCount = location & 0xFF;
+                    if (sectorOffset < 2 || sectorCount == 0) {
+                        continue; // chunk not present
+                    }
+                    int chunkX = (regionX << 5) + (index & 31);
+                    int chunkZ = (regionZ << 5) + (index >> 5);
+                    long chunkKey = ScanResult.chunkKey(chunkX, chunkZ);
+                    long timestamp = map.getInt(SECTOR_BYTES + index * 4) & 0xFFFFFFFFL;
+
+                    // Chunks not saved since they were cached do not need to be decompressed again
+                    boolean cacheable = cache != null && !uncachedChunks.contains(chunkKey);
+                    ChunkRailCache.CachedChunk cached = cacheable ? cache.getIfCurrent(worldName, chunkKey, timestamp) : null;
+                    if (cached != null) {
+                        cached.addRailsTo(result.rails, chunkKey);
+                        result.chunks.add(chunkKey);
+                        chunkCount.incrementAndGet();
+                        cachedChunkCount.incrementAndGet();
+                        continue;
+                    }
+
+                    long start = (long) sectorOffset * SECTOR_BYTES;
+                    if (start + 5 > map.limit()) {
+                        skippedChunkCount.incrementAndGet();
+                        continue;
+                    }
+
+                    int length = map.getInt((int) start);
+                    int compression = map.get((int) start + 4) & 0xFF;
+                    try (InputStream raw = openChunkStream(file, map, (int) start + 5, length - 1, compression, chunkX, chunkZ)) {
+                        if (raw == null) {
+                            skippedChunkCount.incrementAndGet();
+                            continue;
+                        }
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 8192));
+                        final int baseX = chunkX << 4;
+                        final int baseZ = chunkZ << 4;
+                        int firstRail = result.rails.size();
+                        boolean decoded = new ChunkDecoder(in).decode((x, y, z) ->
+                                result.rails.add(BlockKey.pack(baseX + x, y, baseZ + z)));
+                        if (decoded) {
+                            result.chunks.add(chunkKey);
+                            chunkCount.incrementAndGet();
+                            // Rails from a live snapshot are newer than what was last saved to disk
+                            ChunkRailCache.CachedChunk previous = cacheable ? cache.get(worldName, chunkKey) : null;
+                            if (cacheable && (previous == null || previous.getFingerprint() != ChunkRailCache.FINGERPRINT_NONE)) {
+                                cache.put(worldName, chunkKey, timestamp, result.rails, firstRail, result.rails.size());
+                            }
+                        } else {
+                            skippedChunkCount.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        logger.fine("Failed to read chunk " + chunkX + "," + chunkZ + " in " + file.getName() + ": " + e.getMessage());
+                        skippedChunkCount.incrementAndGet();
+                    }
+                }
+            } finally {
+                unmap(map); // no stream over the mapping outlives the loop
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Release a region file's mapping now rather than whenever the buffer is collected, so a world scan does not
+     * keep thousands of files mapped and the server can rewrite them right away. The buffer must not be read after.
+     */
+    private static void unmap(MappedByteBuffer map) {
+        if (UNMAP == null) return;
+        try {
+            UNMAP.invokeExact((ByteBuffer) map);
+        } catch (Throwable e) {
+            logger.fine("Failed to unmap a region file: " + e);
+        }
+    }
+
+    /**
+     * Find Unsafe.invokeCleaner, which unmaps a buffer.
+     * @return Handle taking the buffer, or null where it is unavailable and mappings are left to the garbage collector
+     */
+    private static MethodHandle findUnmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Open a decompressing stream over a chunk's payload.
+     * @return The stream, or null for compression schemes that are not supported
+     */
+    private static InputStream openChunkStream(File regionFile, ByteBuffer map, int offset, int length,
+                                               int compression, int chunkX, int chunkZ) throws IOException {
+        InputStream source;
+        if ((compression & 0x80) != 0) {
+            // Oversized chunk stored in an external c.X.Z.mcc file next to the region file
+            File external = new File(regionFile.getParentFile(), "c." + chunkX + "." + chunkZ + ".mcc");
+            if (!external.isFile()) return null;
+            source = new FileInputStream(external);
+            compression &= 0x7F;
+        } else {
+            if (length <= 0 || offset + length > map.limit()) return null;
+            source = new ByteBufferInputStream(map.slice(offset, length));
+        }
+        switch (compression) {
+            case 1: return new GZIPInputStream(source);
+            case 2: return new InflaterInputStream(source);
+            case 3: return source;
+            default:
+                source.close();
+                return null; // LZ4 and custom compression are not supported
+        }
+    }
+
+    /**
+     * Receives the chunk-relative X, absolute Y and chunk-relative Z of each rail found.
+     */
+    interface RailSink {
+        void accept(int x, int y, int z);
+    }
+
+    /**
+     * Minimal streaming NBT reader that walks a chunk's sections and decodes only their block states.
+     * Supports the 1.18+ layout (sections/block_states) and the 1.16-1.17 layout (Level/Sections/Palette/BlockStates).
+     */
+    private class ChunkDecoder {
+        private static final int TAG_END = 0;
+        private static final int TAG_BYTE = 1;
+        private static final int TAG_SHORT = 2;
+        private static final int TAG_INT = 3;
+        private static final int TAG_LONG = 4;
+        private static final int TAG_FLOAT = 5;
+        private static final int TAG_DOUBLE = 6;
+        private static final int TAG_BYTE_ARRAY = 7;
+        private static final int TAG_STRING = 8;
+        private static final int TAG_LIST = 9;
+        private static final int TAG_COMPOUND = 10;
+        private static final int TAG_INT_ARRAY = 11;
+        private static final int TAG_LONG_ARRAY = 12;
+
+        private final DataInputStream in;
+        private int dataVersion = -1;
+
+        ChunkDecoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return true if the chunk's sections were found and decoded
+         */
+        boolean decode(RailSink sink) throws IOException {
+            if (in.readByte() != TAG_COMPOUND) return false;
+            in.readUTF(); // root name
+            return readChunkCompound(sink);
+        }
+
+        private boolean readChunkCompound(RailSink sink) throws IOException {
+            while (true) {
+                int type = in.readByte();
+                if (type == TAG_END) return false;
+                String name = in.readUTF();
+                if (type == TAG_INT && name.equals("DataVersion")) {
+                    dataVersion = in.readInt();
+                } else if (type == TAG_COMPOUND && name.equals("Level")) {
+                    return readChunkCompound(sink);
+                } else if (type == TAG_LIST && (name.equals("sections") || name.equals("Sections"))) {
+                    // Chunks from before 1.16 pack block states across long boundaries; those are not decoded
+                    if (dataVersion >= 0 && dataVersion < 2566) return false;
+                    readSections(sink);
+                    return true; // nothing after the sections is needed
+                } else {
+                    skipPayload(type);
+                }
+            }
+        }
+
+        private void readSections(RailSink sink) throws IOException {
+            int elementType = in.readByte();
+            int count = in.readInt();
+            if (elementType != TAG_COMPOUND) {
+                for (int i = 0; i < count; i++) skipPayload(elementType);
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                readSection(sink);
+            }
+        }
+
+        private void readSection(RailSink sink) throws IOException {
+            int sectionY = 0;
+            boolean[] railPalette = null;
+            long[] data = null;
+            boolean dataSkipped = false;
+
+            while (true) {
+                int type = in.readByte();
+                if (type == TAG_END) break;
+                String name = in.readUTF();
+                if (name.equals("Y") && type == TAG_BYTE) {
+                    sectionY = in.readByte();
+                } else if (name.equals("block_states") && type == TAG_COMPOUND) {
+                    // 1.18+: palette and data nested in a compound
+                    while (true) {
+                        int innerType = in.readByte();
+                        if (innerType == TAG_END) break;
+                        String innerName = in.readUTF();
+                        if (innerName.equals("palette") && innerType == TAG_LIST) {
+                            railPalette = readPalette();
+                        } else if (innerName.equals("data") && innerType == TAG_LONG_ARRAY) {
+                            if (railPalette != null && !hasRail(railPalette)) {
+                                skipPayload(innerType);
+                                dataSkipped = true;
+                            } else {
+                                data = readLongArray();
+                            }
+                        } else {
+                            skipPayload(innerType);
+                        }
+                    }
+                } else if (name.equals("Palette") && type == TAG_LIST) {
+                    railPalette = readPalette();
+                } else if (name.equals("BlockStates") && type == TAG_LONG_ARRAY) {
+                    if (railPalette != null && !hasRail(railPalette)) {
+                        skipPayload(type);
+                        dataSkipped = true;
+                    } else {
+                        data = readLongArray();
+                    }
+                } else {
+                    skipPayload(type);
+                }
+            }
+
+            if (railPalette == null || dataSkipped || !hasRail(railPalette)) {
+                skippedSectionCount.incrementAndGet();
+                return;
+            }
+            sectionCount.incrementAndGet();
+            decodeSection(sectionY, railPalette, data, sink);
+        }
+
+        /**
+         * Read a palette, keeping only whether each entry is a rail.
+         */
+        private boolean[] readPalette() throws IOException {
+            int elementType = in.readByte();
+            int count = in.readInt();
+            boolean[] rails = new boolean[Math.max(count, 0)];
+            if (elementType != TAG_COMPOUND) {
+                for (int i = 0; i < count; i++) skipPayload(elementType);
+                return rails;
+            }
+            for (int i = 0; i < count; i++) {
+                while (true) {
+                    int type = in.readByte();
+                    if (type == TAG_END) break;
+                    String name = in.readUTF();
+                    if (name.equals("Name") && type == TAG_STRING) {
+                        rails[i] = isRailName(in.readUTF());
+                    } else {
+                        skipPayload(type);
+                    }
+                }
+            }
+            return rails;
+        }
+
+        private long[] readLongArray() throws IOException {
+            int length = in.readInt();
+            long[] values = new long[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readLong();
+            }
+            return values;
+        }
+
+        private void skipPayload(int type) throws IOException {
+            switch (type) {
+                case TAG_BYTE: skipFully(1); break;
+                case TAG_SHORT: skipFully(2); break;
+                case TAG_INT:
+                case TAG_FLOAT: skipFully(4); break;
+                case TAG_LONG:
+                case TAG_DOUBLE: skipFully(8); break;
+                case TAG_BYTE_ARRAY: skipFully(in.readInt()); break;
+                case TAG_STRING: skipFully(in.readUnsignedShort()); break;
+                case TAG_LIST: {
+                    int elementType = in.readByte();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) skipPayload(elementType);
+                    break;
+                }
+                case TAG_COMPOUND: {
+                    while (true) {
+                        int inner = in.readByte();
+                        if (inner == TAG_END) break;
+                        skipFully(in.readUnsignedShort()); // name
+                        skipPayload(inner);
+                    }
+                    break;
+                }
+                case TAG_INT_ARRAY: skipFully((long) in.readInt() * 4); break;
+                case TAG_LONG_ARRAY: skipFully((long) in.readInt() * 8); break;
+                default: throw new IOException("Unknown NBT tag type " + type);
+            }
+        }
+
+        private void skipFully(long bytes) throws IOException {
+            while (bytes > 0) {
+                int skipped = in.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    in.readByte(); // throws EOFException at end of stream
+                    skipped = 1;
+                }
+                bytes -= skipped;
+            }
+        }
+    }
+
+    private static boolean hasRail(boolean[] railPalette) {
+        for (boolean rail : railPalette) {
+            if (rail) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if a namespaced block id is a rail.
+     */
+    public static boolean isRailName(String name) {
+        return name.equals("minecraft:rail") || name.equals("minecraft:powered_rail") || name.equals("minecraft:detector_rail");
+    }
+
+    /**
+     * Decode a section's packed palette indices and report every rail in it.
+     * Since 1.16 indices never span two longs, and each entry uses at least 4 bits.
+     */
+    static void decodeSection(int sectionY, boolean[] railPalette, long[] data, RailSink sink) {
+        int baseY = sectionY << 4;
+        if (railPalette.length == 1 || data == null || data.length == 0) {
+            // Single-valued section; with a rail palette this means every block is a rail
+            if (railPalette[0]) {
+                for (int i = 0; i < 4096; i++) {
+                    sink.accept(i & 15, baseY + (i >> 8), (i >> 4) & 15);
+                }
+            }
+            return;
+        }
+        int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(railPalette.length - 1));
+        int perLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        int index = 0;
+        for (long word : data) {
+            for (int slot = 0; slot < perLong && index < 4096; slot++, index++) {
+                int value = (int) ((word >>> (slot * bits)) & mask);
+                if (value < railPalette.length && railPalette[value]) {
+                    sink.accept(index & 15, baseY + (index >> 8), (index >> 4) & 15);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only input stream over a byte buffer slice.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import com.fabianoley.dynmaprailways.DynmapRailways;
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.storage.BulkScanFile;
+import com.fabianoley.dynmaprailways.storage.RailwayDataStorage;
+import com.fabianoley.dynmaprailways.storage.RailwayJson;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Imports bulk scan files dropped into the plugin's import folder.
+ * Each file is merged with the stored lines of its world like a full rescan, then marked as imported.
+ */
+public class ScanImporter {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+    private static final int MAX_MERGE_ATTEMPTS = 5; // merges of one file before leaving it for the next startup
+
+    /**
+     * Import every pending bulk scan file.
+     * @return Number of files imported
+     */
+    public static int importPending(DynmapRailways plugin) {
+        File folder = new File(plugin.getDataFolder(), BulkScanFile.IMPORT_FOLDER);
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(BulkScanFile.EXTENSION));
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+
+        int imported = 0;
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                importFile(plugin, file);
+                if (!file.renameTo(new File(folder, file.getName() + ".imported"))) {
+                    logger.warning("Could not mark " + file.getName() + " as imported; it will be imported again next startup.");
+                }
+                imported++;
+            } catch (Exception e) {
+                logger.warning("Failed to import bulk scan " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return imported;
+    }
+
+    private static void importFile(DynmapRailways plugin, File file) throws Exception {
+        BulkScanFile scanFile;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            scanFile = RailwayJson.create().fromJson(reader, BulkScanFile.class);
+        }
+        if (scanFile == null || scanFile.getWorld() == null) {
+            throw new IOException("missing world name");
+        }
+        String worldName = scanFile.getWorld();
+        RailwayDataStorage storage = plugin.getDataStorage();
+
+        LongHashSet rails = new LongHashSet();
+        List<RailLine> newLines = scanFile.getLines();
+        for (RailLine line : newLines) {
+            for (RailBlock block : line.getBlocks()) {
+                if (worldName.equals(block.world)) {
+                    rails.add(BlockKey.of(block));
+                }
+            }
+        }
+
+        // Merge with a copy of the stored lines, and merge again if other lines are stored before the result
+        int minLineLength = plugin.getConfig().getInt("general.min-line-length", 15);
+        List<RailLine> added = new ArrayList<>();
+        for (int attempt = 1; ; attempt++) {
+            long generation = storage.getLineGeneration();
+
+            // Split stored lines into this world's and the rest
+            List<RailLine> existingForWorld = new ArrayList<>();
+            List<RailLine> otherLines = new ArrayList<>();
+            for (RailLine line : storage.getRailLines().values()) {
+                (storage.getBlockIndex().hasLine(worldName, line.getId()) ? existingForWorld : otherLines).add(line);
+            }
+
+            // The bulk scan covered the whole saved world, so every stored block can be validated against it
+            List<RailLine> merged = RailScanner.mergeWithExistingLines(newLines, existingForWorld,
+                    ScanResult.ofWholeWorld(worldName, rails), storage.getBlockIndex());
+
+            // Give the scanned lines that were kept real IDs; IDs are reserved until stored, so only kept lines get one
+            Set<RailLine> scanned = Collections.newSetFromMap(new IdentityHashMap<>());
+            scanned.addAll(newLines);
+            added.clear();
+            for (int i = 0; i < merged.size(); i++) {
+                RailLine line = merged.get(i);
+                if (scanned.contains(line)) {
+                    RailLine properLine = new RailLine(storage.generateLineId(), line.getColor());
+                    properLine.setName(line.getName());
+                    properLine.setCreatedBy(line.getCreatedBy());
+                    properLine.addBlocks(line.getBlocks());
+                    merged.set(i, properLine);
+                    added.add(properLine);
+                }
+            }
+
+            List<RailLine> all = new ArrayList<>(merged);
+            all.addAll(otherLines);
+            if (storage.replaceAllRailLinesFilteredIfUnchanged(generation, all, minLineLength) >= 0) {
+                break;
+            }
+            if (attempt == MAX_MERGE_ATTEMPTS) {
+                throw new IOException("rail lines kept changing during the merge");
+            }
+        }
+        
+        // The bulk scanner has no CoreProtect access, so attribute the lines it added here, in the background
+        World world = Bukkit.getWorld(worldName);
+        if (world != null) {
+            List<RailLine> unattributed = new ArrayList<>();
+            for (RailLine line : added) {
+                if (line.getCreatedBy() == null && line.getBlockCount() >= minLineLength) {
+                    unattributed.add(line);
+                }
+            }
+            RailScanner.attributeLater(world, unattributed);
+        }
+        logger.info("Imported bulk scan " + file.getName() + " for world " + worldName + " (" +
+                scanFile.getLines().size() + " scanned lines, " + scanFile.getChunkCount() + " chunks).");
+    }
+}
@@ -0,0 +1,69 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import java.util.*;
+
+/**
+ * Rail blocks extracted from a set of chunks of one world, together with the chunks that were covered.
+ * Rails are held as packed {@link BlockKey}s.
+ */
+public class ScanResult {
+    private final String worldName;
+    private final LongHashSet rails;
+    private final Set<Long> scannedChunks;
+    private final boolean wholeWorld;
+
+    public ScanResult(String worldName, LongHashSet rails, Set<Long> scannedChunks) {
+        this(worldName, rails, scannedChunks, false);
+    }
+
+    private ScanResult(String worldName, LongHashSet rails, Set<Long> scannedChunks, boolean wholeWorld) {
+        this.worldName = worldName;
+        this.rails = rails;
+        this.scannedChunks = scannedChunks;
+        this.wholeWorld = wholeWorld;
+    }
+
+    /**
+     * Result of a scan that covered every chunk of the world, such as an imported bulk scan.
+     */
+    public static ScanResult ofWholeWorld(String worldName, LongHashSet rails) {
+        return new ScanResult(worldName, rails, Collections.emptySet(), true);
+    }
+
+    public String getWorldName() { return worldName; }
+    public LongHashSet getRails() { return rails; }
+
+    /**
+     * Check whether the scan found a rail at the given block.
+     */
+    public boolean containsRail(RailBlock block) {
+        return worldName.equals(block.world) && rails.contains(BlockKey.of(block));
+    }
+    public Set<Long> getScannedChunks() { return scannedChunks; }
+    public boolean isWholeWorld() { return wholeWorld; }
+
+    /**
+     * Check whether the chunk holding the given block coordinates was part of this scan.
+     */
+    public boolean isScanned(int blockX, int blockZ) {
+        return wholeWorld || scannedChunks.contains(chunkKey(blockX >> 4, blockZ >> 4));
+    }
+
+    /**
+     * Pack chunk coordinates into a single key.
+     */
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public static int chunkX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int chunkZ(long key) {
+        return (int) key;
+    }
+}
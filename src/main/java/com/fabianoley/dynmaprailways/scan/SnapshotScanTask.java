@@ -0,0 +1,174 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.fabianoley.dynmaprailways.DynmapRailways;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongList;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes chunk snapshots on the main thread in small batches each tick and hands every batch
+ * to the scanner's worker pool for rail extraction. Workers only ever read the snapshots, never live world state.
+ */
+public class SnapshotScanTask extends BukkitRunnable {
+
+    private final DynmapRailways plugin;
+    private final World world;
+    private final String worldName;
+    private final boolean loadMissing;
+    private final int snapshotsPerTick;
+    private final int maxPendingBatches;
+    private final Executor worker;
+    private final ChunkRailCache cache; // null unless cached chunks may be reused
+    private final File regionFolder; // null if the world has not been saved yet
+    private final Map<File, int[]> regionTimestamps = new HashMap<>();
+
+    private Deque<Long> pending; // null until the first tick when scanning all loaded chunks
+    private final Set<Long> scannedChunks = new HashSet<>();
+    private final Map<Long, ChunkRailCache.CachedChunk> cachedChunks = new HashMap<>();
+    private final RailExtraction extraction;
+    private final List<CompletableFuture<Void>> batches = new ArrayList<>();
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private final CompletableFuture<ScanResult> result = new CompletableFuture<>();
+
+    private SnapshotScanTask(DynmapRailways plugin, World world, Collection<Long> chunkKeys, boolean loadMissing, boolean reuseCache) {
+        this.plugin = plugin;
+        this.world = world;
+        this.worldName = world.getName();
+        ChunkRailCache chunkCache = plugin.getChunkRailCache();
+        this.cache = reuseCache && chunkCache != null && plugin.getConfig().getBoolean("cache.reuse-in-scans", true) ? chunkCache : null;
+        this.regionFolder = RegionFileScanner.findRegionFolder(world.getWorldFolder());
+        this.extraction = new RailExtraction(worldName, world.getMinHeight(), world.getMaxHeight(), chunkCache, true);
+        this.loadMissing = loadMissing;
+        this.pending = chunkKeys != null ? new ArrayDeque<>(chunkKeys) : null;
+        this.snapshotsPerTick = Math.max(1, plugin.getConfig().getInt("scanner.snapshots-per-tick", 32));
+        this.maxPendingBatches = Math.max(1, plugin.getConfig().getInt("scanner.max-pending-batches", 8));
+        this.worker = task -> Bukkit.getScheduler().runTaskAsynchronously(plugin, task);
+    }
+
+    /**
+     * Scan every chunk that is loaded in the world when the task first runs.
+     */
+    public static CompletableFuture<ScanResult> scanLoadedChunks(DynmapRailways plugin, World world) {
+        return new SnapshotScanTask(plugin, world, null, false, true).start();
+    }
+
+    /**
+     * Scan the given chunks, loading already generated chunks that are not currently loaded.
+     */
+    public static CompletableFuture<ScanResult> scanChunks(DynmapRailways plugin, World world, Collection<Long> chunkKeys) {
+        return new SnapshotScanTask(plugin, world, chunkKeys, true, true).start();
+    }
+
+    /**
+     * Scan the given chunks from fresh snapshots, never from the chunk rail cache.
+     */
+    public static CompletableFuture<ScanResult> rescanChunks(DynmapRailways plugin, World world, Collection<Long> chunkKeys) {
+        return new SnapshotScanTask(plugin, world, chunkKeys, true, false).start();
+    }
+
+    private CompletableFuture<ScanResult> start() {
+        runTaskTimer(plugin, 1L, 1L);
+        return result;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (pending == null) {
+                pending = new ArrayDeque<>();
+                for (org.bukkit.Chunk chunk : world.getLoadedChunks()) {
+                    pending.add(ScanResult.chunkKey(chunk.getX(), chunk.getZ()));
+                }
+            }
+
+            // Let the workers catch up before taking more snapshots to keep memory bounded
+            if (!pending.isEmpty() && pendingBatches.get() < maxPendingBatches) {
+                List<ChunkSnapshot> batch = new ArrayList<>(snapshotsPerTick);
+                LongList fingerprints = new LongList(snapshotsPerTick);
+                while (batch.size() < snapshotsPerTick && !pending.isEmpty()) {
+                    long key = pending.poll();
+                    int cx = ScanResult.chunkX(key);
+                    int cz = ScanResult.chunkZ(key);
+                    // A loaded chunk may differ from its last save in ways no event reported, so it is always
+                    // snapshotted; a chunk that is not loaded is as saved, and an entry taken from that save still holds
+                    long fingerprint = ChunkRailCache.FINGERPRINT_NONE;
+                    if (!world.isChunkLoaded(cx, cz)) {
+                        fingerprint = savedFingerprint(cx, cz);
+                        ChunkRailCache.CachedChunk cached = cache != null ? cache.getIfCurrent(worldName, key, fingerprint) : null;
+                        if (cached != null) {
+                            cachedChunks.put(key, cached);
+                            scannedChunks.add(key);
+                            continue;
+                        }
+                        if (!loadMissing || !world.loadChunk(cx, cz, false)) { // do not generate
+                            continue;
+                        }
+                    }
+                    batch.add(world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false));
+                    fingerprints.add(fingerprint);
+                    scannedChunks.add(key);
+                }
+                if (!batch.isEmpty()) {
+                    submit(batch, fingerprints.toArray());
+                }
+            }
+
+            if (pending.isEmpty()) {
+                cancel();
+                finish();
+            }
+        } catch (Exception e) {
+            cancel();
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Last-saved timestamp of a chunk from its region file header, or {@link ChunkRailCache#FINGERPRINT_NONE}
+     * if it was never saved. Each region header is read once per scan.
+     */
+    private long savedFingerprint(int chunkX, int chunkZ) {
+        if (regionFolder == null) {
+            return ChunkRailCache.FINGERPRINT_NONE;
+        }
+        int[] timestamps = regionTimestamps.computeIfAbsent(
+                RegionFileScanner.regionFileFor(regionFolder, chunkX, chunkZ), RegionFileScanner::readChunkTimestamps);
+        return timestamps != null ? timestamps[((chunkZ & 31) << 5) | (chunkX & 31)] & 0xFFFFFFFFL : ChunkRailCache.FINGERPRINT_NONE;
+    }
+
+    /**
+     * @param fingerprints Fingerprint to cache each snapshot's rails under; chunks loaded from disk by this scan
+     *                     carry their saved timestamp, chunks that were already loaded none
+     */
+    private void submit(List<ChunkSnapshot> batch, long[] fingerprints) {
+        pendingBatches.incrementAndGet();
+        CompletableFuture<Void> future = extraction.submit(batch, fingerprints);
+        future.whenComplete((ignored, error) -> pendingBatches.decrementAndGet());
+        batches.add(future);
+    }
+
+    private void finish() {
+        // Complete on a worker so callers continue off the main thread even when nothing was scanned
+        CompletableFuture.allOf(batches.toArray(CompletableFuture<?>[]::new)).whenCompleteAsync((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            // Each worker filled its own buffer; merge them once at the end
+            LongHashSet rails = extraction.merge();
+            for (Map.Entry<Long, ChunkRailCache.CachedChunk> cached : cachedChunks.entrySet()) {
+                cached.getValue().addRailsTo(rails, cached.getKey());
+            }
+            result.complete(new ScanResult(worldName, rails, scannedChunks));
+        }, worker);
+    }
+}
@@ -44,6 +44,7 @@ public class Station {
     
     public void setName(String name) { this.name = name; }
     public void setCreatedBy(String createdBy) { this.createdBy = createdBy; }
+    public void setCreatedAt(long createdAt) { this.createdAt = createdAt; }
     public void setActive(boolean active) { this.isActive = active; }
     public void setY(int y) { this.y = y; }
     public void setWorld(String world) { this.world = world; }
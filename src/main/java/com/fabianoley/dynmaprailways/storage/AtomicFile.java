@@ -0,0 +1,35 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replaces files without ever leaving a partly written one behind: the content goes to a temp file
+ * next to the target, is forced to disk, and is then renamed over the target in one step.
+ */
+final class AtomicFile {
+
+    interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    static void write(File target, Body body) throws IOException {
+        File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            BufferedOutputStream out = new BufferedOutputStream(file, 1 << 16);
+            body.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailGraph;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.IntList;
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary form of the stored rail lines (rails.dat).
+ * World names are written once in a dictionary. Each line's blocks are ordered by walking the line's track,
+ * so consecutive blocks are usually neighbours, and every block is written as zigzag varint deltas from the
+ * previous one; a straight stretch costs three bytes per rail. The body after the header may be deflated.
+ */
+final class BinaryRailFile {
+
+    private static final int MAGIC = 0x52444154; // "RDAT"
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATE = 1;
+
+    private static final int HAS_NAME = 1;
+    private static final int HAS_COLOR = 2;
+    private static final int HAS_CREATED_BY = 4;
+    private static final int ACTIVE = 8;
+    private static final int HAS_SEGMENTS = 16;
+
+    private BinaryRailFile() {
+    }
+
+    static void write(OutputStream out, Collection<RailLine> lines, boolean deflate) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeByte(deflate ? FLAG_DEFLATE : 0);
+        header.flush();
+        if (!deflate) {
+            writeBody(header, lines);
+            header.flush();
+            return;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater, 1 << 16);
+            DataOutputStream body = new DataOutputStream(new BufferedOutputStream(compressed, 1 << 16));
+            writeBody(body, lines);
+            body.flush();
+            compressed.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeBody(DataOutputStream out, Collection<RailLine> lines) throws IOException {
+        // The dictionary comes first, so collect the world names before writing any line
+        Map<String, Integer> worlds = new LinkedHashMap<>();
+        for (RailLine line : lines) {
+            for (RailBlock block : line.getBlocks()) {
+                worlds.putIfAbsent(block.world, worlds.size());
+            }
+        }
+
+        writeVarInt(out, worlds.size());
+        for (String world : worlds.keySet()) {
+            out.writeUTF(world);
+        }
+        writeVarInt(out, lines.size());
+        for (RailLine line : lines) {
+            Map<String, List<RailBlock>> byWorld = new LinkedHashMap<>();
+            for (RailBlock block : line.getBlocks()) {
+                byWorld.computeIfAbsent(block.world, w -> new ArrayList<>()).add(block);
+            }
+            writeLineHeader(out, line);
+
+            writeVarInt(out, byWorld.size());
+            for (Map.Entry<String, List<RailBlock>> entry : byWorld.entrySet()) {
+                // A line in one world can reuse its cached graph
+                RailGraph graph = byWorld.size() == 1 ? line.getGraph() : RailGraph.build(entry.getValue());
+                Integer world = worlds.get(entry.getKey());
+                if (world == null) {
+                    throw new IOException("Line " + line.getId() + " changed while it was written");
+                }
+                writeVarInt(out, world);
+                writeBlocks(out, walk(graph));
+            }
+        }
+    }
+
+    /**
+     * Write everything about a line but its blocks.
+     */
+    static void writeLineHeader(DataOutputStream out, RailLine line) throws IOException {
+        List<Integer> segmentIds = line.getSegmentIds();
+        int flags = (line.getName() != null ? HAS_NAME : 0)
+                | (line.getColor() != null ? HAS_COLOR : 0)
+                | (line.getCreatedBy() != null ? HAS_CREATED_BY : 0)
+                | (line.isActive() ? ACTIVE : 0)
+                | (segmentIds != null ? HAS_SEGMENTS : 0);
+        out.writeUTF(line.getId());
+        out.writeByte(flags);
+        if (line.getName() != null) out.writeUTF(line.getName());
+        if (line.getColor() != null) out.writeUTF(line.getColor());
+        if (line.getCreatedBy() != null) out.writeUTF(line.getCreatedBy());
+        out.writeLong(line.getCreatedAt());
+        if (segmentIds != null) {
+            writeVarInt(out, segmentIds.size());
+            for (int id : segmentIds) {
+                writeVarInt(out, id);
+            }
+        }
+    }
+
+    /**
+     * Read a line written by {@link #writeLineHeader}, without blocks.
+     */
+    static RailLine readLineHeader(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        int flags = in.readUnsignedByte();
+        String name = (flags & HAS_NAME) != 0 ? in.readUTF() : null;
+        String color = (flags & HAS_COLOR) != 0 ? in.readUTF() : null;
+        RailLine line = new RailLine(id, color);
+        line.setName(name);
+        if ((flags & HAS_CREATED_BY) != 0) line.setCreatedBy(in.readUTF());
+        line.setCreatedAt(in.readLong());
+        line.setActive((flags & ACTIVE) != 0);
+        if ((flags & HAS_SEGMENTS) != 0) {
+            List<Integer> segmentIds = new ArrayList<>();
+            for (int s = readVarInt(in); s > 0; s--) {
+                segmentIds.add(readVarInt(in));
+            }
+            line.setSegmentIds(segmentIds);
+        }
+        return line;
+    }
+
+    /**
+     * Write a count and then packed block keys, each as zigzag deltas from the one before.
+     */
+    static void writeBlocks(DataOutputStream out, long[] keys) throws IOException {
+        writeVarInt(out, keys.length);
+        int x = 0, y = 0, z = 0;
+        for (long key : keys) {
+            writeVarInt(out, zigzag(BlockKey.x(key) - x));
+            writeVarInt(out, zigzag(BlockKey.y(key) - y));
+            writeVarInt(out, zigzag(BlockKey.z(key) - z));
+            x = BlockKey.x(key);
+            y = BlockKey.y(key);
+            z = BlockKey.z(key);
+        }
+    }
+
+    /**
+     * Read blocks written by {@link #writeBlocks} into a list.
+     */
+    static void readBlocks(DataInputStream in, String world, List<RailBlock> blocks) throws IOException {
+        int x = 0, y = 0, z = 0;
+        for (int b = readVarInt(in); b > 0; b--) {
+            x += unzigzag(readVarInt(in));
+            y += unzigzag(readVarInt(in));
+            z += unzigzag(readVarInt(in));
+            blocks.add(new RailBlock(x, y, z, world));
+        }
+    }
+
+    /**
+     * Order the rails of a graph along the track: a depth-first walk that starts at a line end where there is
+     * one, so each rail usually follows its neighbour and only branches and gaps cost a longer jump.
+     */
+    private static long[] walk(RailGraph graph) {
+        int n = graph.size();
+        long[] ordered = new long[n];
+        boolean[] visited = new boolean[n];
+        IntList stack = new IntList();
+        int count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int start = 0; start < n; start++) {
+                // First pass starts only at ends, the second picks up loops
+                if (visited[start] || (pass == 0 && graph.degree(start) > 1)) continue;
+                stack.add(start);
+                while (!stack.isEmpty()) {
+                    int node = stack.removeLast();
+                    if (visited[node]) continue;
+                    visited[node] = true;
+                    ordered[count++] = graph.key(node);
+                    for (int e = graph.edgeEnd(node) - 1; e >= graph.edgeStart(node); e--) {
+                        if (!visited[graph.neighbor(e)]) {
+                            stack.add(graph.neighbor(e));
+                        }
+                    }
+                }
+            }
+        }
+        return ordered;
+    }
+
+    static List<RailLine> read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a rail data file");
+        }
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported rail data version " + version);
+        }
+        int flags = header.readUnsignedByte();
+        if ((flags & FLAG_DEFLATE) == 0) {
+            return readBody(new DataInputStream(new BufferedInputStream(in, 1 << 16)));
+        }
+        Inflater inflater = new Inflater();
+        try {
+            return readBody(new DataInputStream(new BufferedInputStream(new InflaterInputStream(in, inflater, 1 << 16), 1 << 16)));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static List<RailLine> readBody(DataInputStream in) throws IOException {
+        String[] worlds = new String[readVarInt(in)];
+        for (int i = 0; i < worlds.length; i++) {
+            worlds[i] = in.readUTF();
+        }
+        int lineCount = readVarInt(in);
+        List<RailLine> lines = new ArrayList<>(lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            RailLine line = readLineHeader(in);
+            List<Integer> segmentIds = line.getSegmentIds();
+            List<RailBlock> blocks = new ArrayList<>();
+            for (int runs = readVarInt(in); runs > 0; runs--) {
+                readBlocks(in, worlds[readVarInt(in)], blocks);
+            }
+            line.addBlocks(blocks);
+            // Set last, since adding blocks drops the segment IDs
+            line.setSegmentIds(segmentIds);
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
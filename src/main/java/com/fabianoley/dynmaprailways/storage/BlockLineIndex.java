@@ -0,0 +1,252 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.scan.ScanResult;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import com.fabianoley.dynmaprailways.util.LongList;
+import com.fabianoley.dynmaprailways.util.LongObjectHashMap;
+import java.util.*;
+
+/**
+ * Index from rail block to the ID of the stored line holding it, with the blocks of every line grouped by chunk.
+ * Kept current by {@link RailwayDataStorage} as lines are stored and removed, so scans can check
+ * stored lines against fresh rails without walking every stored block, and commands can find the lines
+ * at, around or nearest to a point through the chunk grid. A block shared by two lines
+ * is indexed under the line stored last, and passes to the other line when that one is removed. Thread-safe.
+ */
+public class BlockLineIndex {
+
+    private static class WorldIndex {
+        final LongObjectHashMap<String> owners = new LongObjectHashMap<>();
+        final Map<Long, Map<String, LongList>> chunkLines = new HashMap<>(); // chunk -> line -> its blocks there
+        final Map<String, long[]> lineChunks = new HashMap<>(); // chunks each line was indexed in
+        final Map<String, Integer> lineBlockCounts = new HashMap<>();
+    }
+
+    private final Map<String, WorldIndex> worlds = new HashMap<>();
+
+    /**
+     * Index a line's blocks. The line must not be indexed already.
+     */
+    synchronized void add(RailLine line) {
+        Map<String, LongList> byWorld = new HashMap<>();
+        for (RailBlock block : line.getBlocks()) {
+            byWorld.computeIfAbsent(block.world, k -> new LongList()).add(BlockKey.of(block));
+        }
+        for (Map.Entry<String, LongList> entry : byWorld.entrySet()) {
+            WorldIndex index = worlds.computeIfAbsent(entry.getKey(), k -> new WorldIndex());
+            LongList keys = entry.getValue();
+            LongList chunks = new LongList();
+            for (int i = 0; i < keys.size(); i++) {
+                long key = keys.get(i);
+                long chunk = ChunkGrid.chunkOf(key);
+                index.owners.put(key, line.getId());
+                Map<String, LongList> lines = index.chunkLines.computeIfAbsent(chunk, k -> new HashMap<>());
+                LongList chunkKeys = lines.get(line.getId());
+                if (chunkKeys == null) {
+                    chunkKeys = new LongList();
+                    lines.put(line.getId(), chunkKeys);
+                    chunks.add(chunk);
+                }
+                chunkKeys.add(key);
+            }
+            long[] indexedChunks = new long[chunks.size()];
+            for (int i = 0; i < indexedChunks.length; i++) {
+                indexedChunks[i] = chunks.get(i);
+                index.chunkLines.get(indexedChunks[i]).get(line.getId()).trimToSize();
+            }
+            index.lineChunks.put(line.getId(), indexedChunks);
+            index.lineBlockCounts.put(line.getId(), keys.size());
+        }
+    }
+
+    /**
+     * Drop a line from the index, using the blocks it was indexed with.
+     * Blocks it owned that another line also holds are given to that line.
+     */
+    synchronized void remove(String lineId) {
+        for (WorldIndex index : worlds.values()) {
+            long[] chunks = index.lineChunks.remove(lineId);
+            if (chunks == null) continue;
+            index.lineBlockCounts.remove(lineId);
+            for (long chunk : chunks) {
+                Map<String, LongList> lines = index.chunkLines.get(chunk);
+                LongList keys = lines.remove(lineId);
+                LongHashSet orphaned = new LongHashSet();
+                for (int i = 0; i < keys.size(); i++) {
+                    if (index.owners.remove(keys.get(i), lineId)) {
+                        orphaned.add(keys.get(i));
+                    }
+                }
+                if (lines.isEmpty()) {
+                    index.chunkLines.remove(chunk);
+                    continue;
+                }
+                // A block lies in one chunk, so only the other lines there can hold it too
+                for (Map.Entry<String, LongList> other : lines.entrySet()) {
+                    LongList otherKeys = other.getValue();
+                    for (int i = 0; i < otherKeys.size() && !orphaned.isEmpty(); i++) {
+                        if (orphaned.remove(otherKeys.get(i))) {
+                            index.owners.put(otherKeys.get(i), other.getKey());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        worlds.clear();
+    }
+
+    /**
+     * @return ID of the stored line holding a block, or null
+     */
+    public synchronized String getOwner(String world, long key) {
+        WorldIndex index = worlds.get(world);
+        return index != null ? index.owners.get(key) : null;
+    }
+
+    /**
+     * @return ID of the stored line holding the block at the given position, or null
+     */
+    public String getLineAt(String world, int x, int y, int z) {
+        return getOwner(world, BlockKey.pack(x, y, z));
+    }
+
+    /**
+     * Whether a stored line has blocks in a world.
+     */
+    public synchronized boolean hasLine(String world, String lineId) {
+        WorldIndex index = worlds.get(world);
+        return index != null && index.lineChunks.containsKey(lineId);
+    }
+
+    /**
+     * Number of a stored line's blocks in a world.
+     */
+    public synchronized int getBlockCount(String world, String lineId) {
+        WorldIndex index = worlds.get(world);
+        return index != null ? index.lineBlockCounts.getOrDefault(lineId, 0) : 0;
+    }
+
+    /**
+     * Block bounds of a stored line's indexed chunks in each world, as {minX, minZ, maxX, maxZ}.
+     */
+    public synchronized Map<String, int[]> getBounds(String lineId) {
+        Map<String, int[]> bounds = new HashMap<>();
+        for (Map.Entry<String, WorldIndex> entry : worlds.entrySet()) {
+            long[] chunks = entry.getValue().lineChunks.get(lineId);
+            if (chunks == null) continue;
+            int[] box = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            for (long chunk : chunks) {
+                int x = ScanResult.chunkX(chunk) << 4, z = ScanResult.chunkZ(chunk) << 4;
+                box[0] = Math.min(box[0], x);
+                box[1] = Math.min(box[1], z);
+                box[2] = Math.max(box[2], x + 15);
+                box[3] = Math.max(box[3], z + 15);
+            }
+            bounds.put(entry.getKey(), box);
+        }
+        return bounds;
+    }
+
+    /**
+     * Count, per stored line, how many of the given blocks it holds.
+     */
+    public synchronized Map<String, Integer> countOwned(String world, LongHashSet keys) {
+        Map<String, Integer> counts = new HashMap<>();
+        WorldIndex index = worlds.get(world);
+        if (index != null) {
+            keys.forEach(key -> {
+                String owner = index.owners.get(key);
+                if (owner != null) {
+                    counts.merge(owner, 1, Integer::sum);
+                }
+            });
+        }
+        return counts;
+    }
+
+    /**
+     * Count, per stored line, how many of its blocks lie in the given chunks.
+     */
+    public synchronized Map<String, Integer> countInChunks(String world, Collection<Long> chunkKeys) {
+        Map<String, Integer> counts = new HashMap<>();
+        WorldIndex index = worlds.get(world);
+        if (index != null) {
+            for (long chunkKey : chunkKeys) {
+                Map<String, LongList> lines = index.chunkLines.get(chunkKey);
+                if (lines != null) {
+                    lines.forEach((lineId, keys) -> counts.merge(lineId, keys.size(), Integer::sum));
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * IDs of the stored lines with blocks in any of the given chunks.
+     */
+    public synchronized Set<String> getLinesInChunks(String world, Collection<Long> chunkKeys) {
+        return countInChunks(world, chunkKeys).keySet();
+    }
+
+    /**
+     * Find the stored lines closest to a point, each with its closest block, nearest first.
+     * Only the chunks around the point are searched.
+     * @param limit Most lines to return
+     * @param maxDistance Furthest distance in blocks a line may be away
+     */
+    public synchronized List<Nearest<String>> findNearestLines(String world, int x, int y, int z, int limit, int maxDistance) {
+        WorldIndex index = worlds.get(world);
+        if (index == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        long maxSquared = (long) maxDistance * maxDistance;
+        Map<String, Nearest<String>> best = new HashMap<>();
+        ChunkGrid.visitOutward(x, z, maxDistance, index.chunkLines.keySet(), chunk -> {
+            Map<String, LongList> lines = index.chunkLines.get(chunk);
+            if (lines == null) return;
+            lines.forEach((lineId, keys) -> {
+                Nearest<String> current = best.get(lineId);
+                for (int i = 0; i < keys.size(); i++) {
+                    long key = keys.get(i);
+                    long distance = ChunkGrid.distanceSquared(key, x, y, z);
+                    if (distance <= maxSquared && (current == null || distance < current.getDistanceSquared())) {
+                        current = new Nearest<>(lineId, key, distance);
+                    }
+                }
+                if (current != null) {
+                    best.put(lineId, current);
+                }
+            });
+        }, ringDistance -> reached(best.values(), limit, ringDistance));
+        return closest(best.values(), limit);
+    }
+
+    /**
+     * Whether at least limit results are no further away than the given distance.
+     */
+    static <T> boolean reached(Collection<Nearest<T>> results, int limit, long distance) {
+        if (results.size() < limit) {
+            return false;
+        }
+        long squared = distance * distance;
+        int within = 0;
+        for (Nearest<T> result : results) {
+            if (result.getDistanceSquared() <= squared && ++within >= limit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static <T> List<Nearest<T>> closest(Collection<Nearest<T>> results, int limit) {
+        List<Nearest<T>> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingLong(Nearest::getDistanceSquared));
+        return sorted.size() > limit ? new ArrayList<>(sorted.subList(0, limit)) : sorted;
+    }
+}
@@ -0,0 +1,30 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import java.util.*;
+
+/**
+ * Rail lines of a whole world, written by the standalone bulk scanner.
+ * Files placed in the plugin's import folder are merged into storage at startup.
+ */
+public class BulkScanFile {
+    public static final String IMPORT_FOLDER = "import";
+    public static final String EXTENSION = ".railways.json";
+
+    private String world;
+    private long scannedAt;
+    private long chunkCount;
+    private List<RailLine> lines;
+
+    public BulkScanFile(String world, long chunkCount, List<RailLine> lines) {
+        this.world = world;
+        this.scannedAt = System.currentTimeMillis();
+        this.chunkCount = chunkCount;
+        this.lines = lines;
+    }
+
+    public String getWorld() { return world; }
+    public long getScannedAt() { return scannedAt; }
+    public long getChunkCount() { return chunkCount; }
+    public List<RailLine> getLines() { return lines != null ? lines : Collections.emptyList(); }
+}
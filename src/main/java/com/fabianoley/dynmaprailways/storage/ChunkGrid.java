@@ -0,0 +1,92 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.scan.ScanResult;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Helpers for the chunk grids behind {@link BlockLineIndex} and {@link StationIndex}.
+ */
+final class ChunkGrid {
+
+    private ChunkGrid() {
+    }
+
+    static long chunkOf(long key) {
+        return ScanResult.chunkKey(BlockKey.x(key) >> 4, BlockKey.z(key) >> 4);
+    }
+
+    static long distanceSquared(long key, int x, int y, int z) {
+        long dx = BlockKey.x(key) - x;
+        long dy = BlockKey.y(key) - y;
+        long dz = BlockKey.z(key) - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Visit the chunks of a block area. When the area spans more chunks than the grid holds,
+     * the grid's chunks inside the area are visited instead.
+     */
+    static void visitArea(int minX, int minZ, int maxX, int maxZ, Set<Long> gridChunks, LongConsumer visitor) {
+        int minCx = minX >> 4, minCz = minZ >> 4, maxCx = maxX >> 4, maxCz = maxZ >> 4;
+        long area = (long) (maxCx - minCx + 1) * (maxCz - minCz + 1);
+        if (area > gridChunks.size()) {
+            for (long chunk : gridChunks) {
+                int cx = ScanResult.chunkX(chunk), cz = ScanResult.chunkZ(chunk);
+                if (cx >= minCx && cx <= maxCx && cz >= minCz && cz <= maxCz) {
+                    visitor.accept(chunk);
+                }
+            }
+            return;
+        }
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cz = minCz; cz <= maxCz; cz++) {
+                visitor.accept(ScanResult.chunkKey(cx, cz));
+            }
+        }
+    }
+
+    /**
+     * Visit chunks ring by ring outward from a block, up to the rings that can hold blocks within maxDistance.
+     * Before each ring, done is asked whether anything at least the given number of blocks away can still matter;
+     * the search stops once it says no. Once a ring would be larger than the whole grid,
+     * the grid's remaining chunks are visited directly instead.
+     */
+    static void visitOutward(int x, int z, int maxDistance, Set<Long> gridChunks, LongConsumer visitor, LongPredicate done) {
+        int cx = x >> 4, cz = z >> 4;
+        int maxRing = (maxDistance >> 4) + 1;
+        for (int r = 0; r <= maxRing; r++) {
+            if (done.test(ringDistance(r))) {
+                return;
+            }
+            if (8L * r > gridChunks.size()) {
+                for (long chunk : gridChunks) {
+                    int ring = Math.max(Math.abs(ScanResult.chunkX(chunk) - cx), Math.abs(ScanResult.chunkZ(chunk) - cz));
+                    if (ring >= r && ring <= maxRing) {
+                        visitor.accept(chunk);
+                    }
+                }
+                return;
+            }
+            if (r == 0) {
+                visitor.accept(ScanResult.chunkKey(cx, cz));
+                continue;
+            }
+            for (int i = -r; i < r; i++) {
+                visitor.accept(ScanResult.chunkKey(cx + i, cz - r));
+                visitor.accept(ScanResult.chunkKey(cx + r, cz + i));
+                visitor.accept(ScanResult.chunkKey(cx - i, cz + r));
+                visitor.accept(ScanResult.chunkKey(cx - r, cz - i));
+            }
+        }
+    }
+
+    /**
+     * Lowest horizontal distance from a block to any block of a chunk r rings away from its own.
+     */
+    private static long ringDistance(int r) {
+        return r == 0 ? 0 : 16L * (r - 1) + 1;
+    }
+}
@@ -0,0 +1,27 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+
+/**
+ * Result of a nearest-neighbour query: a line ID or station, and its closest block to the query point.
+ */
+public class Nearest<T> {
+
+    private final T value;
+    private final long blockKey;
+    private final long distanceSquared;
+
+    Nearest(T value, long blockKey, long distanceSquared) {
+        this.value = value;
+        this.blockKey = blockKey;
+        this.distanceSquared = distanceSquared;
+    }
+
+    public T getValue() { return value; }
+    public long getBlockKey() { return blockKey; }
+    public int getX() { return BlockKey.x(blockKey); }
+    public int getY() { return BlockKey.y(blockKey); }
+    public int getZ() { return BlockKey.z(blockKey); }
+    public double getDistance() { return Math.sqrt(distanceSquared); }
+    long getDistanceSquared() { return distanceSquared; }
+}
@@ -0,0 +1,343 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.station.Station;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made since the last snapshot, replayed over it at startup.
+ * Every record is the length of its payload, a CRC32 of the payload, and the payload: a type byte and the change.
+ * Replay stops at the first record that is cut short or fails its checksum, so a crash while appending only
+ * loses that record. Replaying a record the snapshot already holds changes nothing, which lets a snapshot be
+ * written while new records go to the next journal.
+ */
+final class RailJournal {
+
+    private static final Logger logger = Logger.getLogger("DynmapRailways");
+    static final String FILE = "journal.log";
+    static final String OLD_FILE = "journal.log.old"; // journal before the snapshot being written
+
+    private static final int LINE_PUT = 1;
+    private static final int LINE_REMOVE = 2;
+    private static final int LINE_META = 3;
+    private static final int BLOCKS_ADD = 4;
+    private static final int BLOCKS_REMOVE = 5;
+    private static final int STATION_PUT = 6;
+    private static final int STATION_REMOVE = 7;
+
+    private static final int MAX_RECORD = 1 << 28;
+
+    /**
+     * Receives the changes of replayed records.
+     */
+    interface Replay {
+        void linePut(RailLine line);
+        void lineRemoved(String id);
+        /** @param meta A line without blocks carrying the new name, colour, placer, state and segments */
+        void lineChanged(RailLine meta);
+        void blocksAdded(String id, List<RailBlock> blocks);
+        void blocksRemoved(String id, List<RailBlock> blocks);
+        void stationPut(Station station);
+        void stationRemoved(String id);
+    }
+
+    private interface Record {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private final File file;
+    private final File oldFile;
+    private final boolean syncEachRecord;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream out;
+    private long size;
+    private boolean failed; // an append failed; warned about once
+    private boolean torn; // a failed append could not be cut off, so nothing is appended until a new journal is opened
+
+    RailJournal(File folder, boolean syncEachRecord) {
+        this.file = new File(folder, FILE);
+        this.oldFile = new File(folder, OLD_FILE);
+        this.syncEachRecord = syncEachRecord;
+    }
+
+    static boolean exists(File folder) {
+        return new File(folder, FILE).exists() || new File(folder, OLD_FILE).exists();
+    }
+
+    /**
+     * Replay the kept old journal, then the current one. A damaged tail of the current journal is cut off,
+     * so records appended later follow the last good one.
+     * @return Number of records replayed
+     */
+    synchronized int replay(Replay replay) throws IOException {
+        int records = 0;
+        if (oldFile.exists()) {
+            records += replay(oldFile, replay);
+        }
+        if (file.exists()) {
+            records += replay(file, replay);
+        }
+        return records;
+    }
+
+    private int replay(File journal, Replay replay) throws IOException {
+        int records = 0;
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length < 1 || length > MAX_RECORD) {
+                    throw new IOException("bad record length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("checksum mismatch");
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)), replay);
+                valid += 8 + length;
+                records++;
+            }
+        } catch (IOException e) {
+            logger.warning("Journal " + journal.getName() + " ends in a damaged record after " + records +
+                    " good ones (" + (e instanceof EOFException ? "cut short" : e.getMessage()) + "); the rest is dropped.");
+            if (journal.equals(file)) {
+                try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        }
+        return records;
+    }
+
+    private static void apply(DataInputStream in, Replay replay) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case LINE_PUT:
+                for (RailLine line : BinaryRailFile.read(in)) {
+                    replay.linePut(line);
+                }
+                break;
+            case LINE_REMOVE:
+                replay.lineRemoved(in.readUTF());
+                break;
+            case LINE_META:
+                replay.lineChanged(BinaryRailFile.readLineHeader(in));
+                break;
+            case BLOCKS_ADD:
+            case BLOCKS_REMOVE: {
+                String id = in.readUTF();
+                String world = in.readUTF();
+                List<RailBlock> blocks = new ArrayList<>();
+                BinaryRailFile.readBlocks(in, world, blocks);
+                if (type == BLOCKS_ADD) {
+                    replay.blocksAdded(id, blocks);
+                } else {
+                    replay.blocksRemoved(id, blocks);
+                }
+                break;
+            }
+            case STATION_PUT: {
+                Station station = new Station(in.readUTF(), readNullable(in), in.readInt(), in.readInt(), in.readInt(), readNullable(in));
+                station.setCreatedBy(readNullable(in));
+                station.setCreatedAt(in.readLong());
+                station.setActive(in.readBoolean());
+                replay.stationPut(station);
+                break;
+            }
+            case STATION_REMOVE:
+                replay.stationRemoved(in.readUTF());
+                break;
+            default:
+                throw new IOException("unknown record type " + type);
+        }
+    }
+
+    /**
+     * Open the current journal for appending.
+     */
+    synchronized void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        size = file.length();
+        torn = false;
+    }
+
+    void linePut(RailLine line) {
+        append(LINE_PUT, out -> BinaryRailFile.write(out, Collections.singletonList(line), false));
+    }
+
+    void lineRemoved(String id) {
+        append(LINE_REMOVE, out -> out.writeUTF(id));
+    }
+
+    void lineChanged(RailLine line) {
+        append(LINE_META, out -> BinaryRailFile.writeLineHeader(out, line));
+    }
+
+    void blocksAdded(String id, String world, long[] keys) {
+        append(BLOCKS_ADD, out -> writeBlocks(out, id, world, keys));
+    }
+
+    void blocksRemoved(String id, String world, long[] keys) {
+        append(BLOCKS_REMOVE, out -> writeBlocks(out, id, world, keys));
+    }
+
+    void stationPut(Station station) {
+        append(STATION_PUT, out -> {
+            out.writeUTF(station.getId());
+            writeNullable(out, station.getName());
+            out.writeInt(station.getX());
+            out.writeInt(station.getY());
+            out.writeInt(station.getZ());
+            writeNullable(out, station.getWorld());
+            writeNullable(out, station.getCreatedBy());
+            out.writeLong(station.getCreatedAt());
+            out.writeBoolean(station.isActive());
+        });
+    }
+
+    void stationRemoved(String id) {
+        append(STATION_REMOVE, out -> out.writeUTF(id));
+    }
+
+    private static void writeBlocks(DataOutputStream out, String id, String world, long[] keys) throws IOException {
+        out.writeUTF(id);
+        out.writeUTF(world);
+        Arrays.sort(keys); // neighbours mostly sort next to each other, keeping the deltas small
+        BinaryRailFile.writeBlocks(out, keys);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Write one record straight to the file, so it survives the process; with syncEachRecord also to the disk.
+     * A failed append is logged and otherwise ignored: the change is still in memory and in the next snapshot.
+     * Whatever part of the record was written is cut off again, since replay stops at a torn record and would
+     * drop every record appended after it.
+     */
+    private synchronized void append(int type, Record record) {
+        if (out == null || torn) {
+            return;
+        }
+        try {
+            buffer.reset();
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.writeInt(0); // length and checksum, filled in below
+            data.writeInt(0);
+            data.writeByte(type);
+            record.writeTo(data);
+            data.flush();
+            byte[] bytes = buffer.toByteArray();
+            int length = bytes.length - 8;
+            crc.reset();
+            crc.update(bytes, 8, length);
+            int checksum = (int) crc.getValue();
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (length >>> (24 - 8 * i));
+                bytes[4 + i] = (byte) (checksum >>> (24 - 8 * i));
+            }
+            out.write(bytes);
+            if (syncEachRecord) {
+                out.getFD().sync();
+            }
+            size += bytes.length;
+            failed = false;
+        } catch (IOException e) {
+            if (!failed) {
+                logger.warning("Error appending to the journal, changes are kept until the next snapshot: " + e);
+                failed = true;
+            }
+            try {
+                out.getChannel().truncate(size);
+            } catch (IOException truncateError) {
+                logger.warning("Could not cut a torn record off the journal, changes are not journaled until the next snapshot: " + truncateError);
+                torn = true;
+            }
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Force appended records to disk.
+     */
+    synchronized void sync() {
+        if (out == null) return;
+        try {
+            out.getFD().sync();
+        } catch (IOException e) {
+            logger.warning("Error syncing the journal: " + e);
+        }
+    }
+
+    /**
+     * Set the current journal aside as the old one and start an empty journal, before a snapshot is written.
+     * If an old journal is still kept from a snapshot that failed, the current one just keeps growing.
+     */
+    synchronized void rotate() throws IOException {
+        if (oldFile.exists()) {
+            return;
+        }
+        if (out != null) {
+            out.getFD().sync();
+            out.close();
+            out = null;
+        }
+        if (file.exists()) {
+            Files.move(file.toPath(), oldFile.toPath());
+        }
+        open();
+    }
+
+    /**
+     * Delete the old journal once a snapshot holding all of its changes has been written.
+     */
+    synchronized void dropOld() throws IOException {
+        Files.deleteIfExists(oldFile.toPath());
+    }
+
+    /**
+     * Delete both journals once a snapshot holding every change has been written and nothing else appends.
+     */
+    synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(oldFile.toPath());
+        Files.deleteIfExists(file.toPath());
+    }
+
+    synchronized void close() {
+        if (out == null) return;
+        try {
+            out.getFD().sync();
+            out.close();
+        } catch (IOException e) {
+            logger.warning("Error closing the journal: " + e);
+        }
+        out = null;
+    }
+}
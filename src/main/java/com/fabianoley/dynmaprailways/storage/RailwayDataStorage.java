@@ -1,33 +1,133 @@
 package com.fabianoley.dynmaprailways.storage;
 
 import com.fabianoley.dynmaprailways.DynmapRailways;
+import com.fabianoley.dynmaprailways.rail.BlockKey;
 import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.rail.RailNetwork;
 import com.fabianoley.dynmaprailways.station.Station;
+import com.fabianoley.dynmaprailways.util.LongList;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import java.io.*;
 import java.util.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 /**
  * Handles storage and retrieval of railway data.
  * Supports both file-based and Dynmap database storage.
+ * Changes are written behind: they only mark their file dirty, and a background thread
+ * replaces dirty files atomically every few seconds and once more on shutdown.
+ * Storing a line also takes a snapshot of it, and the writer only ever reads snapshots, so lines may keep
+ * changing while their shards are written.
+ * Rail lines are split into shard files under rails/, one per world region holding the lines centred in it,
+ * so an edit or a local scan only rewrites the shards of the lines it changed.
+ * In journal mode each change is appended to journal.log instead, and the shards are only written when the
+ * journal is compacted; startup replays the journal over them.
+ * Changes may come from the main thread and from scans at the same time; every change holds one storage lock,
+ * so changes never interleave and line IDs handed out are never handed out twice.
  */
 public class RailwayDataStorage {
     
     private static final Logger logger = Logger.getLogger("DynmapRailways");
     private static final String RAILS_FILE = "rails.json";
+    private static final String RAILS_BINARY_FILE = "rails.dat";
+    private static final String RAILS_EXPORT_FILE = "rails-export.json";
+    private static final String RAILS_FOLDER = "rails";
+    private static final String UNPLACED_SHARD = "_unplaced"; // lines without indexed blocks
+    private static final int SHARD_SHIFT = 9; // 512-block regions, like the world's region files
     private static final String STATIONS_FILE = "stations.json";
+    private static final String NETWORK_FILE = "network.json";
     
-   // private DynmapRailways plugin;
+    private DynmapRailways plugin;
     private File dataFolder;
-    private Map<String, RailLine> railLines = new HashMap<>();
-    private Map<String, Station> stations = new HashMap<>();
+    // Concurrent so the background writer can read them while they change
+    private Map<String, RailLine> railLines = new ConcurrentHashMap<>();
+    private Map<String, Station> stations = new ConcurrentHashMap<>();
+    private Map<String, RailNetwork> networks = new ConcurrentHashMap<>(); // by world
+    private final BlockLineIndex blockIndex = new BlockLineIndex();
+    private final StationIndex stationIndex = new StationIndex();
+    private final Map<String, List<String>> stationLines = new ConcurrentHashMap<>(); // IDs of the lines serving each station
+    private final Set<String> changedStationIds = ConcurrentHashMap.newKeySet(); // stations whose lines changed since last drained
     private Gson gson;
+    private final boolean binary; // binary shards instead of JSON
+    private final boolean compress;
+    private final List<File> migratedFrom = new ArrayList<>(); // rail files to set aside once their lines are rewritten
+    private final Map<String, StoredLine> storedLines = new ConcurrentHashMap<>(); // snapshot of each line as last stored
+    private final Set<String> dirtyShards = ConcurrentHashMap.newKeySet();
+    private final Object lock = new Object(); // held by every change to the stored data
+    private final Set<String> reservedIds = new HashSet<>(); // IDs handed out by generateLineId and not passed back yet
+    private volatile long lineGeneration; // bumped by every call that changes stored lines
+    
+    // Write-behind: changes mark their file dirty, and a single writer thread saves dirty files periodically
+    private volatile boolean stationsDirty;
+    private volatile boolean networksDirty;
+    private final Object writeLock = new Object();
+    private ScheduledExecutorService writer;
+    
+    // Journal mode: changes are appended to the journal, and snapshots are only written when it grows too large
+    private RailJournal journal;
+    
+    /**
+     * A line as it was when last stored: a copy of its metadata without blocks, its packed blocks per world,
+     * its shard and the line's version then. Never changed once made.
+     */
+    private static final class StoredLine {
+        final RailLine meta;
+        final Map<String, long[]> blocks; // sorted
+        final String shard;
+        final int version;
+        
+        StoredLine(RailLine line, String shard) {
+            this.version = line.getVersion();
+            Map<String, LongList> byWorld = new HashMap<>();
+            for (RailBlock block : line.getBlocks()) {
+                byWorld.computeIfAbsent(block.world, w -> new LongList()).add(BlockKey.of(block));
+            }
+            this.blocks = new HashMap<>();
+            for (Map.Entry<String, LongList> entry : byWorld.entrySet()) {
+                long[] keys = entry.getValue().toArray();
+                Arrays.sort(keys);
+                blocks.put(entry.getKey(), keys);
+            }
+            this.meta = new RailLine(line.getId(), null);
+            copyMeta(line, meta);
+            this.shard = shard;
+        }
+        
+        /**
+         * Build a new line from the snapshot, for the writer to serialize.
+         */
+        RailLine toLine() {
+            RailLine line = new RailLine(meta.getId(), null);
+            List<RailBlock> lineBlocks = new ArrayList<>();
+            for (Map.Entry<String, long[]> entry : blocks.entrySet()) {
+                for (long key : entry.getValue()) {
+                    lineBlocks.add(BlockKey.toBlock(key, entry.getKey()));
+                }
+            }
+            line.addBlocks(lineBlocks);
+            // Last, since adding blocks drops the segment IDs
+            copyMeta(meta, line);
+            return line;
+        }
+    }
     
     public RailwayDataStorage(DynmapRailways plugin) {
-        //this.plugin = plugin;
+        this.plugin = plugin;
         this.dataFolder = plugin.getDataFolder();
-        this.gson = new GsonBuilder().setPrettyPrinting().create();
+        this.gson = RailwayJson.builder().setPrettyPrinting().create();
+        this.binary = !"json".equalsIgnoreCase(plugin.getConfig().getString("storage.format", "binary"));
+        this.compress = plugin.getConfig().getBoolean("storage.compress", true);
     }
     
     /**
@@ -36,11 +136,229 @@ public class RailwayDataStorage {
     public void initialize() throws Exception {
         ensureDataFolder();
         loadAllData();
+        replayJournal();
+        finishMigration();
+        if (plugin.getConfig().getBoolean("storage.journal.enabled", false)) {
+            journal = new RailJournal(dataFolder, plugin.getConfig().getBoolean("storage.journal.sync-each-record", false));
+            journal.open();
+        }
+        startWriter();
         logger.info("Railway data storage initialized with " + 
                    railLines.size() + " lines and " + 
                    stations.size() + " stations.");
     }
     
+    /**
+     * Start the background writer, which every storage.flush-interval-seconds saves changed files, or in
+     * journal mode syncs the journal and compacts it once it passes storage.journal.compact-size-mb.
+     */
+    private void startWriter() {
+        long interval = Math.max(1, plugin.getConfig().getInt("storage.flush-interval-seconds", 5));
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DynmapRailways-Storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::writeBehind, interval, interval, TimeUnit.SECONDS);
+    }
+    
+    private void writeBehind() {
+        if (journal == null) {
+            flush();
+            return;
+        }
+        journal.sync();
+        long compactBytes = Math.max(1, plugin.getConfig().getLong("storage.journal.compact-size-mb", 16)) << 20;
+        if (journal.size() >= compactBytes) {
+            compact();
+        } else if (networksDirty) {
+            // Networks are rebuilt whole by each scan and not journaled, see writeNetworks
+            synchronized (writeLock) {
+                writeNetworksIfDirty();
+            }
+        }
+    }
+    
+    /**
+     * Fold the journal into a new snapshot: start a fresh journal for the changes that keep coming,
+     * write every dirty file, and drop the old journal once they are all written.
+     */
+    private void compact() {
+        synchronized (writeLock) {
+            try {
+                journal.rotate();
+                if (writeSnapshot()) {
+                    journal.dropOld();
+                }
+            } catch (IOException e) {
+                logger.warning("Error compacting the journal: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Replay the journal left by the last run over the loaded snapshot, write the result as a new snapshot and
+     * delete the journal. Done whether or not journal mode is still enabled, so switching it off loses nothing.
+     */
+    private void replayJournal() throws Exception {
+        if (!RailJournal.exists(dataFolder)) {
+            return;
+        }
+        RailJournal old = new RailJournal(dataFolder, false);
+        Set<String> touched = new HashSet<>();
+        int records = old.replay(new RailJournal.Replay() {
+            @Override
+            public void linePut(RailLine line) {
+                railLines.put(line.getId(), line);
+                touched.add(line.getId());
+            }
+            
+            @Override
+            public void lineRemoved(String id) {
+                dropLine(id);
+            }
+            
+            @Override
+            public void lineChanged(RailLine meta) {
+                RailLine line = railLines.get(meta.getId());
+                if (line != null) {
+                    copyMeta(meta, line);
+                    touched.add(line.getId());
+                }
+            }
+            
+            @Override
+            public void blocksAdded(String id, List<RailBlock> blocks) {
+                RailLine line = railLines.get(id);
+                if (line != null) {
+                    line.addBlocks(blocks);
+                    touched.add(id);
+                }
+            }
+            
+            @Override
+            public void blocksRemoved(String id, List<RailBlock> blocks) {
+                RailLine line = railLines.get(id);
+                if (line != null) {
+                    for (RailBlock block : blocks) {
+                        line.removeBlock(block);
+                    }
+                    touched.add(id);
+                }
+            }
+            
+            @Override
+            public void stationPut(Station station) {
+                stations.put(station.getId(), station);
+                stationIndex.add(station);
+                stationsDirty = true;
+            }
+            
+            @Override
+            public void stationRemoved(String id) {
+                stations.remove(id);
+                stationIndex.remove(id);
+                stationLines.remove(id);
+                stationsDirty = true;
+            }
+        });
+        // Lines are reindexed once at the end rather than after every record
+        for (String id : touched) {
+            RailLine line = railLines.get(id);
+            if (line != null) {
+                putLine(line, true);
+            }
+        }
+        associateAllStations();
+        if (writeSnapshot()) {
+            old.delete();
+            logger.info("Replayed " + records + " journal records into the data files.");
+        } else {
+            logger.warning("Replayed " + records + " journal records, but could not write them to the data files; the journal is kept.");
+        }
+    }
+    
+    private static void copyMeta(RailLine from, RailLine to) {
+        to.setName(from.getName());
+        to.setColor(from.getColor());
+        to.setCreatedBy(from.getCreatedBy());
+        to.setCreatedAt(from.getCreatedAt());
+        to.setActive(from.isActive());
+        to.setSegmentIds(from.getSegmentIds());
+    }
+    
+    private static boolean sameMeta(RailLine a, RailLine b) {
+        return Objects.equals(a.getName(), b.getName()) && Objects.equals(a.getColor(), b.getColor())
+                && Objects.equals(a.getCreatedBy(), b.getCreatedBy()) && a.getCreatedAt() == b.getCreatedAt()
+                && a.isActive() == b.isActive() && Objects.equals(a.getSegmentIds(), b.getSegmentIds());
+    }
+    
+    /**
+     * Append the change to a line since it was last stored: the blocks added and removed in each world and
+     * then new metadata, or the whole line if it is new or most of its blocks changed.
+     * Called from putLine under the storage lock, so records of one line never overlap.
+     * @param previous The line's snapshot before this change, or null for a new line
+     * @param current The line's snapshot after it
+     */
+    private void journalLine(RailLine line, StoredLine previous, StoredLine current) {
+        if (journal == null) {
+            return;
+        }
+        if (previous == null) {
+            journal.linePut(line);
+            return;
+        }
+        
+        Map<String, long[]> added = new HashMap<>();
+        Map<String, long[]> removed = new HashMap<>();
+        int changed = 0;
+        Set<String> worlds = new HashSet<>(current.blocks.keySet());
+        worlds.addAll(previous.blocks.keySet());
+        long[] none = new long[0];
+        for (String world : worlds) {
+            long[] now = current.blocks.getOrDefault(world, none);
+            long[] before = previous.blocks.getOrDefault(world, none);
+            long[] add = difference(now, before);
+            long[] remove = difference(before, now);
+            if (add.length > 0) added.put(world, add);
+            if (remove.length > 0) removed.put(world, remove);
+            changed += add.length + remove.length;
+        }
+        if (changed > line.getBlockCount() / 2) {
+            journal.linePut(line);
+            return;
+        }
+        // Blocks first: replaying a block change drops the segment IDs that the metadata record then restores
+        for (Map.Entry<String, long[]> entry : removed.entrySet()) {
+            journal.blocksRemoved(line.getId(), entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, long[]> entry : added.entrySet()) {
+            journal.blocksAdded(line.getId(), entry.getKey(), entry.getValue());
+        }
+        if (!sameMeta(previous.meta, current.meta)) {
+            journal.lineChanged(current.meta);
+        }
+    }
+    
+    /**
+     * Keys of one sorted array that are not in another.
+     */
+    private static long[] difference(long[] a, long[] b) {
+        LongList result = new LongList();
+        int j = 0;
+        for (long key : a) {
+            while (j < b.length && b[j] < key) j++;
+            if (j == b.length || b[j] != key) result.add(key);
+        }
+        return result.toArray();
+    }
+    
+    private void journalLineRemoved(String id) {
+        if (journal != null) {
+            journal.lineRemoved(id);
+        }
+    }
+    
     /**
      * Ensure data folder exists.
      */
@@ -53,30 +371,34 @@ public class RailwayDataStorage {
     /**
      * Generate a short unique hex ID for a rail line.
      * Starts with 3 characters and grows if needed to avoid collisions.
+     * The ID is reserved until a line carrying it is passed to storage, so scans running at the same time
+     * never get the same one; generate IDs only for lines that will be stored, kept or not.
      */
     public String generateLineId() {
-        Random random = new Random();
-        int length = 3;
-        int maxAttempts = 100;
-        
-        while (length <= 8) { // Max 8 characters
-            for (int attempt = 0; attempt < maxAttempts; attempt++) {
-                StringBuilder id = new StringBuilder();
-                for (int i = 0; i < length; i++) {
-                    id.append(Integer.toHexString(random.nextInt(16)));
-                }
-                String candidate = id.toString();
-                
-                // Check if this ID is already in use
-                if (!railLines.containsKey(candidate)) {
-                    return candidate;
+        synchronized (lock) {
+            Random random = new Random();
+            int length = 3;
+            int maxAttempts = 100;
+            
+            while (length <= 8) { // Max 8 characters
+                for (int attempt = 0; attempt < maxAttempts; attempt++) {
+                    StringBuilder id = new StringBuilder();
+                    for (int i = 0; i < length; i++) {
+                        id.append(Integer.toHexString(random.nextInt(16)));
+                    }
+                    String candidate = id.toString();
+                    
+                    // Check if this ID is already in use or handed out
+                    if (!railLines.containsKey(candidate) && reservedIds.add(candidate)) {
+                        return candidate;
+                    }
                 }
+                length++; // Grow length if we couldn't find unique ID
             }
-            length++; // Grow length if we couldn't find unique ID
+            
+            // Fallback to timestamp-based if somehow we still have collisions
+            return Long.toHexString(System.currentTimeMillis());
         }
-        
-        // Fallback to timestamp-based if somehow we still have collisions
-        return Long.toHexString(System.currentTimeMillis());
     }
     
     /**
@@ -85,27 +407,93 @@ public class RailwayDataStorage {
     private void loadAllData() throws Exception {
         loadRailLines();
         loadStations();
+        loadNetworks();
+        associateAllStations();
     }
     
     /**
-     * Load rail lines from file.
+     * Load the rail line shards under rails/.
+     * Shards, or a single rails.dat or rails.json from before sharding, in the format storage.format does not
+     * select are loaded too, and their lines rewritten in the selected one.
      */
     private void loadRailLines() throws Exception {
-        File file = new File(dataFolder, RAILS_FILE);
-        if (!file.exists()) {
-            return;
-        }
-        
-        try (FileReader reader = new FileReader(file)) {
-            JsonArray array = JsonParser.parseReader(reader).getAsJsonArray();
-            for (JsonElement element : array) {
-                RailLine line = gson.fromJson(element, RailLine.class);
-                railLines.put(line.getId(), line);
+        for (String name : new String[]{RAILS_BINARY_FILE, RAILS_FILE}) {
+            File file = new File(dataFolder, name);
+            if (file.exists()) {
+                loadRailFile(file, null);
             }
+        }
+        File folder = new File(dataFolder, RAILS_FOLDER);
+        if (folder.isDirectory()) {
+            loadRailFolder(folder, "");
+        }
+        if (!railLines.isEmpty()) {
             logger.info("Loaded " + railLines.size() + " rail lines.");
         }
     }
     
+    private void loadRailFolder(File folder, String prefix) throws Exception {
+        File[] files = folder.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                loadRailFolder(file, prefix + name + "/");
+            } else if (name.endsWith(".dat") || name.endsWith(".json")) {
+                loadRailFile(file, prefix + name.substring(0, name.lastIndexOf('.')));
+            }
+        }
+    }
+    
+    /**
+     * Load one rail file. Lines that do not belong in the file's shard, or files in the other format,
+     * mark the shards involved dirty so the first flush moves the lines where they belong.
+     * @param shard Shard the file holds, or null for a file from before sharding
+     */
+    private void loadRailFile(File file, String shard) throws Exception {
+        List<RailLine> lines;
+        if (file.getName().endsWith(".dat")) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                lines = BinaryRailFile.read(in);
+            }
+        } else {
+            lines = new ArrayList<>();
+            readJsonArray(file, RailLine.class, lines::add);
+        }
+        boolean selectedFormat = shard != null && file.getName().endsWith(shardExtension());
+        if (!selectedFormat) {
+            migratedFrom.add(file);
+        }
+        for (RailLine line : lines) {
+            String lineShard = putLine(line, false);
+            if (!selectedFormat || !lineShard.equals(shard)) {
+                dirtyShards.add(lineShard);
+                if (selectedFormat) dirtyShards.add(shard);
+            }
+        }
+    }
+    
+    /**
+     * Write the rail lines loaded from old or other-format files in the selected format, then set those files
+     * aside so they are not loaded again. They are kept, renamed, in case the switch needs undoing.
+     */
+    private void finishMigration() {
+        if (migratedFrom.isEmpty()) {
+            return;
+        }
+        flush();
+        if (!dirtyShards.isEmpty()) {
+            logger.warning("Could not convert " + migratedFrom.size() + " rail files; they will be read again on the next start.");
+            return;
+        }
+        for (File file : migratedFrom) {
+            file.renameTo(new File(file.getParentFile(), file.getName() + ".migrated"));
+        }
+        logger.info("Converted " + migratedFrom.size() + " rail files to " + RAILS_FOLDER + "/*" + shardExtension() +
+                "; the old files were kept with a .migrated suffix.");
+        migratedFrom.clear();
+    }
+    
     /**
      * Load stations from file.
      */
@@ -115,60 +503,252 @@ public class RailwayDataStorage {
             return;
         }
         
-        try (FileReader reader = new FileReader(file)) {
-            JsonArray array = JsonParser.parseReader(reader).getAsJsonArray();
-            for (JsonElement element : array) {
-                Station station = gson.fromJson(element, Station.class);
-                stations.put(station.getId(), station);
+        readJsonArray(file, Station.class, station -> {
+            stations.put(station.getId(), station);
+            stationIndex.add(station);
+        });
+        logger.info("Loaded " + stations.size() + " stations.");
+    }
+    
+    /**
+     * Load the junction/segment networks from file.
+     */
+    private void loadNetworks() throws Exception {
+        File file = new File(dataFolder, NETWORK_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        
+        readJsonArray(file, RailNetwork.class, network -> networks.put(network.getWorld(), network));
+        logger.info("Loaded rail networks for " + networks.size() + " worlds.");
+    }
+    
+    /**
+     * Read a JSON array from a file one element at a time, without building the whole array first.
+     */
+    private <T> void readJsonArray(File file, Class<T> type, Consumer<T> consumer) throws IOException {
+        TypeAdapter<T> adapter = gson.getAdapter(type);
+        try (JsonReader reader = gson.newJsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                T value = adapter.read(reader);
+                if (value != null) {
+                    consumer.accept(value);
+                }
             }
-            logger.info("Loaded " + stations.size() + " stations.");
+            reader.endArray();
         }
     }
     
+    /**
+     * Write a JSON array to a file one element at a time, without building the whole array first.
+     */
+    private <T> void writeJsonArray(File file, Class<T> type, Collection<T> values) throws IOException {
+        TypeAdapter<T> adapter = gson.getAdapter(type);
+        AtomicFile.write(file, out -> {
+            JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.beginArray();
+            for (T value : values) {
+                adapter.write(writer, value);
+            }
+            writer.endArray();
+            writer.flush();
+        });
+    }
+    
     /**
      * Save a rail line.
      */
     public void saveRailLine(RailLine line) throws Exception {
-        railLines.put(line.getId(), line);
-        saveRailLines();
+        synchronized (lock) {
+            putLine(line, true);
+            associateStationsNear(Collections.singletonList(line.getId()));
+            lineGeneration++;
+        }
     }
     
     /**
-     * Save all rail lines.
+     * Store a line in memory, reindex its blocks and assign it to a shard.
+     * @param markDirty Whether the line's shard, and the shard it left if it moved, need writing
+     * @return The line's shard
      */
-    private void saveRailLines() throws Exception {
-        File file = new File(dataFolder, RAILS_FILE);
-        JsonArray array = new JsonArray();
-        for (RailLine line : railLines.values()) {
-            array.add(gson.toJsonTree(line));
+    private String putLine(RailLine line, boolean markDirty) {
+        reservedIds.remove(line.getId());
+        RailLine previous = railLines.put(line.getId(), line);
+        if (previous != null) {
+            blockIndex.remove(line.getId());
         }
-        
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write(gson.toJson(array));
+        blockIndex.add(line);
+        String shard = shardOf(line.getId());
+        StoredLine stored = new StoredLine(line, shard);
+        StoredLine before = storedLines.put(line.getId(), stored);
+        if (markDirty) {
+            dirtyShards.add(shard);
+            if (before != null && !before.shard.equals(shard)) {
+                dirtyShards.add(before.shard);
+            }
+            journalLine(line, before, stored);
+        }
+        return shard;
+    }
+    
+    private void dropLine(String id) {
+        if (railLines.remove(id) != null) {
+            blockIndex.remove(id);
+            StoredLine stored = storedLines.remove(id);
+            if (stored != null) {
+                dirtyShards.add(stored.shard);
+            }
+            journalLineRemoved(id);
         }
     }
     
     /**
-     * Save a station.
+     * Check whether a line is stored exactly as given: the same object, unchanged since it was stored.
      */
-    public void saveStation(Station station) throws Exception {
-        stations.put(station.getId(), station);
-        saveStations();
+    private boolean isStoredUnchanged(RailLine line) {
+        StoredLine stored = storedLines.get(line.getId());
+        return railLines.get(line.getId()) == line && stored != null && stored.version == line.getVersion();
     }
     
     /**
-     * Save all stations.
+     * Shard of an indexed line: its world and the 512-block region holding the centre of its bounds.
+     * A line spanning worlds goes with the world holding most of its blocks.
      */
-    private void saveStations() throws Exception {
-        File file = new File(dataFolder, STATIONS_FILE);
-        JsonArray array = new JsonArray();
-        for (Station station : stations.values()) {
-            array.add(gson.toJsonTree(station));
+    private String shardOf(String lineId) {
+        String world = null;
+        int[] box = null;
+        int mostBlocks = -1;
+        for (Map.Entry<String, int[]> bounds : blockIndex.getBounds(lineId).entrySet()) {
+            int count = blockIndex.getBlockCount(bounds.getKey(), lineId);
+            if (count > mostBlocks || (count == mostBlocks && bounds.getKey().compareTo(world) < 0)) {
+                world = bounds.getKey();
+                box = bounds.getValue();
+                mostBlocks = count;
+            }
         }
-        
-        try (FileWriter writer = new FileWriter(file)) {
-            writer.write(gson.toJson(array));
+        if (world == null) {
+            return UNPLACED_SHARD;
         }
+        int regionX = (int) (((long) box[0] + box[2]) / 2) >> SHARD_SHIFT;
+        int regionZ = (int) (((long) box[1] + box[3]) / 2) >> SHARD_SHIFT;
+        return world + "/r." + regionX + "." + regionZ;
+    }
+    
+    private String shardExtension() {
+        return binary ? ".dat" : ".json";
+    }
+    
+    private File shardFile(String shard) {
+        return new File(new File(dataFolder, RAILS_FOLDER), shard + shardExtension());
+    }
+    
+    /**
+     * Get the index from rail blocks to the stored lines holding them.
+     */
+    public BlockLineIndex getBlockIndex() {
+        return blockIndex;
+    }
+    
+    /**
+     * Get the chunk grid of the stored stations.
+     */
+    public StationIndex getStationIndex() {
+        return stationIndex;
+    }
+    
+    /**
+     * Write the rail line shards that changed since they were last written, from the stored snapshots.
+     * Shards left without lines are deleted.
+     * @return Shards that could not be written
+     */
+    private Set<String> writeDirtyShards() {
+        Set<String> shards = new HashSet<>();
+        Map<String, List<StoredLine>> linesByShard = new HashMap<>();
+        synchronized (lock) {
+            shards.addAll(dirtyShards);
+            dirtyShards.clear();
+            for (StoredLine stored : storedLines.values()) {
+                if (shards.contains(stored.shard)) {
+                    linesByShard.computeIfAbsent(stored.shard, k -> new ArrayList<>()).add(stored);
+                }
+            }
+        }
+        Set<String> failed = new HashSet<>();
+        for (String shard : shards) {
+            File file = shardFile(shard);
+            List<StoredLine> stored = linesByShard.get(shard);
+            try {
+                if (stored == null) {
+                    Files.deleteIfExists(file.toPath());
+                } else {
+                    List<RailLine> lines = new ArrayList<>(stored.size());
+                    for (StoredLine line : stored) {
+                        lines.add(line.toLine());
+                    }
+                    file.getParentFile().mkdirs();
+                    if (binary) {
+                        AtomicFile.write(file, out -> BinaryRailFile.write(out, lines, compress));
+                    } else {
+                        writeRailLinesJson(file, lines);
+                    }
+                }
+            } catch (Exception e) {
+                // The next flush writes the shard again
+                failed.add(shard);
+                logger.warning("Error saving rail shard " + shard + ": " + e);
+            }
+        }
+        return failed;
+    }
+    
+    private void writeRailLinesJson(File file, Collection<RailLine> lines) throws Exception {
+        writeJsonArray(file, RailLine.class, lines);
+    }
+    
+    /**
+     * Write all rail lines as readable JSON to rails-export.json, whatever the storage format.
+     * @return The written file
+     */
+    public File exportRailLinesJson() throws Exception {
+        File file = new File(dataFolder, RAILS_EXPORT_FILE);
+        List<StoredLine> stored = new ArrayList<>(storedLines.values());
+        // Each line is rebuilt from its snapshot only as it is written
+        writeRailLinesJson(file, new AbstractList<RailLine>() {
+            @Override
+            public RailLine get(int index) {
+                return stored.get(index).toLine();
+            }
+            
+            @Override
+            public int size() {
+                return stored.size();
+            }
+        });
+        return file;
+    }
+    
+    /**
+     * Save a station.
+     */
+    public void saveStation(Station station) throws Exception {
+        synchronized (lock) {
+            stations.put(station.getId(), station);
+            stationIndex.add(station);
+            associateStation(station);
+            stationsDirty = true;
+            if (journal != null) {
+                journal.stationPut(station);
+            }
+        }
+    }
+    
+    /**
+     * Write all stations to disk.
+     */
+    private void writeStations() throws Exception {
+        writeJsonArray(new File(dataFolder, STATIONS_FILE), Station.class, stations.values());
     }
     
     /**
@@ -189,8 +769,119 @@ public class RailwayDataStorage {
      * Remove a rail line.
      */
     public void removeRailLine(String id) throws Exception {
-        railLines.remove(id);
-        saveRailLines();
+        synchronized (lock) {
+            dropLine(id);
+            associateStationsNear(Collections.singletonList(id));
+            lineGeneration++;
+        }
+    }
+    
+    /**
+     * Get the junction/segment network of a world.
+     * @return The network, or null if no scan has built one yet
+     */
+    public RailNetwork getNetwork(String world) {
+        return networks.get(world);
+    }
+    
+    /**
+     * Get the networks of all worlds.
+     */
+    public Map<String, RailNetwork> getNetworks() {
+        return new HashMap<>(networks);
+    }
+    
+    /**
+     * Replace the network of a world.
+     */
+    public void replaceNetwork(RailNetwork network) throws Exception {
+        networks.put(network.getWorld(), network);
+        networksDirty = true;
+    }
+    
+    /**
+     * Write all networks to disk. Compact rather than pretty-printed, since segments hold every rail.
+     * Networks are never journaled: each scan replaces a world's network whole, so a record would be as large as
+     * the file. In journal mode too, network.json is rewritten on the writer's next run after a scan.
+     */
+    private void writeNetworks() throws Exception {
+        List<RailNetwork> snapshot = new ArrayList<>(networks.values());
+        AtomicFile.write(new File(dataFolder, NETWORK_FILE), out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            RailwayJson.create().toJson(snapshot, writer);
+            writer.flush();
+        });
+    }
+    
+    /**
+     * Get the IDs of the lines serving a station, nearest first.
+     */
+    public List<String> getStationLines(String stationId) {
+        List<String> lineIds = stationLines.get(stationId);
+        return lineIds != null ? new ArrayList<>(lineIds) : new ArrayList<>();
+    }
+    
+    /**
+     * Get and forget the IDs of the stations whose serving lines changed since the last call.
+     */
+    public Set<String> drainChangedStations() {
+        Set<String> drained = new HashSet<>();
+        for (Iterator<String> it = changedStationIds.iterator(); it.hasNext(); ) {
+            drained.add(it.next());
+            it.remove();
+        }
+        return drained;
+    }
+    
+    /**
+     * Link a station to the lines passing within stations.line-radius blocks of it.
+     */
+    private void associateStation(Station station) {
+        int radius = plugin.getConfig().getInt("stations.line-radius", 8);
+        List<String> lineIds = new ArrayList<>();
+        for (Nearest<String> nearest : blockIndex.findNearestLines(station.getWorld(), station.getX(), station.getY(), station.getZ(), Integer.MAX_VALUE, radius)) {
+            lineIds.add(nearest.getValue());
+        }
+        List<String> previous = stationLines.put(station.getId(), lineIds);
+        if (!lineIds.equals(previous)) {
+            changedStationIds.add(station.getId());
+        }
+    }
+    
+    private void associateAllStations() {
+        for (Station station : stations.values()) {
+            associateStation(station);
+        }
+    }
+    
+    /**
+     * Relink the stations served by, or within reach of, lines that were just stored or removed.
+     * Only stations inside the lines' chunks (plus the line radius) are looked at.
+     */
+    private void associateStationsNear(Collection<String> lineIds) {
+        Set<String> lineIdSet = new HashSet<>(lineIds);
+        Map<String, Station> affected = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : stationLines.entrySet()) {
+            for (String lineId : entry.getValue()) {
+                if (lineIdSet.contains(lineId)) {
+                    Station station = stations.get(entry.getKey());
+                    if (station != null) affected.put(station.getId(), station);
+                    break;
+                }
+            }
+        }
+        int radius = plugin.getConfig().getInt("stations.line-radius", 8);
+        for (String lineId : lineIdSet) {
+            for (Map.Entry<String, int[]> bounds : blockIndex.getBounds(lineId).entrySet()) {
+                int[] box = bounds.getValue();
+                for (Station station : stationIndex.getStationsInArea(bounds.getKey(), box[0] - radius, box[1] - radius, box[2] + radius, box[3] + radius)) {
+                    affected.put(station.getId(), station);
+                }
+            }
+        }
+        for (Station station : affected.values()) {
+            associateStation(station);
+        }
     }
     
     /**
@@ -211,59 +902,269 @@ public class RailwayDataStorage {
      * Remove a station.
      */
     public void removeStation(String id) throws Exception {
-        stations.remove(id);
-        saveStations();
+        synchronized (lock) {
+            stations.remove(id);
+            stationIndex.remove(id);
+            stationLines.remove(id);
+            stationsDirty = true;
+            if (journal != null) {
+                journal.stationRemoved(id);
+            }
+        }
     }
     
     /**
      * Replace all rail lines with a new set.
      */
     public void replaceAllRailLines(List<RailLine> newLines) throws Exception {
-        railLines.clear();
-        for (RailLine line : newLines) {
-            railLines.put(line.getId(), line);
-        }
-        saveRailLines();
-        logger.info("Replaced all rail lines. Now storing " + railLines.size() + " lines.");
+        replaceAllRailLinesFiltered(newLines, 0);
     }
     
     /**
      * Replace all rail lines with filtering by minimum length from config.
+     * Lines passed back exactly as stored are left alone, so only the shards of added, changed and removed
+     * lines are written.
      */
     public void replaceAllRailLinesFiltered(List<RailLine> newLines, int minLength) throws Exception {
-        railLines.clear();
+        synchronized (lock) {
+            replaceAll(newLines, minLength);
+        }
+    }
+    
+    /**
+     * Replace all rail lines like {@link #replaceAllRailLinesFiltered}, but only if no other call has changed the
+     * stored lines since the given generation. Scans merge a copy of the stored lines for a long time; committing
+     * through this keeps them from reverting edits stored in the meantime.
+     * The IDs of the given lines are released either way, so a caller merging again generates new ones.
+     * @return The generation after the replacement, or -1 if the lines changed in between and nothing was replaced
+     */
+    public long replaceAllRailLinesFilteredIfUnchanged(long generation, List<RailLine> newLines, int minLength) {
+        synchronized (lock) {
+            if (lineGeneration != generation) {
+                for (RailLine line : newLines) {
+                    reservedIds.remove(line.getId());
+                }
+                return -1;
+            }
+            replaceAll(newLines, minLength);
+            return lineGeneration;
+        }
+    }
+    
+    private void replaceAll(List<RailLine> newLines, int minLength) {
+        Map<String, RailLine> kept = new HashMap<>();
         int filtered = 0;
         for (RailLine line : newLines) {
+            reservedIds.remove(line.getId());
             if (line.getBlockCount() >= minLength) {
-                railLines.put(line.getId(), line);
+                kept.put(line.getId(), line);
             } else {
                 filtered++;
             }
         }
-        saveRailLines();
-        logger.info("Replaced all rail lines. Now storing " + railLines.size() + " lines (filtered " + filtered + " lines below minimum length).");
+        List<String> changedIds = new ArrayList<>();
+        for (String id : new ArrayList<>(railLines.keySet())) {
+            if (!kept.containsKey(id)) {
+                dropLine(id);
+                changedIds.add(id);
+            }
+        }
+        for (RailLine line : kept.values()) {
+            if (!isStoredUnchanged(line)) {
+                putLine(line, true);
+                changedIds.add(line.getId());
+            }
+        }
+        associateStationsNear(changedIds);
+        lineGeneration++;
+        logger.info("Replaced all rail lines. Now storing " + railLines.size() + " lines (" + changedIds.size() + " changed" +
+                (filtered > 0 ? ", filtered " + filtered + " lines below minimum length" : "") + ").");
+    }
+    
+    /**
+     * Replace a subset of rail lines, filtering the replacements by minimum length.
+     * Live updates, which only rebuild the lines around changed chunks, use {@link #replaceRailLinesIfUnchanged}.
+     * @param removedIds IDs of lines to remove
+     * @param lines New or updated lines; lines below the minimum length are removed instead
+     */
+    public void replaceRailLines(Collection<String> removedIds, Collection<RailLine> lines, int minLength) throws Exception {
+        synchronized (lock) {
+            replaceLines(removedIds, lines, minLength);
+        }
+    }
+    
+    /**
+     * Replace a subset of rail lines like {@link #replaceRailLines}, but only if no other call has changed the
+     * stored lines since the given generation. The IDs of the given lines are released either way.
+     * @return The generation after the replacement, or -1 if the lines changed in between and nothing was replaced
+     */
+    public long replaceRailLinesIfUnchanged(long generation, Collection<String> removedIds, Collection<RailLine> lines, int minLength) {
+        synchronized (lock) {
+            if (lineGeneration != generation) {
+                for (RailLine line : lines) {
+                    reservedIds.remove(line.getId());
+                }
+                return -1;
+            }
+            replaceLines(removedIds, lines, minLength);
+            return lineGeneration;
+        }
+    }
+    
+    private void replaceLines(Collection<String> removedIds, Collection<RailLine> lines, int minLength) {
+        for (String id : removedIds) {
+            dropLine(id);
+        }
+        for (RailLine line : lines) {
+            reservedIds.remove(line.getId());
+            if (line.getBlockCount() >= minLength) {
+                putLine(line, true);
+            } else {
+                dropLine(line.getId());
+            }
+        }
+        List<String> changedIds = new ArrayList<>(removedIds);
+        for (RailLine line : lines) {
+            changedIds.add(line.getId());
+        }
+        associateStationsNear(changedIds);
+        lineGeneration++;
+    }
+    
+    /**
+     * Get the generation of the stored lines, which every call that changes them bumps by one.
+     * Lets a holder of derived state tell whether anything else changed the lines since it last looked.
+     */
+    public long getLineGeneration() {
+        return lineGeneration;
+    }
+    
+    /**
+     * Change stored lines under the storage lock. Each line is looked up by ID when the change runs and the change
+     * gets a copy of it; the copies it returns true for replace the stored lines.
+     * Lines removed in the meantime are skipped, and a scan storing lines meanwhile cannot be undone by the change.
+     * @param update Changes a copy of a line, returning whether it changed anything
+     * @return The stored copies that were changed
+     */
+    public List<RailLine> updateRailLines(Collection<String> ids, Predicate<RailLine> update) {
+        synchronized (lock) {
+            List<RailLine> changed = new ArrayList<>();
+            List<String> changedIds = new ArrayList<>();
+            for (String id : ids) {
+                RailLine line = railLines.get(id);
+                if (line == null) continue;
+                RailLine copy = line.copy();
+                if (update.test(copy)) {
+                    putLine(copy, true);
+                    changed.add(copy);
+                    changedIds.add(id);
+                }
+            }
+            associateStationsNear(changedIds);
+            if (!changed.isEmpty()) {
+                lineGeneration++;
+            }
+            return changed;
+        }
     }
     
     /**
      * Clear all data.
      */
     public void clearAll() throws Exception {
-        railLines.clear();
-        stations.clear();
-        saveRailLines();
-        saveStations();
+        synchronized (lock) {
+            for (String id : railLines.keySet()) {
+                journalLineRemoved(id);
+            }
+            for (String id : stations.keySet()) {
+                if (journal != null) journal.stationRemoved(id);
+            }
+            for (StoredLine stored : storedLines.values()) {
+                dirtyShards.add(stored.shard);
+            }
+            railLines.clear();
+            blockIndex.clear();
+            storedLines.clear();
+            stations.clear();
+            stationIndex.clear();
+            stationLines.clear();
+            networks.clear();
+            stationsDirty = true;
+            networksDirty = true;
+            lineGeneration++;
+        }
+    }
+    
+    /**
+     * Write every file with unsaved changes. Only one write runs at a time.
+     */
+    public void flush() {
+        writeSnapshot();
+    }
+    
+    /**
+     * Write every dirty file.
+     * @return Whether all of them were written
+     */
+    private boolean writeSnapshot() {
+        synchronized (writeLock) {
+            boolean written = true;
+            if (!dirtyShards.isEmpty()) {
+                Set<String> failed = writeDirtyShards();
+                dirtyShards.addAll(failed);
+                written = failed.isEmpty();
+            }
+            if (stationsDirty) {
+                stationsDirty = false;
+                try {
+                    writeStations();
+                } catch (Exception e) {
+                    stationsDirty = true;
+                    written = false;
+                    logger.warning("Error saving stations: " + e);
+                }
+            }
+            return writeNetworksIfDirty() && written;
+        }
+    }
+    
+    private boolean writeNetworksIfDirty() {
+        if (networksDirty) {
+            networksDirty = false;
+            try {
+                writeNetworks();
+            } catch (Exception e) {
+                networksDirty = true;
+                logger.warning("Error saving rail networks: " + e);
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
      * Shutdown storage system.
      */
     public void shutdown() {
-        // Flush any pending writes if needed
-        try {
-            saveRailLines();
-            saveStations();
-        } catch (Exception e) {
-            logger.warning("Error saving data on shutdown: " + e.getMessage());
+        // Stop the background writer and flush what is left
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        // A complete snapshot makes the journal redundant; otherwise it is replayed on the next start
+        if (writeSnapshot() && journal != null) {
+            try {
+                journal.delete();
+            } catch (IOException e) {
+                logger.warning("Error deleting the journal: " + e);
+            }
+        } else if (journal != null) {
+            journal.close();
         }
     }
 }
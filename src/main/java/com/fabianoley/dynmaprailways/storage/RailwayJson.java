@@ -0,0 +1,243 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.station.Station;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Gson with hand-written streaming adapters for rail lines, rail blocks and stations.
+ * They go straight between the objects and a JsonReader or JsonWriter, with no reflection and no JsonElement
+ * tree in between, and keep the field names and order the reflective adapters used, so existing files read the same.
+ * Fields missing from a file keep the defaults the constructors give them.
+ */
+public final class RailwayJson {
+
+    private RailwayJson() {
+    }
+
+    public static GsonBuilder builder() {
+        RailBlockAdapter blockAdapter = new RailBlockAdapter();
+        return new GsonBuilder()
+                .registerTypeAdapter(RailBlock.class, blockAdapter)
+                .registerTypeAdapter(RailLine.class, new RailLineAdapter(blockAdapter))
+                .registerTypeAdapter(Station.class, new StationAdapter());
+    }
+
+    public static Gson create() {
+        return builder().create();
+    }
+
+    static final class RailBlockAdapter extends TypeAdapter<RailBlock> {
+
+        @Override
+        public void write(JsonWriter out, RailBlock block) throws IOException {
+            if (block == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("x").value(block.x);
+            out.name("y").value(block.y);
+            out.name("z").value(block.z);
+            if (block.world != null) out.name("world").value(block.world);
+            out.endObject();
+        }
+
+        @Override
+        public RailBlock read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            int x = 0, y = 0, z = 0;
+            String world = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "x": x = in.nextInt(); break;
+                    case "y": y = in.nextInt(); break;
+                    case "z": z = in.nextInt(); break;
+                    case "world": world = nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new RailBlock(x, y, z, world);
+        }
+    }
+
+    static final class RailLineAdapter extends TypeAdapter<RailLine> {
+
+        private final RailBlockAdapter blockAdapter;
+
+        RailLineAdapter(RailBlockAdapter blockAdapter) {
+            this.blockAdapter = blockAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, RailLine line) throws IOException {
+            if (line == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(line.getId());
+            if (line.getName() != null) out.name("name").value(line.getName());
+            if (line.getColor() != null) out.name("color").value(line.getColor());
+            out.name("blocks").beginArray();
+            for (RailBlock block : line.getBlocks()) {
+                blockAdapter.write(out, block);
+            }
+            out.endArray();
+            if (line.getCreatedBy() != null) out.name("createdBy").value(line.getCreatedBy());
+            out.name("createdAt").value(line.getCreatedAt());
+            out.name("isActive").value(line.isActive());
+            List<Integer> segmentIds = line.getSegmentIds();
+            if (segmentIds != null) {
+                out.name("segmentIds").beginArray();
+                for (int id : segmentIds) {
+                    out.value(id);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public RailLine read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null, name = null, color = null, createdBy = null;
+            Long createdAt = null;
+            Boolean active = null;
+            boolean hasName = false;
+            List<RailBlock> blocks = new ArrayList<>();
+            List<Integer> segmentIds = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": id = nextString(in); break;
+                    case "name": name = nextString(in); hasName = true; break;
+                    case "color": color = nextString(in); break;
+                    case "createdBy": createdBy = nextString(in); break;
+                    case "createdAt": createdAt = in.nextLong(); break;
+                    case "isActive": active = in.nextBoolean(); break;
+                    case "blocks":
+                        in.beginArray();
+                        String world = null;
+                        while (in.hasNext()) {
+                            RailBlock block = blockAdapter.read(in);
+                            if (block == null) continue;
+                            // Share one world string between the blocks instead of keeping a copy per block
+                            if (block.world != null && block.world.equals(world)) {
+                                block.world = world;
+                            }
+                            world = block.world;
+                            blocks.add(block);
+                        }
+                        in.endArray();
+                        break;
+                    case "segmentIds":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+                        segmentIds = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            segmentIds.add(in.nextInt());
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            RailLine line = new RailLine(id, color);
+            if (hasName) line.setName(name);
+            line.setCreatedBy(createdBy);
+            if (createdAt != null) line.setCreatedAt(createdAt);
+            if (active != null) line.setActive(active);
+            line.addBlocks(blocks);
+            // Set last, since adding blocks drops the segment IDs
+            line.setSegmentIds(segmentIds);
+            return line;
+        }
+    }
+
+    static final class StationAdapter extends TypeAdapter<Station> {
+
+        @Override
+        public void write(JsonWriter out, Station station) throws IOException {
+            if (station == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(station.getId());
+            if (station.getName() != null) out.name("name").value(station.getName());
+            out.name("x").value(station.getX());
+            out.name("y").value(station.getY());
+            out.name("z").value(station.getZ());
+            if (station.getWorld() != null) out.name("world").value(station.getWorld());
+            if (station.getCreatedBy() != null) out.name("createdBy").value(station.getCreatedBy());
+            out.name("createdAt").value(station.getCreatedAt());
+            out.name("isActive").value(station.isActive());
+            out.endObject();
+        }
+
+        @Override
+        public Station read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null, name = null, world = null, createdBy = null;
+            int x = 0, y = 64, z = 0;
+            Long createdAt = null;
+            Boolean active = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id": id = nextString(in); break;
+                    case "name": name = nextString(in); break;
+                    case "x": x = in.nextInt(); break;
+                    case "y": y = in.nextInt(); break;
+                    case "z": z = in.nextInt(); break;
+                    case "world": world = nextString(in); break;
+                    case "createdBy": createdBy = nextString(in); break;
+                    case "createdAt": createdAt = in.nextLong(); break;
+                    case "isActive": active = in.nextBoolean(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+
+            Station station = new Station(id, name, x, y, z, world);
+            station.setCreatedBy(createdBy);
+            if (createdAt != null) station.setCreatedAt(createdAt);
+            if (active != null) station.setActive(active);
+            return station;
+        }
+    }
+
+    private static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+}
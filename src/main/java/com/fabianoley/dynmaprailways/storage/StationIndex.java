@@ -0,0 +1,86 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.scan.ScanResult;
+import com.fabianoley.dynmaprailways.station.Station;
+import java.util.*;
+
+/**
+ * Chunk grid of the stored stations, for area and nearest-station queries.
+ * Kept current by {@link RailwayDataStorage} as stations are stored and removed. Thread-safe.
+ */
+public class StationIndex {
+
+    private final Map<String, Map<Long, List<Station>>> worlds = new HashMap<>();
+    private final Map<String, Station> indexed = new HashMap<>(); // by ID, as indexed
+
+    synchronized void add(Station station) {
+        remove(station.getId());
+        long chunk = ScanResult.chunkKey(station.getX() >> 4, station.getZ() >> 4);
+        worlds.computeIfAbsent(station.getWorld(), k -> new HashMap<>())
+                .computeIfAbsent(chunk, k -> new ArrayList<>()).add(station);
+        indexed.put(station.getId(), station);
+    }
+
+    synchronized void remove(String stationId) {
+        Station station = indexed.remove(stationId);
+        if (station == null) {
+            return;
+        }
+        Map<Long, List<Station>> grid = worlds.get(station.getWorld());
+        long chunk = ScanResult.chunkKey(station.getX() >> 4, station.getZ() >> 4);
+        List<Station> stations = grid.get(chunk);
+        stations.remove(station);
+        if (stations.isEmpty()) {
+            grid.remove(chunk);
+        }
+    }
+
+    synchronized void clear() {
+        worlds.clear();
+        indexed.clear();
+    }
+
+    /**
+     * Stations inside a block area, bounds inclusive.
+     */
+    public synchronized List<Station> getStationsInArea(String world, int minX, int minZ, int maxX, int maxZ) {
+        List<Station> found = new ArrayList<>();
+        Map<Long, List<Station>> grid = worlds.get(world);
+        if (grid == null) {
+            return found;
+        }
+        ChunkGrid.visitArea(minX, minZ, maxX, maxZ, grid.keySet(), chunk -> {
+            for (Station station : grid.getOrDefault(chunk, Collections.emptyList())) {
+                if (station.getX() >= minX && station.getX() <= maxX && station.getZ() >= minZ && station.getZ() <= maxZ) {
+                    found.add(station);
+                }
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Find the stations closest to a point, nearest first.
+     * @param limit Most stations to return
+     * @param maxDistance Furthest distance in blocks a station may be away
+     */
+    public synchronized List<Nearest<Station>> findNearestStations(String world, int x, int y, int z, int limit, int maxDistance) {
+        Map<Long, List<Station>> grid = worlds.get(world);
+        if (grid == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        long maxSquared = (long) maxDistance * maxDistance;
+        List<Nearest<Station>> found = new ArrayList<>();
+        ChunkGrid.visitOutward(x, z, maxDistance, grid.keySet(), chunk -> {
+            for (Station station : grid.getOrDefault(chunk, Collections.emptyList())) {
+                long key = BlockKey.pack(station.getX(), station.getY(), station.getZ());
+                long distance = ChunkGrid.distanceSquared(key, x, y, z);
+                if (distance <= maxSquared) {
+                    found.add(new Nearest<>(station, key, distance));
+                }
+            }
+        }, ringDistance -> BlockLineIndex.reached(found, limit, ringDistance));
+        return BlockLineIndex.closest(found, limit);
+    }
+}
@@ -0,0 +1,68 @@
+package com.fabianoley.dynmaprailways.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs. Not thread-safe.
+ */
+public class LongList {
+
+    private long[] values;
+    private int size;
+
+    public LongList() {
+        this(16);
+    }
+
+    public LongList(int capacity) {
+        values = new long[Math.max(1, capacity)];
+    }
+
+    public void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size << 1);
+        }
+        values[size++] = value;
+    }
+
+    public long get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index);
+        return values[index];
+    }
+
+    /**
+     * Remove and return the last value.
+     */
+    public long removeLast() {
+        return values[--size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public void trimToSize() {
+        values = Arrays.copyOf(values, Math.max(1, size));
+    }
+
+    /**
+     * Add every value of this list to a set.
+     */
+    public void addTo(LongHashSet set) {
+        for (int i = 0; i < size; i++) {
+            set.add(values[i]);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.fabianoley.dynmaprailways.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over an index range on a fork/join pool, split in halves down to a grain size.
+ * Ranges no larger than the grain run directly on the calling thread.
+ */
+public final class ParallelRange {
+
+    /**
+     * Loop body over the indices [from, to).
+     */
+    @FunctionalInterface
+    public interface Body {
+        void run(int from, int to);
+    }
+
+    private ParallelRange() {
+    }
+
+    public static void forRange(ForkJoinPool pool, int from, int to, int grain, Body body) {
+        if (to - from <= grain) {
+            if (to > from) body.run(from, to);
+            return;
+        }
+        pool.invoke(new Task(from, to, Math.max(1, grain), body));
+    }
+
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final Body body;
+
+        Task(int from, int to, int grain, Body body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Task(from, mid, grain, body), new Task(mid, to, grain, body));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class LineConnectivityTest {
+
+    private int nextId;
+
+    @Test
+    void joinsLinesContinuedEndToEnd() {
+        RailLine west = line("w", 0, 0, 1, 0, 9);
+        RailLine east = line("e", 10, 0, 1, 0, 5);
+        LineConnectivity connectivity = connectivity(west, east);
+
+        LineConnectivity.Edit edit = connectivity.addRail(new RailBlock(9, 64, 0, "world"), "Bob");
+
+        assertEquals(List.of("e"), edit.getRemovedIds());
+        assertEquals(1, edit.getChangedLines().size());
+        RailLine joined = edit.getChangedLines().get(0);
+        assertEquals("w", joined.getId());
+        assertEquals(15, joined.getBlockCount());
+        // The clusterer traces the same rails as one line too
+        assertEquals(1, RailClusterer.cluster("world", rails(joined)).size());
+    }
+
+    @Test
+    void keepsLinesApartAtJunctions() {
+        // A spur running north towards the middle of a line; the last rail makes a T junction
+        RailLine main = line("m", 0, 0, 1, 0, 11);
+        RailLine spur = line("s", 5, 2, 0, 1, 6);
+        LineConnectivity connectivity = connectivity(main, spur);
+
+        LineConnectivity.Edit edit = connectivity.addRail(new RailBlock(5, 64, 1, "world"), "Bob");
+
+        assertTrue(edit.getRemovedIds().isEmpty());
+        assertEquals(1, edit.getChangedLines().size());
+        RailLine extended = edit.getChangedLines().get(0);
+        assertEquals("m", extended.getId());
+        assertEquals(12, extended.getBlockCount());
+        assertFalse(extended.containsBlock(new RailBlock(5, 64, 2, "world")));
+
+        // Rails placed along the spur afterwards still find it under its own ID
+        edit = connectivity.addRail(new RailBlock(5, 64, 8, "world"), "Bob");
+        assertEquals("s", edit.getChangedLines().get(0).getId());
+        assertEquals(7, edit.getChangedLines().get(0).getBlockCount());
+
+        // The clusterer ends lines at the junction as well, rather than joining them
+        LongHashSet all = rails(extended);
+        all.addAll(rails(edit.getChangedLines().get(0)));
+        assertTrue(RailClusterer.cluster("world", all).size() > 1);
+    }
+
+    private LineConnectivity connectivity(RailLine... lines) {
+        return new LineConnectivity(() -> "n" + nextId++, Arrays.asList(lines));
+    }
+
+    /**
+     * A straight line of rails at y 64, starting at x, z and going length steps of dx, dz.
+     */
+    private static RailLine line(String id, int x, int z, int dx, int dz, int length) {
+        RailLine line = new RailLine(id, "#000000");
+        for (int i = 0; i < length; i++) {
+            line.addBlock(new RailBlock(x + i * dx, 64, z + i * dz, "world"));
+        }
+        return line;
+    }
+
+    private static LongHashSet rails(RailLine line) {
+        LongHashSet rails = new LongHashSet();
+        for (RailBlock block : line.getBlocks()) {
+            rails.add(BlockKey.of(block));
+        }
+        return rails;
+    }
+}
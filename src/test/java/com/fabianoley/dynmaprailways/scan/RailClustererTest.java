@@ -0,0 +1,116 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import com.fabianoley.dynmaprailways.rail.RailGraph;
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.util.LongHashSet;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class RailClustererTest {
+
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void unionFindLabelsMatchBreadthFirstSearch() {
+        Random random = new Random(1);
+        for (int layout = 0; layout < 200; layout++) {
+            // Spread over many chunk strips, so components cross tile borders in both directions
+            RailGraph graph = RailGraph.build(randomRails(random, 1 + random.nextInt(40), 400));
+            int[] expected = breadthFirstLabels(graph);
+            assertArrayEquals(expected, RailClusterer.labelComponents(graph, null), "serial labels of layout " + layout);
+            assertArrayEquals(expected, RailClusterer.labelComponents(graph, pool), "parallel labels of layout " + layout);
+        }
+    }
+
+    @Test
+    void parallelClusteringMatchesSerial() {
+        Random random = new Random(7);
+        for (int layout = 0; layout < 20; layout++) {
+            LongHashSet rails = randomRails(random, 200 + random.nextInt(400), 600);
+            List<RailLine> serial = RailClusterer.cluster("world", rails);
+            List<RailLine> parallel = RailClusterer.cluster("world", rails, pool);
+
+            assertEquals(serial.size(), parallel.size());
+            for (int i = 0; i < serial.size(); i++) {
+                assertEquals(serial.get(i).getId(), parallel.get(i).getId());
+                assertEquals(serial.get(i).getColor(), parallel.get(i).getColor());
+                assertEquals(serial.get(i).getBlocks(), parallel.get(i).getBlocks());
+            }
+
+            // Every rail ends up on a line; junction rails may be on each line meeting there
+            LongHashSet covered = new LongHashSet(rails.size());
+            for (RailLine line : parallel) {
+                for (RailBlock block : line.getBlocks()) {
+                    covered.add(BlockKey.of(block));
+                }
+            }
+            assertEquals(rails, covered);
+        }
+    }
+
+    /**
+     * The baseline: label each component with its lowest node by a plain breadth-first search in node order.
+     */
+    private static int[] breadthFirstLabels(RailGraph graph) {
+        int[] labels = new int[graph.size()];
+        Arrays.fill(labels, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int start = 0; start < graph.size(); start++) {
+            if (labels[start] >= 0) continue;
+            labels[start] = start;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                for (int e = graph.edgeStart(node); e < graph.edgeEnd(node); e++) {
+                    int neighbor = graph.neighbor(e);
+                    if (labels[neighbor] < 0) {
+                        labels[neighbor] = start;
+                        queue.add(neighbor);
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Random walks of rails around the origin, mostly flat with some slopes.
+     */
+    private static LongHashSet randomRails(Random random, int walks, int spread) {
+        LongHashSet rails = new LongHashSet();
+        for (int w = 0; w < walks; w++) {
+            int x = random.nextInt(spread) - spread / 2, y = 64, z = random.nextInt(spread) - spread / 2;
+            int length = random.nextInt(300);
+            for (int step = 0; step < length; step++) {
+                rails.add(BlockKey.pack(x, y, z));
+                int direction = random.nextInt(8);
+                if (direction < 2) x++;
+                else if (direction < 4) z++;
+                else if (direction == 4) x--;
+                else if (direction == 5) z--;
+                else if (direction == 6) {
+                    x++;
+                    y += random.nextBoolean() ? 1 : -1;
+                }
+            }
+        }
+        return rails;
+    }
+}
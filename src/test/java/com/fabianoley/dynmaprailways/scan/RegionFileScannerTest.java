@@ -0,0 +1,232 @@
+package com.fabianoley.dynmaprailways.scan;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fabianoley.dynmaprailways.rail.BlockKey;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RegionFileScannerTest {
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_INT = 3;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    private static final int ZLIB = 2;
+    private static final int GZIP = 1;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void findsRailsInPalettesOfFourAndFiveBits() throws IOException {
+        // r.-1.0 holds chunks -32..-1 by 0..31
+        int chunkX = -31, chunkZ = 2;
+        int otherX = -2, otherZ = 0;
+
+        // 17 states need 5 bits per index, so 12 indices fill a long and 4 bits are left over;
+        // the powered rail at index 16 cannot be read with 4 bits
+        List<String> palette = new ArrayList<>();
+        palette.add("minecraft:air");
+        for (int i = 1; i < 15; i++) {
+            palette.add("minecraft:stone_" + i);
+        }
+        palette.add("minecraft:rail");
+        palette.add("minecraft:powered_rail");
+        int[] states = new int[4096];
+        Arrays.fill(states, 3);
+        Set<Long> expected = new HashSet<>();
+        int[][] wide = {{0, 0, 0, 15}, {11, 0, 0, 16}, {12, 0, 0, 16}, {5, 9, 14, 15}, {15, 15, 15, 16}};
+        for (int[] rail : wide) {
+            states[index(rail[0], rail[1], rail[2])] = rail[3];
+            expected.add(BlockKey.pack((chunkX << 4) + rail[0], -16 + rail[1], (chunkZ << 4) + rail[2]));
+        }
+        byte[] wideChunk = chunk(section(-1, palette, pack(states, 5)), section(0, List.of("minecraft:air"), null));
+
+        // Two states still use the 4-bit minimum, 16 indices to a long
+        int[] narrowStates = new int[4096];
+        int[][] narrow = {{3, 0, 7}, {4, 0, 7}, {4, 1, 8}};
+        for (int[] rail : narrow) {
+            narrowStates[index(rail[0], rail[1], rail[2])] = 1;
+            expected.add(BlockKey.pack((otherX << 4) + rail[0], 64 + rail[1], (otherZ << 4) + rail[2]));
+        }
+        byte[] narrowChunk = chunk(section(4, List.of("minecraft:air", "minecraft:detector_rail"), pack(narrowStates, 4)));
+
+        Map<Integer, byte[]> chunks = new LinkedHashMap<>();
+        chunks.put(chunkIndex(chunkX, chunkZ), compress(wideChunk, ZLIB));
+        chunks.put(chunkIndex(otherX, otherZ), compress(narrowChunk, GZIP));
+        writeRegion(folder.resolve("r.-1.0.mca"), chunks);
+
+        ScanResult result = new RegionFileScanner(ForkJoinPool.commonPool()).scan(folder.toFile(), "world");
+
+        Set<Long> found = new HashSet<>();
+        result.getRails().forEach(found::add);
+        assertEquals(expected, found);
+        assertEquals(Set.of(ScanResult.chunkKey(chunkX, chunkZ), ScanResult.chunkKey(otherX, otherZ)), result.getScannedChunks());
+        assertEquals("world", result.getWorldName());
+    }
+
+    @Test
+    void keepsOutdatedAndLoadedChunksOutOfTheCache() throws IOException {
+        int[] states = new int[4096];
+        states[index(1, 2, 3)] = 1;
+        byte[] chunk = compress(chunk(section(4, List.of("minecraft:air", "minecraft:rail"), pack(states, 4))), ZLIB);
+        Map<Integer, byte[]> chunks = new LinkedHashMap<>();
+        for (int cx = 0; cx < 3; cx++) {
+            chunks.put(chunkIndex(cx, 0), chunk);
+        }
+        Path regions = Files.createDirectories(folder.resolve("region"));
+        writeRegion(regions.resolve("r.0.0.mca"), chunks);
+        long invalidated = ScanResult.chunkKey(0, 0), loaded = ScanResult.chunkKey(1, 0), plain = ScanResult.chunkKey(2, 0);
+
+        // Rails changed after the region file was last saved, so its copy of the chunk is outdated
+        ChunkRailCache cache = new ChunkRailCache(folder.toFile());
+        cache.invalidate("world", invalidated);
+        ScanResult result = new RegionFileScanner(ForkJoinPool.commonPool(), cache).scan(regions.toFile(), "world", Set.of(loaded));
+
+        assertEquals(3, result.getRails().size());
+        assertNull(cache.get("world", invalidated));
+        assertNull(cache.get("world", loaded));
+        assertNotNull(cache.get("world", plain));
+        assertEquals(1, cache.get("world", plain).getRailCount());
+    }
+
+    private static int index(int x, int y, int z) {
+        return (y << 8) | (z << 4) | x;
+    }
+
+    private static int chunkIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & 31) << 5) | (chunkX & 31);
+    }
+
+    /**
+     * Pack palette indices the 1.16+ way: as many as fit in a long, none spanning two.
+     */
+    private static long[] pack(int[] states, int bits) {
+        int perLong = 64 / bits;
+        long[] data = new long[(states.length + perLong - 1) / perLong];
+        for (int i = 0; i < states.length; i++) {
+            data[i / perLong] |= (long) states[i] << ((i % perLong) * bits);
+        }
+        return data;
+    }
+
+    private interface Nbt {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static Nbt section(int y, List<String> palette, long[] data) {
+        return out -> {
+            out.writeByte(TAG_BYTE);
+            out.writeUTF("Y");
+            out.writeByte(y);
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("block_states");
+            out.writeByte(TAG_LIST);
+            out.writeUTF("palette");
+            out.writeByte(TAG_COMPOUND);
+            out.writeInt(palette.size());
+            for (String name : palette) {
+                if (name.endsWith(":rail")) {
+                    // Properties come before the name here, so the reader has to skip them
+                    out.writeByte(TAG_COMPOUND);
+                    out.writeUTF("Properties");
+                    out.writeByte(TAG_STRING);
+                    out.writeUTF("shape");
+                    out.writeUTF("north_south");
+                    out.writeByte(TAG_END);
+                }
+                out.writeByte(TAG_STRING);
+                out.writeUTF("Name");
+                out.writeUTF(name);
+                out.writeByte(TAG_END);
+            }
+            if (data != null) {
+                out.writeByte(TAG_LONG_ARRAY);
+                out.writeUTF("data");
+                out.writeInt(data.length);
+                for (long word : data) {
+                    out.writeLong(word);
+                }
+            }
+            out.writeByte(TAG_END);
+            out.writeByte(TAG_END);
+        };
+    }
+
+    private static byte[] chunk(Nbt... sections) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("");
+        out.writeByte(TAG_INT);
+        out.writeUTF("DataVersion");
+        out.writeInt(3700);
+        out.writeByte(TAG_STRING);
+        out.writeUTF("Status");
+        out.writeUTF("minecraft:full");
+        out.writeByte(TAG_LIST);
+        out.writeUTF("sections");
+        out.writeByte(TAG_COMPOUND);
+        out.writeInt(sections.length);
+        for (Nbt section : sections) {
+            section.write(out);
+        }
+        out.writeByte(TAG_END);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compress(byte[] nbt, int compression) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = compression == GZIP ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            out.write(nbt);
+        }
+        byte[] payload = bytes.toByteArray();
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(framed);
+        out.writeInt(payload.length + 1);
+        out.writeByte(compression);
+        out.write(payload);
+        return framed.toByteArray();
+    }
+
+    /**
+     * Write a region file: the location and timestamp tables, then each chunk on whole 4 KiB sectors.
+     */
+    private static void writeRegion(Path file, Map<Integer, byte[]> chunks) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int[] locations = new int[1024];
+        int sector = 2;
+        for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+            byte[] data = chunk.getValue();
+            int sectors = (data.length + 4095) / 4096;
+            locations[chunk.getKey()] = (sector << 8) | sectors;
+            body.write(data);
+            body.write(new byte[sectors * 4096 - data.length]);
+            sector += sectors;
+        }
+        ByteArrayOutputStream region = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(region);
+        for (int location : locations) {
+            out.writeInt(location);
+        }
+        for (int location : locations) {
+            out.writeInt(location != 0 ? 1_700_000_000 : 0);
+        }
+        body.writeTo(out);
+        out.flush();
+        Files.write(file, region.toByteArray());
+    }
+}
@@ -0,0 +1,124 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import java.io.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BinaryRailFileTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void roundTripKeepsEveryField(boolean deflate) throws IOException {
+        List<RailLine> lines = sampleLines();
+
+        List<RailLine> read = BinaryRailFile.read(new ByteArrayInputStream(write(lines, deflate)));
+
+        assertEquals(lines.size(), read.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertSameLine(lines.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    void lineHeaderRoundTripsWithoutBlocks() throws IOException {
+        for (RailLine line : sampleLines()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            BinaryRailFile.writeLineHeader(out, line);
+            out.flush();
+
+            RailLine header = BinaryRailFile.readLineHeader(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+            assertEquals(line.getId(), header.getId());
+            assertEquals(line.getName(), header.getName());
+            assertEquals(line.getColor(), header.getColor());
+            assertEquals(line.getCreatedBy(), header.getCreatedBy());
+            assertEquals(line.getCreatedAt(), header.getCreatedAt());
+            assertEquals(line.isActive(), header.isActive());
+            assertEquals(line.getSegmentIds(), header.getSegmentIds());
+            assertEquals(0, header.getBlockCount());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        byte[] json = "[{\"id\":\"a\"}]".getBytes();
+        assertThrows(IOException.class, () -> BinaryRailFile.read(new ByteArrayInputStream(json)));
+    }
+
+    private static byte[] write(List<RailLine> lines, boolean deflate) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryRailFile.write(bytes, lines, deflate);
+        return bytes.toByteArray();
+    }
+
+    private static void assertSameLine(RailLine expected, RailLine actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getColor(), actual.getColor());
+        assertEquals(expected.getCreatedBy(), actual.getCreatedBy());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.isActive(), actual.isActive());
+        assertEquals(expected.getSegmentIds(), actual.getSegmentIds());
+        assertEquals(expected.getBlocks(), actual.getBlocks());
+    }
+
+    /**
+     * Random walks with slopes, plus a loop, a branch, lines in two worlds, far coordinates and unset fields.
+     */
+    private static List<RailLine> sampleLines() {
+        Random random = new Random(1);
+        List<RailLine> lines = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            RailLine line = new RailLine(Integer.toHexString(i), i % 5 == 0 ? null : "#E21836");
+            line.setName(i % 2 == 0 ? "Line " + i : null);
+            line.setCreatedBy(i % 3 == 0 ? "Bob" : null);
+            line.setCreatedAt(1_700_000_000_000L + i);
+            line.setActive(i % 4 != 0);
+            int x = random.nextInt(60_000_000) - 30_000_000, y = random.nextInt(300) - 64, z = random.nextInt(60_000_000) - 30_000_000;
+            List<RailBlock> blocks = new ArrayList<>();
+            for (int k = 0; k < 200; k++) {
+                int direction = random.nextInt(4);
+                if (direction == 0) x++;
+                else if (direction == 1) z--;
+                else if (direction == 2) y += random.nextBoolean() ? 1 : -1;
+                else x--;
+                blocks.add(new RailBlock(x, y, z, i % 7 == 0 ? "world_nether" : "world"));
+            }
+            if (i == 5) {
+                blocks.add(new RailBlock(1, 2, 3, "world_the_end"));
+            }
+            line.addBlocks(blocks);
+            if (i % 3 == 0) {
+                line.setSegmentIds(Arrays.asList(1, 2, 300));
+            }
+            lines.add(line);
+        }
+
+        RailLine loop = new RailLine("loop", "#000000");
+        for (int k = 0; k < 10; k++) {
+            loop.addBlock(new RailBlock(k, 64, 0, "world"));
+            loop.addBlock(new RailBlock(k, 64, 9, "world"));
+            loop.addBlock(new RailBlock(0, 64, k, "world"));
+            loop.addBlock(new RailBlock(9, 64, k, "world"));
+        }
+        lines.add(loop);
+
+        RailLine branch = new RailLine("branch", "#FFD300");
+        for (int k = -5; k <= 5; k++) {
+            branch.addBlock(new RailBlock(k, 70, 100, "world"));
+            branch.addBlock(new RailBlock(0, 70, 100 + Math.abs(k), "world"));
+        }
+        branch.setSegmentIds(Collections.emptyList());
+        lines.add(branch);
+
+        lines.add(new RailLine("empty", "#00B0F0"));
+        return lines;
+    }
+}
@@ -0,0 +1,103 @@
+package com.fabianoley.dynmaprailways.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fabianoley.dynmaprailways.rail.RailLine;
+import com.fabianoley.dynmaprailways.rail.RailLine.RailBlock;
+import com.fabianoley.dynmaprailways.station.Station;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The streaming adapters must read and write the same JSON the reflective adapters did.
+ */
+class RailwayJsonTest {
+
+    private final Gson reflective = new GsonBuilder().setPrettyPrinting().create();
+    private final Gson streaming = RailwayJson.builder().setPrettyPrinting().create();
+
+    @Test
+    void writesWhatReflectiveGsonWrote() {
+        for (RailLine line : sampleLines()) {
+            assertEquals(reflective.toJson(line), streaming.toJson(line));
+        }
+        for (Station station : sampleStations()) {
+            assertEquals(reflective.toJson(station), streaming.toJson(station));
+        }
+        assertEquals(reflective.toJson(sampleLines()), streaming.toJson(sampleLines()));
+    }
+
+    @Test
+    void readsWhatReflectiveGsonWrote() {
+        for (RailLine line : sampleLines()) {
+            RailLine read = streaming.fromJson(reflective.toJson(line), RailLine.class);
+            assertEquals(line.getId(), read.getId());
+            // A null name is not written, so it reads back as the constructor's default
+            assertEquals(line.getName() != null ? line.getName() : "Line " + line.getId(), read.getName());
+            assertEquals(line.getColor(), read.getColor());
+            assertEquals(line.getCreatedBy(), read.getCreatedBy());
+            assertEquals(line.getCreatedAt(), read.getCreatedAt());
+            assertEquals(line.isActive(), read.isActive());
+            assertEquals(line.getSegmentIds(), read.getSegmentIds());
+            assertEquals(line.getBlocks(), read.getBlocks());
+        }
+        for (Station station : sampleStations()) {
+            Station read = streaming.fromJson(reflective.toJson(station), Station.class);
+            assertEquals(reflective.toJson(station), reflective.toJson(read));
+        }
+        List<RailLine> lines = streaming.fromJson(reflective.toJson(sampleLines()), new TypeToken<List<RailLine>>() {}.getType());
+        assertEquals(sampleLines().size(), lines.size());
+    }
+
+    @Test
+    void missingFieldsKeepConstructorDefaults() {
+        RailLine line = streaming.fromJson("{\"id\":\"a\",\"future\":{\"x\":[1,2]}}", RailLine.class);
+        assertEquals("Line a", line.getName());
+        assertTrue(line.isActive());
+        assertEquals(0, line.getBlockCount());
+        assertNull(line.getSegmentIds());
+
+        Station station = streaming.fromJson("{\"id\":\"s\",\"x\":4}", Station.class);
+        assertEquals(4, station.getX());
+        assertEquals(64, station.getY());
+    }
+
+    private static List<RailLine> sampleLines() {
+        List<RailLine> lines = new ArrayList<>();
+        RailLine full = new RailLine("abc", "#E21836");
+        full.setCreatedBy("Bob");
+        full.setCreatedAt(1_700_000_000_000L);
+        for (int k = 0; k < 20; k++) {
+            full.addBlock(new RailBlock(-30_000_000 + k, -64 + k, 29_999_999, "world"));
+        }
+        full.addBlock(new RailBlock(1, 2, 3, "world_nether"));
+        full.setSegmentIds(List.of(3, 4));
+        lines.add(full);
+
+        RailLine bare = new RailLine("d", null);
+        bare.setName(null);
+        bare.setActive(false);
+        bare.setCreatedAt(0);
+        lines.add(bare);
+
+        RailLine quoted = new RailLine("q", "#000000");
+        quoted.setName("Bob's \"Express\" é\n");
+        quoted.setCreatedAt(42);
+        quoted.setSegmentIds(Collections.emptyList());
+        lines.add(quoted);
+        return lines;
+    }
+
+    private static List<Station> sampleStations() {
+        Station full = new Station("s", "Bank", 1, 70, 3, "world");
+        full.setCreatedBy("Al");
+        full.setCreatedAt(1_700_000_000_000L);
+        full.setActive(true);
+        Station bare = new Station("t", null, -1, 3);
+        bare.setCreatedAt(7);
+        return List.of(full, bare);
+    }
+}